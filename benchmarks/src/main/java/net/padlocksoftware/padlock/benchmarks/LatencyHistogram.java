@@ -0,0 +1,163 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.benchmarks;
+
+import java.io.PrintStream;
+
+/**
+ * A fixed-size latency histogram in the manner of HdrHistogram: values
+ * below 2^11 are counted exactly, and every larger power of two range is
+ * split into 1024 equal buckets, so any recorded value is known to within
+ * 0.1% whatever its magnitude, from nanoseconds to hours.  Recording is a
+ * few shifts and an array increment, with no allocation.
+ *
+ * Not safe for use from multiple threads; give each thread its own and
+ * add them together when done.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BITS = 11;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF_COUNT = SUB_COUNT / 2;
+
+    private final long[] counts = new long[SUB_COUNT + (64 - SUB_BITS) * HALF_COUNT];
+    private long count = 0;
+    private long sum = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = 0;
+
+    /**
+     * @param value A non-negative value, such as a latency in nanoseconds.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value: " + value);
+        }
+        counts[index(value)]++;
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    public void add(LatencyHistogram other) {
+        for (int x = 0; x < counts.length; x++) {
+            counts[x] += other.counts[x];
+        }
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @param percentile From 0 to 100.
+     * @return The largest value that could have been counted in the
+     * bucket holding the given percentile, and never more than the
+     * largest value recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100 * count));
+        long seen = 0;
+        for (int x = 0; x < counts.length; x++) {
+            seen += counts[x];
+            if (seen >= target) {
+                return Math.min(max, highestValue(x));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Print the value at each percentile, moving half of the way to 100%
+     * on each line, as HdrHistogram's percentile distribution does, so
+     * the tail gets as many lines as the body.
+     *
+     * @param scale Values are divided by this before printing, such as
+     * 1000 to print nanoseconds as microseconds.
+     */
+    public void printPercentiles(PrintStream out, double scale) {
+        out.println(String.format("%12s %14s %12s %14s", "Value", "Percentile", "TotalCount", "1/(1-Percentile)"));
+        double fraction = 0;
+        while (true) {
+            long total = (long) Math.ceil(fraction * count);
+            out.println(String.format("%12.3f %14.6f %12d %14.2f", getValueAtPercentile(fraction * 100) / scale,
+                    fraction, total, 1 / (1 - fraction)));
+            if ((1 - fraction) * count < 2) {
+                break;
+            }
+            fraction += (1 - fraction) / 2;
+        }
+        out.println(String.format("%12.3f %14.6f %12d %14s", max / scale, 1.0, count, "inf"));
+    }
+
+    /**
+     * Values below SUB_COUNT map to themselves.  Above that, a value whose
+     * highest bit is b is shifted right until it has SUB_BITS - 1 bits
+     * below its highest, and those bits pick one of HALF_COUNT buckets in
+     * the range for b.
+     */
+    static int index(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+        return SUB_COUNT + (shift - 1) * HALF_COUNT + (int) ((value >>> shift) - HALF_COUNT);
+    }
+
+    static long lowestValue(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_COUNT) / HALF_COUNT + 1;
+        long sub = (index - SUB_COUNT) % HALF_COUNT + HALF_COUNT;
+        return sub << shift;
+    }
+
+    static long highestValue(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_COUNT) / HALF_COUNT + 1;
+        return lowestValue(index) + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import net.padlocksoftware.padlock.license.License;
+import net.padlocksoftware.padlock.license.LicenseIO;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Signing, export and import of licenses, as done by LicenseMaker and by
+ * the validator before it can check anything.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LicenseBenchmark {
+
+    /**
+     * Build and sign a new license.  A signed license cannot be modified,
+     * so building it is part of every invocation.
+     */
+    @Benchmark
+    public License sign(LicenseFixture fixture) {
+        License license = fixture.createLicense();
+        fixture.signer.sign(license);
+        return license;
+    }
+
+    @Benchmark
+    public byte[] exportLicense(LicenseFixture fixture) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(fixture.exported.length);
+        LicenseIO.exportLicense(fixture.signed, out);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public License importLicense(LicenseFixture fixture) throws IOException {
+        return LicenseIO.importLicense(new ByteArrayInputStream(fixture.exported));
+    }
+}
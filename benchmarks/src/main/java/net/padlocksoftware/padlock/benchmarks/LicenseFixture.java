@@ -0,0 +1,113 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.KeyPair;
+import java.security.interfaces.DSAPrivateKey;
+import java.util.Date;
+import java.util.Iterator;
+import net.padlocksoftware.padlock.KeyManager;
+import net.padlocksoftware.padlock.MacAddresses;
+import net.padlocksoftware.padlock.license.License;
+import net.padlocksoftware.padlock.license.LicenseFactory;
+import net.padlocksoftware.padlock.license.LicenseIO;
+import net.padlocksoftware.padlock.license.LicenseSigner;
+import org.apache.commons.codec.binary.Hex;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * A key pair and a license of a given size, in unsigned, signed and
+ * exported form.  Each benchmark thread gets its own fixture, so the
+ * numbers measure the operations rather than contention on shared state.
+ */
+@State(Scope.Thread)
+public class LicenseFixture {
+
+    /**
+     * Number of custom properties in the license.
+     */
+    @Param({"0", "16", "256"})
+    public int propertyCount;
+
+    /**
+     * Number of hardware addresses the license is locked to.
+     */
+    @Param({"0", "4", "64"})
+    public int hardwareCount;
+
+    KeyPair pair;
+    String publicKey;
+    String hostAddress;
+    LicenseSigner signer;
+    License signed;
+    byte[] exported;
+
+    @Setup
+    public void setup() throws IOException {
+        Iterator<String> addresses = MacAddresses.getSystemMacAddresses().iterator();
+        hostAddress = addresses.hasNext() ? addresses.next() : null;
+
+        pair = KeyManager.createKeyPair();
+        publicKey = new String(Hex.encodeHex(pair.getPublic().getEncoded()));
+        signer = LicenseSigner.createLicenseSigner((DSAPrivateKey) pair.getPrivate());
+
+        signed = createLicense();
+        signer.sign(signed);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LicenseIO.exportLicense(signed, out);
+        exported = out.toByteArray();
+    }
+
+    /**
+     * Create a new, unsigned license with propertyCount properties and
+     * hardwareCount addresses.  The contents are the same on every call.
+     * When the host has a MAC address it is the last one listed, so the
+     * hardware test passes only after looking through all of them.
+     */
+    License createLicense() {
+        License license = LicenseFactory.createLicense();
+        long now = System.currentTimeMillis();
+        license.setStartDate(new Date(now - 24L * 60 * 60 * 1000));
+        license.setExpirationDate(new Date(now + 365L * 24 * 60 * 60 * 1000));
+
+        for (int x = 0; x < propertyCount; x++) {
+            license.addProperty("property" + x, "value-" + x);
+        }
+
+        for (int x = 0; x < hardwareCount; x++) {
+            if (x == hardwareCount - 1 && hostAddress != null) {
+                license.addHardwareAddress(hostAddress);
+            } else {
+                license.addHardwareAddress(String.format("02:00:00:00:%02x:%02x", x >> 8, x & 0xff));
+            }
+        }
+
+        return license;
+    }
+}
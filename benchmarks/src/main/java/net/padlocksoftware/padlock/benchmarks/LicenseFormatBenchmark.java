@@ -0,0 +1,86 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import net.padlocksoftware.padlock.common.LicenseFormat;
+import net.padlocksoftware.padlock.license.License;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Text against binary license encoding: time to parse and to write, and,
+ * printed once per trial, bytes per license.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LicenseFormatBenchmark {
+
+    @State(Scope.Thread)
+    public static class Encoded {
+        byte[] text;
+        byte[] binary;
+
+        @Setup(Level.Trial)
+        public void setup(LicenseFixture fixture) throws IOException {
+            text = LicenseFormat.TEXT.toBytes(fixture.signed);
+            binary = LicenseFormat.BINARY.toBytes(fixture.signed);
+            System.out.println("# properties=" + fixture.propertyCount + " hardware=" +
+                    fixture.hardwareCount + ": text " + text.length + " bytes, binary " +
+                    binary.length + " bytes");
+        }
+    }
+
+    @Benchmark
+    public License readText(Encoded encoded) throws IOException {
+        return LicenseFormat.read(encoded.text);
+    }
+
+    @Benchmark
+    public License readBinary(Encoded encoded) throws IOException {
+        return LicenseFormat.read(encoded.binary);
+    }
+
+    @Benchmark
+    public byte[] writeText(LicenseFixture fixture) throws IOException {
+        return LicenseFormat.TEXT.toBytes(fixture.signed);
+    }
+
+    @Benchmark
+    public byte[] writeBinary(LicenseFixture fixture) throws IOException {
+        return LicenseFormat.BINARY.toBytes(fixture.signed);
+    }
+}
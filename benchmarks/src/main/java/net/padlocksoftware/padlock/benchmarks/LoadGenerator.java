@@ -0,0 +1,521 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import net.padlocksoftware.padlock.common.KeyAlgorithm;
+import net.padlocksoftware.padlock.common.LicenseFormat;
+import net.padlocksoftware.padlock.common.LicenseKeySigner;
+import net.padlocksoftware.padlock.license.License;
+import net.padlocksoftware.padlock.license.LicenseIO;
+import net.padlocksoftware.padlock.license.LicenseImpl;
+import net.padlocksoftware.padlock.licensemaker.LicenseSpec;
+import net.padlocksoftware.padlock.licensevalidator.LicenseChecker;
+import net.padlocksoftware.padlock.validator.Validator;
+import net.padlocksoftware.padlock.validator.ValidatorException;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Replays a synthetic corpus of licenses through validation and reports
+ * sustained throughput and an HDR style latency distribution, to give
+ * each release a capacity number for the hardware it runs on.
+ *
+ * <pre>
+ *   java -cp benchmarks/target/benchmarks.jar net.padlocksoftware.padlock.benchmarks.LoadGenerator
+ *        [-n 10000] [-m valid=70,expired=10,prior=5,tampered=5,hardware=5,properties=5]
+ *        [-t 4] [-r 2000] [-d 30] [-w 5] [-v validator|checker|fast] [-a DSA] [-F text|binary]
+ *        [-s 1] [-o results.json]
+ * </pre>
+ *
+ * The corpus is built the way LicenseMaker builds licenses, from a
+ * LicenseSpec signed by LicenseKeySigner, and exported in the chosen
+ * format.  Its mix of kinds is given as weights:
+ * <ul>
+ * <li>valid: started yesterday, unexpired, not locked
+ * <li>expired: ended before today
+ * <li>prior: starts next month
+ * <li>tampered: valid, but with one digit of the signature changed
+ * <li>hardware: locked to addresses this host does not have
+ * <li>properties: valid, with 256 properties
+ * </ul>
+ *
+ * Each operation imports the exported bytes and validates the license,
+ * as a validation service would, either with the library's
+ * Validator.validate() (the default, which needs a 1024 bit DSA key) or
+ * with LicenseValidator's LicenseChecker, in its full report or fast-fail
+ * mode.  Clock turnback checking scans
+ * the file system and is turned off, as in ValidationBenchmark.
+ *
+ * Without -r each thread validates licenses back to back (closed loop)
+ * and latency is service time.  With -r operations are scheduled at that
+ * total rate and latency is measured from when each was due, not from
+ * when a thread got to it, so a validator that cannot keep up shows
+ * growing latencies instead of a quietly lower rate.  Results are only
+ * recorded after the -w warmup.
+ */
+public class LoadGenerator {
+
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    enum Kind {
+        VALID(true), EXPIRED(false), PRIOR(false), TAMPERED(false), HARDWARE(false), PROPERTIES(true);
+
+        final boolean valid;
+
+        Kind(boolean valid) {
+            this.valid = valid;
+        }
+
+        String getName() {
+            return name().toLowerCase();
+        }
+    }
+
+    static final class Entry {
+        final Kind kind;
+        final byte[] bytes;
+
+        Entry(Kind kind, byte[] bytes) {
+            this.kind = kind;
+            this.bytes = bytes;
+        }
+    }
+
+    private int corpusSize = 10000;
+    private final Map<Kind, Integer> mix = new LinkedHashMap<Kind, Integer>();
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private double rate = 0;
+    private long duration = TimeUnit.SECONDS.toNanos(30);
+    private long warmup = TimeUnit.SECONDS.toNanos(5);
+    private String path = "validator";
+    private boolean useChecker = false;
+    private KeyAlgorithm algorithm = KeyAlgorithm.DSA;
+    private LicenseFormat format = LicenseFormat.TEXT;
+    private long seed = 1;
+    private File resultsFile = null;
+
+    private KeyPair keyPair;
+    private String publicKey;
+    private LicenseChecker checker;
+    private Entry[] corpus;
+    private long elapsed;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            generator.parseArguments(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            showUsageAndExit();
+        }
+        generator.run();
+    }
+
+    private static void showUsageAndExit() {
+        System.err.println("Usage: LoadGenerator [-n <Corpus Size>] [-m <Mix>] [-t <Threads>] [-r <Rate/s>]");
+        System.err.println("                     [-d <Seconds>] [-w <Warmup Seconds>] [-v validator|checker|fast]");
+        System.err.println("                     [-a <Algorithm>] [-F text|binary] [-s <Seed>] [-o <Results File>]\n");
+        System.err.println("<Mix> weights the license kinds, by default");
+        System.err.println("valid=70,expired=10,prior=5,tampered=5,hardware=5,properties=5.");
+        System.err.println("Without -r each thread validates back to back; with -r operations are");
+        System.err.println("scheduled at that rate and latency counts from when each was due.");
+        System.err.println("-v fast uses LicenseChecker's fast-fail mode.  -a other than DSA needs");
+        System.err.println("-v checker or fast.  -o writes the results as JSON.");
+        System.exit(1);
+    }
+
+    void parseArguments(String[] args) {
+        mix.put(Kind.VALID, 70);
+        mix.put(Kind.EXPIRED, 10);
+        mix.put(Kind.PRIOR, 5);
+        mix.put(Kind.TAMPERED, 5);
+        mix.put(Kind.HARDWARE, 5);
+        mix.put(Kind.PROPERTIES, 5);
+
+        for (int x = 0; x < args.length; x++) {
+            String arg = args[x];
+            if (x + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            String value = args[++x];
+            if (arg.equals("-n")) {
+                corpusSize = positive(arg, value);
+            } else if (arg.equals("-m")) {
+                parseMix(value);
+            } else if (arg.equals("-t")) {
+                threads = positive(arg, value);
+            } else if (arg.equals("-r")) {
+                rate = positive(arg, value);
+            } else if (arg.equals("-d")) {
+                duration = TimeUnit.SECONDS.toNanos(positive(arg, value));
+            } else if (arg.equals("-w")) {
+                warmup = TimeUnit.SECONDS.toNanos(Integer.parseInt(value));
+            } else if (arg.equals("-v")) {
+                if (!value.equals("validator") && !value.equals("checker") && !value.equals("fast")) {
+                    throw new IllegalArgumentException("Unknown validation path: " + value);
+                }
+                path = value;
+                useChecker = !value.equals("validator");
+            } else if (arg.equals("-a")) {
+                algorithm = KeyAlgorithm.forName(value);
+            } else if (arg.equals("-F")) {
+                format = LicenseFormat.forName(value);
+            } else if (arg.equals("-s")) {
+                seed = Long.parseLong(value);
+            } else if (arg.equals("-o")) {
+                resultsFile = new File(value);
+            } else {
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+        }
+
+        if (!useChecker && algorithm != KeyAlgorithm.DSA) {
+            throw new IllegalArgumentException("The library Validator only checks DSA keys; use -v checker");
+        }
+    }
+
+    private static int positive(String arg, String value) {
+        int n;
+        try {
+            n = Integer.parseInt(value);
+        } catch (NumberFormatException ex) {
+            n = 0;
+        }
+        if (n < 1) {
+            throw new IllegalArgumentException("Invalid value for " + arg + ": " + value);
+        }
+        return n;
+    }
+
+    private void parseMix(String value) {
+        mix.clear();
+        for (String part : value.split(",")) {
+            String[] pair = part.trim().split("=");
+            Kind kind;
+            try {
+                kind = Kind.valueOf(pair[0].trim().toUpperCase());
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalArgumentException("Unknown license kind: " + pair[0]);
+            }
+            int weight = pair.length == 2 ? Integer.parseInt(pair[1].trim()) : 1;
+            if (weight < 0) {
+                throw new IllegalArgumentException("Negative weight for " + pair[0]);
+            }
+            mix.put(kind, weight);
+        }
+    }
+
+    void run() throws Exception {
+        long start = System.currentTimeMillis();
+        keyPair = algorithm.generate(algorithm.getDefaultKeySize());
+        publicKey = new String(Hex.encodeHex(keyPair.getPublic().getEncoded()));
+        checker = new LicenseChecker(keyPair.getPublic(), path.equals("fast"));
+        corpus = buildCorpus();
+        System.out.println("Corpus: " + describeCorpus() + ", built in " +
+                (System.currentTimeMillis() - start) + " ms");
+        System.out.println((rate > 0 ? "Open loop at " + (long) rate + "/s" : "Closed loop") + ", " + threads +
+                " threads, " + (useChecker ? "LicenseChecker" : "Validator") + (path.equals("fast") ? " fast-fail" : "") + ", " +
+                TimeUnit.NANOSECONDS.toSeconds(duration) + " s after " +
+                TimeUnit.NANOSECONDS.toSeconds(warmup) + " s warmup");
+
+        if (warmup > 0) {
+            replay(warmup);
+        }
+        Worker[] workers = replay(duration);
+
+        LatencyHistogram latency = new LatencyHistogram();
+        long unexpected = 0;
+        long errors = 0;
+        for (Worker worker : workers) {
+            latency.add(worker.latency);
+            unexpected += worker.unexpected;
+            errors += worker.errors;
+        }
+        report(latency, unexpected, errors);
+    }
+
+    //
+    // Corpus
+    //
+
+    private Entry[] buildCorpus() throws Exception {
+        int total = 0;
+        for (int weight : mix.values()) {
+            total += weight;
+        }
+        if (total == 0) {
+            throw new IllegalArgumentException("The mix has no weight");
+        }
+
+        //
+        // Whole shares first, then the remainder to the heaviest kinds
+        //
+        final List<Kind> kinds = new ArrayList<Kind>(corpusSize);
+        for (Map.Entry<Kind, Integer> entry : mix.entrySet()) {
+            for (long x = 0; x < (long) corpusSize * entry.getValue() / total; x++) {
+                kinds.add(entry.getKey());
+            }
+        }
+        List<Kind> byWeight = new ArrayList<Kind>(mix.keySet());
+        Collections.sort(byWeight, new Comparator<Kind>() {
+            public int compare(Kind a, Kind b) {
+                return mix.get(b) - mix.get(a);
+            }
+        });
+        for (int x = 0; kinds.size() < corpusSize; x++) {
+            kinds.add(byWeight.get(x % byWeight.size()));
+        }
+        Collections.shuffle(kinds, new Random(seed));
+
+        final Entry[] entries = new Entry[corpusSize];
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int t = 0; t < threads; t++) {
+                final int first = t;
+                futures.add(pool.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        LicenseKeySigner signer = new LicenseKeySigner(keyPair);
+                        for (int x = first; x < entries.length; x += threads) {
+                            entries[x] = createEntry(kinds.get(x), signer, x);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return entries;
+    }
+
+    private Entry createEntry(Kind kind, LicenseKeySigner signer, int number) throws IOException {
+        long now = System.currentTimeMillis();
+        LicenseSpec spec = new LicenseSpec();
+        spec.setId("load-" + number);
+        spec.setStartDate(new Date(now - DAY));
+        spec.setExpirationDate(new Date(now + 365 * DAY));
+        spec.getProperties().setProperty("customer", "customer-" + number);
+
+        switch (kind) {
+            case EXPIRED:
+                spec.setStartDate(new Date(now - 60 * DAY));
+                spec.setExpirationDate(new Date(now - 30 * DAY));
+                break;
+            case PRIOR:
+                spec.setStartDate(new Date(now + 30 * DAY));
+                spec.setExpirationDate(new Date(now + 395 * DAY));
+                break;
+            case HARDWARE:
+                spec.getHardwareAddresses().add(String.format("02:00:5e:%02x:%02x:%02x",
+                        (number >> 16) & 0xff, (number >> 8) & 0xff, number & 0xff));
+                spec.getHardwareAddresses().add("02:00:5e:ff:ff:ff");
+                break;
+            case PROPERTIES:
+                for (int x = 0; x < 256; x++) {
+                    spec.getProperties().setProperty("property" + x, "value-" + x);
+                }
+                break;
+            default:
+                break;
+        }
+
+        License license = signer.sign(spec.createLicense());
+        if (kind == Kind.TAMPERED) {
+            Properties raw = ((LicenseImpl) license).getRawProperties();
+            String signature = raw.getProperty("signature");
+            char last = signature.charAt(signature.length() - 1);
+            raw.setProperty("signature", signature.substring(0, signature.length() - 1) + (last == '0' ? '1' : '0'));
+            license = LicenseIO.importLicense(raw);
+        }
+        return new Entry(kind, format.toBytes(license));
+    }
+
+    private String describeCorpus() {
+        Map<Kind, Integer> counts = new EnumMap<Kind, Integer>(Kind.class);
+        for (Entry entry : corpus) {
+            Integer count = counts.get(entry.kind);
+            counts.put(entry.kind, count == null ? 1 : count + 1);
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(corpus.length).append(" ").append(format.name().toLowerCase()).append(" licenses (");
+        String separator = "";
+        for (Map.Entry<Kind, Integer> count : counts.entrySet()) {
+            sb.append(separator).append(count.getValue()).append(" ").append(count.getKey().getName());
+            separator = ", ";
+        }
+        return sb.append(")").toString();
+    }
+
+    //
+    // Replay
+    //
+
+    private Worker[] replay(long length) throws InterruptedException {
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10);
+        long end = start + length;
+        AtomicLong sequence = new AtomicLong();
+        Worker[] workers = new Worker[threads];
+        Thread[] running = new Thread[threads];
+        for (int x = 0; x < threads; x++) {
+            workers[x] = new Worker(sequence, start, end);
+            running[x] = new Thread(workers[x], "load-" + x);
+            running[x].start();
+        }
+        for (Thread thread : running) {
+            thread.join();
+        }
+        elapsed = System.nanoTime() - start;
+        return workers;
+    }
+
+    private final class Worker implements Runnable {
+        private final AtomicLong sequence;
+        private final long start;
+        private final long end;
+        final LatencyHistogram latency = new LatencyHistogram();
+        long unexpected = 0;
+        long errors = 0;
+
+        Worker(AtomicLong sequence, long start, long end) {
+            this.sequence = sequence;
+            this.start = start;
+            this.end = end;
+        }
+
+        public void run() {
+            while (true) {
+                long operation = sequence.getAndIncrement();
+                long due;
+                if (rate > 0) {
+                    due = start + (long) (operation * 1e9 / rate);
+                    if (due >= end) {
+                        return;
+                    }
+                    long wait;
+                    while ((wait = due - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                } else {
+                    due = System.nanoTime();
+                    if (due >= end) {
+                        return;
+                    }
+                }
+
+                Entry entry = corpus[(int) (operation % corpus.length)];
+                try {
+                    if (validate(entry.bytes) != entry.kind.valid) {
+                        unexpected++;
+                    }
+                } catch (Exception ex) {
+                    errors++;
+                }
+                latency.record(System.nanoTime() - due);
+            }
+        }
+    }
+
+    private boolean validate(byte[] bytes) throws IOException {
+        if (useChecker) {
+            return checker.check("load", bytes, new Date(), null).isValid();
+        }
+
+        Validator validator = new Validator(LicenseFormat.read(bytes), publicKey);
+        validator.setCheckClockTurnback(false);
+        validator.setIgnoreFloatTime(true);
+        try {
+            validator.validate();
+            return true;
+        } catch (ValidatorException ex) {
+            return false;
+        }
+    }
+
+    //
+    // Report
+    //
+
+    private void report(LatencyHistogram latency, long unexpected, long errors) throws IOException {
+        //
+        // Operations that fell behind schedule still run after the planned
+        // end, so throughput is over the time actually taken
+        //
+        double seconds = elapsed / 1e9;
+        double throughput = latency.getCount() / seconds;
+        System.out.println(String.format("Operations: %d in %.1f s, throughput: %.1f/s, unexpected results: %d, " +
+                "errors: %d", latency.getCount(), seconds, throughput, unexpected, errors));
+        System.out.println(String.format("Latency (us): min %.1f, mean %.1f, p50 %.1f, p90 %.1f, p99 %.1f, " +
+                "p99.9 %.1f, p99.99 %.1f, max %.1f", latency.getMin() / 1e3, latency.getMean() / 1e3,
+                latency.getValueAtPercentile(50) / 1e3, latency.getValueAtPercentile(90) / 1e3,
+                latency.getValueAtPercentile(99) / 1e3, latency.getValueAtPercentile(99.9) / 1e3,
+                latency.getValueAtPercentile(99.99) / 1e3, latency.getMax() / 1e3));
+        System.out.println();
+        System.out.println("Latency distribution (us):");
+        latency.printPercentiles(System.out, 1e3);
+
+        if (resultsFile != null) {
+            PrintStream out = new PrintStream(new FileOutputStream(resultsFile), false, "UTF-8");
+            try {
+                out.println(String.format(Locale.ROOT, "{\"mode\":\"%s\",\"path\":\"%s\",\"algorithm\":\"%s\",\"format\":\"%s\"," +
+                        "\"threads\":%d,\"targetRate\":%.1f,\"seconds\":%.1f,\"corpus\":%d,\"operations\":%d," +
+                        "\"throughput\":%.1f,\"unexpected\":%d,\"errors\":%d,\"latencyMicros\":{\"min\":%.1f," +
+                        "\"mean\":%.1f,\"p50\":%.1f,\"p90\":%.1f,\"p99\":%.1f,\"p99.9\":%.1f,\"p99.99\":%.1f," +
+                        "\"max\":%.1f}}",
+                        rate > 0 ? "open" : "closed", path, algorithm.getName(),
+                        format.name().toLowerCase(), threads, rate, seconds, corpus.length, latency.getCount(),
+                        throughput, unexpected, errors, latency.getMin() / 1e3, latency.getMean() / 1e3,
+                        latency.getValueAtPercentile(50) / 1e3, latency.getValueAtPercentile(90) / 1e3,
+                        latency.getValueAtPercentile(99) / 1e3, latency.getValueAtPercentile(99.9) / 1e3,
+                        latency.getValueAtPercentile(99.99) / 1e3, latency.getMax() / 1e3));
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.benchmarks;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import net.padlocksoftware.padlock.common.KeyAlgorithm;
+import net.padlocksoftware.padlock.common.LicenseKeySigner;
+import net.padlocksoftware.padlock.license.License;
+import net.padlocksoftware.padlock.license.LicenseFactory;
+import net.padlocksoftware.padlock.license.LicenseState;
+import net.padlocksoftware.padlock.licensevalidator.LicenseChecker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Signing and verification cost of each key type KeyMaker can create, so
+ * the choice between them can be made on numbers.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SignatureAlgorithmBenchmark {
+
+    /**
+     * Algorithm and key size, as given to KeyMaker's -a and -s.
+     */
+    @Param({"DSA:1024", "DSA:2048", "RSA:2048", "RSA:3072", "EC:256", "EC:384", "Ed25519:255"})
+    public String key;
+
+    private LicenseKeySigner signer;
+    private LicenseChecker checker;
+    private License signed;
+
+    @Setup
+    public void setup() throws GeneralSecurityException {
+        String[] parts = key.split(":");
+        KeyPair pair = KeyAlgorithm.forName(parts[0]).generate(Integer.parseInt(parts[1]));
+        signer = new LicenseKeySigner(pair.getPrivate());
+        checker = new LicenseChecker(pair);
+        signed = signer.sign(createLicense());
+    }
+
+    private static License createLicense() {
+        License license = LicenseFactory.createLicense();
+        license.setExpirationDate(new Date(System.currentTimeMillis() + 365L * 24 * 60 * 60 * 1000));
+        license.addProperty("customer", "Example Corp");
+        license.addProperty("edition", "enterprise");
+        return license;
+    }
+
+    @Benchmark
+    public License sign() {
+        return signer.sign(createLicense());
+    }
+
+    @Benchmark
+    public LicenseState verify() {
+        return checker.validate(signed, new Date());
+    }
+}
@@ -0,0 +1,187 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cold-run wall time of the command line tools: each invocation starts a
+ * new process and waits for it to exit, as a shell script or cron job
+ * would.
+ *
+ * <pre>
+ *   java -Dthreads=1 -jar benchmarks/target/benchmarks.jar Startup
+ *   java -Dthreads=1 -Dpadlock.native.dir=/opt/padlock/bin -jar benchmarks/target/benchmarks.jar Startup -p mode=native -p tool=keymaker,licensevalidator
+ * </pre>
+ *
+ * The default mode is a plain JVM start.  The cds mode first makes a
+ * training run, then dumps the classes it loaded to a static class data
+ * sharing archive, as the cds build profile does, and starts the JVM
+ * with that archive, so it needs a class path of jars, as it is when run
+ * from benchmarks.jar.  The native mode runs the images built by the native
+ * profile, copied from each module's target to the directory named by
+ * padlock.native.dir; that profile builds no licensemaker image.  Run it with
+ * one thread; several processes starting at once measure the machine
+ * rather than the tools.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 20)
+@Fork(1)
+public class StartupBenchmark {
+
+    @Param({"keymaker", "licensemaker", "licensevalidator"})
+    public String tool;
+
+    @Param({"default", "cds"})
+    public String mode;
+
+    private File dir;
+    private File log;
+    private List<String> command;
+
+    @Setup
+    public void setup() throws IOException, InterruptedException {
+        dir = File.createTempFile("startup", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        log = new File(dir, "output.log");
+
+        String key = new File(dir, "key.kp").getPath();
+        String license = new File(dir, "license.lic").getPath();
+        run(java("keymaker", key));
+        run(java("licensemaker", "-k", key, "-p", "edition=benchmark", "-o", license));
+
+        String[] args;
+        if (tool.equals("keymaker")) {
+            args = new String[] {new File(dir, "generated.kp").getPath()};
+        } else if (tool.equals("licensemaker")) {
+            args = new String[] {"-k", key, "-p", "edition=benchmark", "-o",
+                    new File(dir, "issued.lic").getPath()};
+        } else {
+            args = new String[] {"-l", license, "-k", key};
+        }
+
+        if (mode.equals("default")) {
+            command = java(tool, args);
+        } else if (mode.equals("cds")) {
+            command = cds(tool, args);
+        } else if (mode.equals("native")) {
+            String nativeDir = System.getProperty("padlock.native.dir");
+            if (nativeDir == null) {
+                throw new IllegalStateException("Set padlock.native.dir to the native images' directory");
+            }
+            if (tool.equals("licensemaker")) {
+                throw new IllegalArgumentException("The native profile does not build licensemaker");
+            }
+            command = new ArrayList<String>();
+            command.add(new File(nativeDir, tool).getAbsolutePath());
+            command.addAll(Arrays.asList(args));
+        } else {
+            throw new IllegalArgumentException("Unknown mode: " + mode);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public int start() throws IOException, InterruptedException {
+        return run(command);
+    }
+
+    /**
+     * A training run followed by a static archive dump, then the command
+     * that starts with the archive.  -Xshare:on makes an archive that cannot
+     * be mapped an error instead of a silent fallback to a plain start.
+     */
+    private List<String> cds(String tool, String... args) throws IOException, InterruptedException {
+        File classList = new File(dir, tool + ".classlist");
+        File archive = new File(dir, tool + ".jsa");
+
+        List<String> training = java(tool, args);
+        training.add(1, "-XX:DumpLoadedClassList=" + classList.getPath());
+        run(training);
+
+        run(Arrays.asList(javaExecutable(), "-Xshare:dump",
+                "-XX:SharedClassListFile=" + classList.getPath(),
+                "-XX:SharedArchiveFile=" + archive.getPath(),
+                "-cp", System.getProperty("java.class.path")));
+
+        List<String> command = java(tool, args);
+        command.add(1, "-XX:SharedArchiveFile=" + archive.getPath());
+        command.add(2, "-Xshare:on");
+        return command;
+    }
+
+    private static List<String> java(String tool, String... args) {
+        List<String> command = new ArrayList<String>();
+        command.add(javaExecutable());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("net.padlocksoftware.padlock." + tool + ".Main");
+        command.addAll(Arrays.asList(args));
+        return command;
+    }
+
+    private static String javaExecutable() {
+        return new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+    }
+
+    private int run(List<String> command) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(log)
+                .start();
+        int status = process.waitFor();
+        if (status != 0) {
+            throw new IllegalStateException(command + " exited with " + status + ", see " + log);
+        }
+        return status;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.benchmarks;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import net.padlocksoftware.padlock.license.LicenseState;
+import net.padlocksoftware.padlock.licensevalidator.LicenseChecker;
+import net.padlocksoftware.padlock.licensevalidator.ValidationResult;
+import net.padlocksoftware.padlock.validator.Validator;
+import net.padlocksoftware.padlock.validator.ValidatorException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Validation of a signed license, both through the library Validator and
+ * through the LicenseChecker used by LicenseValidator's bulk and server
+ * modes.  BenchmarkMain attaches the GC profiler, whose gc.alloc.rate.norm
+ * is the bytes allocated per validation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ValidationBenchmark {
+
+    @State(Scope.Thread)
+    public static class Checker {
+        LicenseChecker checker;
+
+        @Setup(Level.Trial)
+        public void setup(LicenseFixture fixture) {
+            checker = new LicenseChecker(fixture.pair);
+        }
+    }
+
+    /**
+     * A fresh Validator per license, as the single license command line
+     * does.  Clock turnback checking scans the file system and would
+     * swamp the numbers, so it is disabled.  On a host without a MAC
+     * address the hardware test fails and validate() throws; the state is
+     * still returned so both benchmarks do the same work.
+     */
+    @Benchmark
+    public LicenseState validator(LicenseFixture fixture) {
+        Validator validator = new Validator(fixture.signed, fixture.publicKey);
+        validator.setCheckClockTurnback(false);
+        try {
+            return validator.validate();
+        } catch (ValidatorException ex) {
+            return ex.getLicenseState();
+        }
+    }
+
+    @Benchmark
+    public LicenseState checker(LicenseFixture fixture, Checker checker) {
+        return checker.checker.validate(fixture.signed, new Date());
+    }
+
+    /**
+     * Import and validation of an exported license, as each license in a
+     * bulk run or server request goes through.
+     */
+    @Benchmark
+    public ValidationResult checkerExported(LicenseFixture fixture, Checker checker) {
+        return checker.checker.check("benchmark", fixture.exported, new Date(), null);
+    }
+}
@@ -0,0 +1,286 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Enumeration;
+import java.util.Properties;
+import net.padlocksoftware.padlock.license.ImportException;
+import net.padlocksoftware.padlock.license.License;
+import net.padlocksoftware.padlock.license.LicenseIO;
+import net.padlocksoftware.padlock.license.LicenseImpl;
+
+/**
+ * A compact binary encoding of a license's raw properties:
+ *
+ * <pre>
+ *   magic     4 bytes   "PLB" 0x00
+ *   version   1 byte    1
+ *   count     varint    number of properties
+ *   count times:
+ *     key     varint    0: a UTF-8 key follows
+ *                       1: a UTF-8 custom property name follows
+ *                       2 onwards: one of the license's own fields
+ *     value   varint    length &lt;&lt; 1 | packed, then length bytes
+ * </pre>
+ *
+ * Strings are a varint byte length and UTF-8 bytes; varints are unsigned
+ * LEB128.  Values made of lowercase hex digits, such as the signature,
+ * are packed: their raw bytes are stored and hex encoded again on
+ * decoding.  The properties are exactly those of the text export, so both
+ * encodings of a license verify alike; decoding skips the escape and line
+ * handling of Properties.load().
+ */
+public final class BinaryLicenseCodec {
+
+    static final byte[] MAGIC = {'P', 'L', 'B', 0};
+    static final int VERSION = 1;
+
+    private static final int KEY_LITERAL = 0;
+    private static final int KEY_PROPERTY = 1;
+    private static final String PROPERTY_PREFIX = "property_";
+
+    /**
+     * The license's own fields, coded 2 onwards.  Only ever append.
+     */
+    private static final String[] FIELDS = {
+        "signature", "version", "creationDate", "startDate", "expirationDate",
+        "floatingExpiration", "hardwareAddresses"
+    };
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private BinaryLicenseCodec() {
+    }
+
+    /**
+     * @return true if the data starts with the binary format's magic.
+     */
+    public static boolean isBinary(byte[] data) {
+        if (data.length < MAGIC.length) {
+            return false;
+        }
+        for (int x = 0; x < MAGIC.length; x++) {
+            if (data[x] != MAGIC[x]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static byte[] encode(License license) {
+        Properties raw = ((LicenseImpl) license).getRawProperties();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(512);
+        out.write(MAGIC, 0, MAGIC.length);
+        out.write(VERSION);
+        writeVarint(out, raw.size());
+        for (Enumeration names = raw.propertyNames(); names.hasMoreElements();) {
+            String key = (String) names.nextElement();
+            writeKey(out, key);
+            writeValue(out, raw.getProperty(key));
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @throws ImportException if the data is not a valid binary license.
+     */
+    public static License decode(byte[] data) {
+        if (!isBinary(data)) {
+            throw new ImportException("Not a binary license");
+        }
+
+        Reader reader = new Reader(data, MAGIC.length);
+        int version = reader.readByte();
+        if (version != VERSION) {
+            throw new ImportException("Unsupported binary license version: " + version);
+        }
+
+        int count = reader.readVarint();
+        Properties raw = new Properties();
+        for (int x = 0; x < count; x++) {
+            String key = reader.readKey();
+            raw.setProperty(key, reader.readValue());
+        }
+
+        if (reader.pos != data.length) {
+            throw new ImportException("Unexpected data after binary license");
+        }
+        return LicenseIO.importLicense(raw);
+    }
+
+    private static void writeKey(ByteArrayOutputStream out, String key) {
+        for (int x = 0; x < FIELDS.length; x++) {
+            if (FIELDS[x].equals(key)) {
+                writeVarint(out, x + 2);
+                return;
+            }
+        }
+
+        if (key.startsWith(PROPERTY_PREFIX)) {
+            writeVarint(out, KEY_PROPERTY);
+            writeBytes(out, utf8(key.substring(PROPERTY_PREFIX.length())));
+        } else {
+            writeVarint(out, KEY_LITERAL);
+            writeBytes(out, utf8(key));
+        }
+    }
+
+    private static void writeValue(ByteArrayOutputStream out, String value) {
+        if (isPackable(value)) {
+            byte[] packed = new byte[value.length() / 2];
+            for (int x = 0; x < packed.length; x++) {
+                packed[x] = (byte) (Character.digit(value.charAt(2 * x), 16) << 4 |
+                        Character.digit(value.charAt(2 * x + 1), 16));
+            }
+            writeVarint(out, packed.length << 1 | 1);
+            out.write(packed, 0, packed.length);
+        } else {
+            byte[] bytes = utf8(value);
+            writeVarint(out, bytes.length << 1);
+            out.write(bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * @return true if the value is a non-empty, even length run of lowercase
+     * hex digits, and so survives packing unchanged.
+     */
+    private static boolean isPackable(String value) {
+        int length = value.length();
+        if (length == 0 || length % 2 != 0 || length > (Integer.MAX_VALUE >> 2)) {
+            return false;
+        }
+        for (int x = 0; x < length; x++) {
+            char c = value.charAt(x);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeBytes(ByteArrayOutputStream out, byte[] bytes) {
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static byte[] utf8(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            // Every Java platform is required to support UTF-8
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Bounds checked reads over the encoded bytes.
+     */
+    private static final class Reader {
+        private final byte[] data;
+        private int pos;
+
+        Reader(byte[] data, int pos) {
+            this.data = data;
+            this.pos = pos;
+        }
+
+        int readByte() {
+            if (pos >= data.length) {
+                throw new ImportException("Truncated binary license");
+            }
+            return data[pos++] & 0xff;
+        }
+
+        int readVarint() {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = readByte();
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    if (value < 0) {
+                        break;
+                    }
+                    return value;
+                }
+            }
+            throw new ImportException("Invalid length in binary license");
+        }
+
+        String readKey() {
+            int code = readVarint();
+            if (code == KEY_LITERAL) {
+                return readString(readVarint());
+            } else if (code == KEY_PROPERTY) {
+                return PROPERTY_PREFIX + readString(readVarint());
+            } else if (code - 2 < FIELDS.length) {
+                return FIELDS[code - 2];
+            }
+            throw new ImportException("Unknown field in binary license: " + code);
+        }
+
+        String readValue() {
+            int header = readVarint();
+            int length = header >>> 1;
+            if ((header & 1) == 0) {
+                return readString(length);
+            }
+
+            checkLength(length);
+            char[] hex = new char[length * 2];
+            for (int x = 0; x < length; x++) {
+                int b = data[pos++] & 0xff;
+                hex[2 * x] = HEX[b >>> 4];
+                hex[2 * x + 1] = HEX[b & 0x0f];
+            }
+            return new String(hex);
+        }
+
+        String readString(int length) {
+            checkLength(length);
+            try {
+                String value = new String(data, pos, length, "UTF-8");
+                pos += length;
+                return value;
+            } catch (UnsupportedEncodingException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        private void checkLength(int length) {
+            if (length > data.length - pos) {
+                throw new ImportException("Truncated binary license");
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.common;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import net.padlocksoftware.padlock.MacAddressProvider;
+
+/**
+ * A MacAddressProvider that asks another provider for the host's addresses
+ * at most once per refresh interval and hands every caller the same
+ * snapshot in between.  The library's default provider enumerates the
+ * network interfaces, or runs a shell command, on every call, which costs
+ * milliseconds on hosts with many virtual interfaces and so dominates a
+ * hardware locked validation.  HostAddresses shares one instance between
+ * every check in the JVM.
+ *
+ * Safe for use from multiple threads.  Callers arriving while a stale
+ * snapshot is being refreshed wait for the new one.
+ */
+public final class CachingMacAddressProvider implements MacAddressProvider {
+
+    /**
+     * How long a snapshot is used before the addresses are gathered again.
+     */
+    public static final long DEFAULT_REFRESH_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final Metrics.Timer LOOKUP_TIMER = Metrics.getDefault().timer("host_address_lookup",
+            "Time spent gathering the host's hardware addresses");
+
+    private final MacAddressProvider provider;
+    private final long refreshNanos;
+    private volatile Set<String> addresses;
+    private volatile long expires;
+
+    /**
+     * @param provider Where the addresses come from.
+     * @param refreshMillis How long a snapshot is used; 0 gathers the
+     * addresses on every call.
+     */
+    public CachingMacAddressProvider(MacAddressProvider provider, long refreshMillis) {
+        if (provider == null) {
+            throw new NullPointerException("provider");
+        }
+        if (refreshMillis < 0) {
+            throw new IllegalArgumentException("refreshMillis must not be negative");
+        }
+        this.provider = provider;
+        this.refreshNanos = TimeUnit.MILLISECONDS.toNanos(refreshMillis);
+    }
+
+    /**
+     * @return An unmodifiable snapshot of the host's addresses, no older
+     * than the refresh interval.
+     */
+    public Set<String> getSystemMacAddresses() {
+        Set<String> current = addresses;
+        if (current != null && System.nanoTime() - expires < 0) {
+            return current;
+        }
+        synchronized (this) {
+            if (addresses == null || System.nanoTime() - expires >= 0) {
+                refresh();
+            }
+            return addresses;
+        }
+    }
+
+    /**
+     * Gather the addresses now, as after a network change the interval
+     * would otherwise hide.
+     */
+    public synchronized void refresh() {
+        long start = System.nanoTime();
+        Set<String> found = provider.getSystemMacAddresses();
+        addresses = Collections.unmodifiableSet(found == null ? Collections.<String>emptySet() :
+                new LinkedHashSet<String>(found));
+        LOOKUP_TIMER.record(start);
+        expires = System.nanoTime() + refreshNanos;
+    }
+
+    public String getName() {
+        return "Caching " + provider.getName();
+    }
+
+    public String getVersion() {
+        return provider.getVersion();
+    }
+}
@@ -0,0 +1,337 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import net.padlocksoftware.padlock.license.License;
+
+/**
+ * Answers which licenses expire in a date range, or float for at most a
+ * given period, without reading the licenses themselves.  Written by
+ * ExpirationIndexWriter.
+ *
+ * <pre>
+ *   index             magic "PLEX", version, dated count, floating count,
+ *                     then one slot per 16 bytes, first sorted by
+ *                     expiration date and then by floating period:
+ *                       key      long    ms since the epoch, or ms
+ *                       offset   long    offset of the license id
+ *                     then the ids, each a short length and UTF-8
+ *   index.log         journal of licenses issued since the index was
+ *                     built, each an int length, then the id, expiration
+ *                     and floating period as written by DataOutput
+ * </pre>
+ *
+ * The index is memory mapped, so a query costs a binary search and the
+ * slots in range.  The journal is read whole on open; an entry in it
+ * replaces any entry for the same id in the index.  Licenses without an
+ * expiration date or floating period never expire and are not listed.
+ * Safe for use from multiple threads.
+ */
+public final class ExpirationIndex {
+
+    static final int MAGIC = 0x504c4558;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int SLOT_SIZE = 16;
+    static final String JOURNAL_SUFFIX = ".log";
+    static final long NONE = Long.MIN_VALUE;
+
+    /**
+     * When one license id expires.
+     */
+    public static final class Entry {
+
+        private final String id;
+        private final long expiration;
+        private final long floatingPeriod;
+
+        Entry(String id, long expiration, long floatingPeriod) {
+            this.id = id;
+            this.expiration = expiration;
+            this.floatingPeriod = floatingPeriod;
+        }
+
+        public static Entry fromLicense(String id, License license) {
+            Date expiration = license.getExpirationDate();
+            Long floatingPeriod = license.getFloatingExpirationPeriod();
+            return new Entry(id, expiration != null ? expiration.getTime() : NONE,
+                    floatingPeriod != null ? floatingPeriod.longValue() : NONE);
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * @return The fixed expiration date, or null.
+         */
+        public Date getExpirationDate() {
+            return expiration != NONE ? new Date(expiration) : null;
+        }
+
+        /**
+         * @return ms the license runs for after its first run, or null.
+         */
+        public Long getFloatingExpirationPeriod() {
+            return floatingPeriod != NONE ? Long.valueOf(floatingPeriod) : null;
+        }
+
+        long getExpiration() {
+            return expiration;
+        }
+
+        long getFloatingPeriod() {
+            return floatingPeriod;
+        }
+    }
+
+    private static final Comparator<Entry> BY_EXPIRATION = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            return compareLongs(a.expiration, b.expiration);
+        }
+    };
+
+    private static final Comparator<Entry> BY_FLOATING_PERIOD = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            return compareLongs(a.floatingPeriod, b.floatingPeriod);
+        }
+    };
+
+    private final ByteBuffer index;
+    private final int datedCount;
+    private final int floatingCount;
+    private final Map<String, Entry> journal;
+
+    private ExpirationIndex(File file) throws IOException {
+        if (file.exists()) {
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = in.getChannel();
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new IOException("Invalid expiration index: " + file);
+                }
+                index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                // The mapping stays valid after the file is closed
+                in.close();
+            }
+
+            if (index.capacity() < HEADER_SIZE || index.getInt(0) != MAGIC || index.getInt(4) != VERSION) {
+                throw new IOException("Not an expiration index: " + file);
+            }
+            datedCount = index.getInt(8);
+            floatingCount = index.getInt(12);
+            if (datedCount < 0 || floatingCount < 0 ||
+                    HEADER_SIZE + ((long) datedCount + floatingCount) * SLOT_SIZE > index.capacity()) {
+                throw new IOException("Invalid expiration index: " + file);
+            }
+        } else {
+            index = null;
+            datedCount = 0;
+            floatingCount = 0;
+        }
+        journal = readJournal(journalFile(file));
+    }
+
+    /**
+     * Open an index and its journal.  An index that has not been built yet
+     * is empty apart from its journal.
+     */
+    public static ExpirationIndex open(File file) throws IOException {
+        return new ExpirationIndex(file);
+    }
+
+    static File journalFile(File index) {
+        return new File(index.getPath() + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * @return The number of licenses with an expiration date in the index,
+     * not counting the journal.
+     */
+    public int getDatedCount() {
+        return datedCount;
+    }
+
+    /**
+     * @return The number of licenses with a floating period in the index,
+     * not counting the journal.
+     */
+    public int getFloatingCount() {
+        return floatingCount;
+    }
+
+    /**
+     * @return The number of licenses issued since the index was built.
+     */
+    public int getJournalCount() {
+        return journal.size();
+    }
+
+    /**
+     * @return The licenses whose expiration date is in [from, to], ordered
+     * by expiration date.
+     */
+    public List<Entry> expiringBetween(Date from, Date to) throws IOException {
+        List<Entry> found = find(HEADER_SIZE, datedCount, from.getTime(), to.getTime(), true);
+        for (Entry entry : journal.values()) {
+            if (entry.expiration != NONE && entry.expiration >= from.getTime() &&
+                    entry.expiration <= to.getTime()) {
+                found.add(entry);
+            }
+        }
+        Collections.sort(found, BY_EXPIRATION);
+        return found;
+    }
+
+    /**
+     * @return The floating licenses that run for at most period ms after
+     * their first run, ordered by period.
+     */
+    public List<Entry> floatingAtMost(long period) throws IOException {
+        List<Entry> found = find(HEADER_SIZE + datedCount * SLOT_SIZE, floatingCount, 0, period, false);
+        for (Entry entry : journal.values()) {
+            if (entry.floatingPeriod != NONE && entry.floatingPeriod <= period) {
+                found.add(entry);
+            }
+        }
+        Collections.sort(found, BY_FLOATING_PERIOD);
+        return found;
+    }
+
+    /**
+     * @return The entries of the sorted table at start whose key is in
+     * [from, to], leaving out ids the journal has newer entries for.
+     */
+    private List<Entry> find(int start, int count, long from, long to, boolean dated) throws IOException {
+        List<Entry> found = new ArrayList<Entry>();
+        if (index == null) {
+            return found;
+        }
+
+        //
+        // Find the first slot with a key >= from
+        //
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (index.getLong(start + middle * SLOT_SIZE) < from) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        for (int slot = low; slot < count; slot++) {
+            int position = start + slot * SLOT_SIZE;
+            long key = index.getLong(position);
+            if (key > to) {
+                break;
+            }
+            String id = readId(index.getLong(position + 8));
+            if (!journal.containsKey(id)) {
+                found.add(dated ? new Entry(id, key, NONE) : new Entry(id, NONE, key));
+            }
+        }
+        return found;
+    }
+
+    private String readId(long offset) throws IOException {
+        if (offset < 0 || offset + 2 > index.capacity()) {
+            throw new IOException("Corrupt expiration index entry at " + offset);
+        }
+        ByteBuffer buffer = index.duplicate();
+        buffer.position((int) offset);
+        int length = buffer.getShort() & 0xffff;
+        if (length > buffer.remaining()) {
+            throw new IOException("Corrupt expiration index entry at " + offset);
+        }
+        byte[] id = new byte[length];
+        buffer.get(id);
+        try {
+            return new String(id, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            // Every Java platform is required to support UTF-8
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * @return The journal's entries by id, the last one for each id.  A
+     * torn final entry, left by a writer that crashed, is ignored.
+     */
+    static Map<String, Entry> readJournal(File journal) throws IOException {
+        Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+        if (!journal.exists()) {
+            return entries;
+        }
+
+        byte[] bytes = new byte[(int) journal.length()];
+        InputStream in = new FileInputStream(journal);
+        try {
+            int read = 0;
+            int n;
+            while (read < bytes.length && (n = in.read(bytes, read, bytes.length - read)) != -1) {
+                read += n;
+            }
+        } finally {
+            in.close();
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.remaining() >= 4) {
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                break;
+            }
+            DataInputStream entry = new DataInputStream(new ByteArrayInputStream(bytes, buffer.position(), length));
+            String id = entry.readUTF();
+            entries.remove(id);
+            entries.put(id, new Entry(id, entry.readLong(), entry.readLong()));
+            buffer.position(buffer.position() + length);
+        }
+        return entries;
+    }
+
+    static int compareLongs(long a, long b) {
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+}
@@ -0,0 +1,251 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.common;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds expiration indexes and adds newly issued licenses to their
+ * journals.  See ExpirationIndex for the layout.
+ *
+ * Building replaces the index with one covering exactly the licenses
+ * given, writing it to a temporary file and renaming it into place.
+ * Journal entries already in the journal when the build started are then
+ * dropped, since the licenses they describe were written before the scan
+ * that produced the entries began.  Entries added during the build are
+ * kept.  Journal writers and the build take a file lock on the journal,
+ * so several processes may issue licenses while the index is rebuilt.
+ */
+public final class ExpirationIndexWriter {
+
+    private final RandomAccessFile file;
+    private final FileChannel journal;
+
+    /**
+     * Open an index's journal for adding licenses to.
+     */
+    public ExpirationIndexWriter(File index) throws IOException {
+        file = new RandomAccessFile(ExpirationIndex.journalFile(index), "rw");
+        journal = file.getChannel();
+    }
+
+    /**
+     * Record a newly issued license.  Replaces any earlier entry for the
+     * same id.
+     */
+    public synchronized void add(ExpirationIndex.Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeUTF(entry.getId());
+        out.writeLong(entry.getExpiration());
+        out.writeLong(entry.getFloatingPeriod());
+
+        ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        record.putInt(0, record.capacity() - 4);
+
+        FileLock lock = journal.lock();
+        try {
+            long position = journal.size();
+            while (record.hasRemaining()) {
+                position += journal.write(record, position);
+            }
+        } finally {
+            lock.release();
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Replace an index with one of the given licenses.  Later entries for
+     * an id replace earlier ones.
+     *
+     * @return The number of licenses indexed, those that expire or float.
+     */
+    public static int build(File index, Iterator<ExpirationIndex.Entry> entries) throws IOException {
+        File journalFile = ExpirationIndex.journalFile(index);
+        long journalLength = lockedLength(journalFile);
+
+        Map<String, ExpirationIndex.Entry> byId = new LinkedHashMap<String, ExpirationIndex.Entry>();
+        while (entries.hasNext()) {
+            ExpirationIndex.Entry entry = entries.next();
+            if (entry.getExpiration() != ExpirationIndex.NONE ||
+                    entry.getFloatingPeriod() != ExpirationIndex.NONE) {
+                byId.put(entry.getId(), entry);
+            } else {
+                byId.remove(entry.getId());
+            }
+        }
+
+        write(index, new ArrayList<ExpirationIndex.Entry>(byId.values()));
+        if (journalLength > 0) {
+            dropJournalHead(journalFile, journalLength);
+        }
+        return byId.size();
+    }
+
+    private static void write(File index, List<ExpirationIndex.Entry> entries) throws IOException {
+        List<ExpirationIndex.Entry> dated = new ArrayList<ExpirationIndex.Entry>();
+        List<ExpirationIndex.Entry> floating = new ArrayList<ExpirationIndex.Entry>();
+        for (ExpirationIndex.Entry entry : entries) {
+            if (entry.getExpiration() != ExpirationIndex.NONE) {
+                dated.add(entry);
+            }
+            if (entry.getFloatingPeriod() != ExpirationIndex.NONE) {
+                floating.add(entry);
+            }
+        }
+        ExpirationIndex.Entry[] byExpiration = dated.toArray(new ExpirationIndex.Entry[dated.size()]);
+        Arrays.sort(byExpiration, new Comparator<ExpirationIndex.Entry>() {
+            public int compare(ExpirationIndex.Entry a, ExpirationIndex.Entry b) {
+                return ExpirationIndex.compareLongs(a.getExpiration(), b.getExpiration());
+            }
+        });
+        ExpirationIndex.Entry[] byPeriod = floating.toArray(new ExpirationIndex.Entry[floating.size()]);
+        Arrays.sort(byPeriod, new Comparator<ExpirationIndex.Entry>() {
+            public int compare(ExpirationIndex.Entry a, ExpirationIndex.Entry b) {
+                return ExpirationIndex.compareLongs(a.getFloatingPeriod(), b.getFloatingPeriod());
+            }
+        });
+
+        //
+        // Ids follow the slots, each written once even when a license is
+        // in both tables
+        //
+        Map<String, Long> offsets = new LinkedHashMap<String, Long>();
+        long offset = ExpirationIndex.HEADER_SIZE +
+                (long) (byExpiration.length + byPeriod.length) * ExpirationIndex.SLOT_SIZE;
+        for (ExpirationIndex.Entry entry : entries) {
+            offsets.put(entry.getId(), offset);
+            offset += 2 + LicenseArchive.utf8(entry.getId()).length;
+        }
+        if (offset > Integer.MAX_VALUE) {
+            throw new IOException("Too many licenses for one expiration index");
+        }
+
+        File temp = new File(index.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 64 * 1024));
+        try {
+            out.writeInt(ExpirationIndex.MAGIC);
+            out.writeInt(ExpirationIndex.VERSION);
+            out.writeInt(byExpiration.length);
+            out.writeInt(byPeriod.length);
+            for (ExpirationIndex.Entry entry : byExpiration) {
+                out.writeLong(entry.getExpiration());
+                out.writeLong(offsets.get(entry.getId()));
+            }
+            for (ExpirationIndex.Entry entry : byPeriod) {
+                out.writeLong(entry.getFloatingPeriod());
+                out.writeLong(offsets.get(entry.getId()));
+            }
+            for (String id : offsets.keySet()) {
+                byte[] bytes = LicenseArchive.utf8(id);
+                if (bytes.length > 0xffff) {
+                    throw new IOException("License id too long: " + id);
+                }
+                out.writeShort(bytes.length);
+                out.write(bytes);
+            }
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        if (!temp.renameTo(index) && !(index.delete() && temp.renameTo(index))) {
+            throw new IOException("Unable to replace expiration index: " + index);
+        }
+    }
+
+    /**
+     * @return The journal's length, taken under its lock so no entry is
+     * half written.
+     */
+    private static long lockedLength(File journalFile) throws IOException {
+        if (!journalFile.exists()) {
+            return 0;
+        }
+        RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+        try {
+            FileLock lock = file.getChannel().lock();
+            try {
+                return file.getChannel().size();
+            } finally {
+                lock.release();
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Remove the first length bytes of the journal, keeping what was
+     * added after them.
+     */
+    private static void dropJournalHead(File journalFile, long length) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            FileLock lock = channel.lock();
+            try {
+                ByteBuffer tail = ByteBuffer.allocate((int) (channel.size() - length));
+                while (tail.hasRemaining()) {
+                    if (channel.read(tail, length + tail.position()) < 0) {
+                        throw new IOException("Journal shrank while rebuilding: " + journalFile);
+                    }
+                }
+                tail.flip();
+                channel.truncate(0);
+                long position = 0;
+                while (tail.hasRemaining()) {
+                    position += channel.write(tail, position);
+                }
+                channel.force(false);
+            } finally {
+                lock.release();
+            }
+        } finally {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Which licenses are locked to which hardware addresses, and which
+ * addresses are on more than one license.  Written by
+ * HardwareIndexWriter.
+ *
+ * <pre>
+ *   magic "PLHX", version, address count, license count, posting count,
+ *   shared count, then:
+ *     addresses  16 bytes each, sorted by address:
+ *                  address  long    the 48 bit MAC address
+ *                  first    int     index of its first posting
+ *                  count    int     number of licenses locked to it
+ *     shared     int index of each address on two or more licenses,
+ *                most licenses first
+ *     postings   int license number of each address's licenses, in order
+ *     licenses   int offset of each license's id within the ids
+ *     ids        short length, then UTF-8, per license
+ * </pre>
+ *
+ * The whole index is memory mapped and nothing is read into the heap up
+ * front, so opening costs the same for any size and a lookup is a binary
+ * search plus one read per license found.  Safe for use from multiple
+ * threads.
+ */
+public final class HardwareIndex {
+
+    static final int MAGIC = 0x504c4858;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int ADDRESS_SIZE = 16;
+
+    /**
+     * One hardware address and the licenses locked to it.
+     */
+    public static final class Address {
+
+        private final String address;
+        private final List<String> licenses;
+
+        Address(String address, List<String> licenses) {
+            this.address = address;
+            this.licenses = licenses;
+        }
+
+        /**
+         * @return The address as lower case, colon separated hex.
+         */
+        public String getAddress() {
+            return address;
+        }
+
+        /**
+         * @return The ids of the licenses locked to the address.
+         */
+        public List<String> getLicenses() {
+            return licenses;
+        }
+    }
+
+    private final ByteBuffer index;
+    private final int addressCount;
+    private final int licenseCount;
+    private final int postingCount;
+    private final int sharedCount;
+    private final int sharedStart;
+    private final int postingsStart;
+    private final int licensesStart;
+    private final int idsStart;
+
+    private HardwareIndex(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Invalid hardware index: " + file);
+            }
+            index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            // The mapping stays valid after the file is closed
+            in.close();
+        }
+
+        if (index.capacity() < HEADER_SIZE || index.getInt(0) != MAGIC || index.getInt(4) != VERSION) {
+            throw new IOException("Not a hardware index: " + file);
+        }
+        addressCount = index.getInt(8);
+        licenseCount = index.getInt(12);
+        postingCount = index.getInt(16);
+        sharedCount = index.getInt(20);
+
+        long shared = HEADER_SIZE + (long) addressCount * ADDRESS_SIZE;
+        long postings = shared + (long) sharedCount * 4;
+        long licenses = postings + (long) postingCount * 4;
+        long ids = licenses + (long) licenseCount * 4;
+        if (addressCount < 0 || licenseCount < 0 || postingCount < 0 || sharedCount < 0 ||
+                sharedCount > addressCount || ids > index.capacity()) {
+            throw new IOException("Invalid hardware index: " + file);
+        }
+        sharedStart = (int) shared;
+        postingsStart = (int) postings;
+        licensesStart = (int) licenses;
+        idsStart = (int) ids;
+    }
+
+    public static HardwareIndex open(File file) throws IOException {
+        return new HardwareIndex(file);
+    }
+
+    /**
+     * @return The number of distinct addresses.
+     */
+    public int getAddressCount() {
+        return addressCount;
+    }
+
+    /**
+     * @return The number of licenses indexed, locked or not.
+     */
+    public int getLicenseCount() {
+        return licenseCount;
+    }
+
+    /**
+     * @return The number of addresses on two or more licenses.
+     */
+    public int getSharedCount() {
+        return sharedCount;
+    }
+
+    /**
+     * @return The address and the licenses locked to it, or null if there
+     * are none or the address is not a MAC address.
+     */
+    public Address lookup(String address) throws IOException {
+        long mac = parseAddress(address);
+        if (mac < 0) {
+            return null;
+        }
+
+        int low = 0;
+        int high = addressCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long found = index.getLong(HEADER_SIZE + middle * ADDRESS_SIZE);
+            if (found < mac) {
+                low = middle + 1;
+            } else if (found > mac) {
+                high = middle - 1;
+            } else {
+                return new Address(formatAddress(mac), licenses(middle));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The addresses on at least minLicenses licenses, most
+     * licenses first, at most limit of them.
+     */
+    public List<Address> shared(int minLicenses, int limit) throws IOException {
+        List<Address> found = new ArrayList<Address>();
+        for (int x = 0; x < sharedCount && found.size() < limit; x++) {
+            int address = index.getInt(sharedStart + x * 4);
+            if (index.getInt(HEADER_SIZE + address * ADDRESS_SIZE + 12) < minLicenses) {
+                break;
+            }
+            found.add(new Address(formatAddress(index.getLong(HEADER_SIZE + address * ADDRESS_SIZE)),
+                    licenses(address)));
+        }
+        return found;
+    }
+
+    private List<String> licenses(int address) throws IOException {
+        int position = HEADER_SIZE + address * ADDRESS_SIZE;
+        int first = index.getInt(position + 8);
+        int count = index.getInt(position + 12);
+        if (first < 0 || count < 0 || (long) first + count > postingCount) {
+            throw new IOException("Corrupt hardware index address " + address);
+        }
+
+        List<String> ids = new ArrayList<String>(count);
+        for (int x = 0; x < count; x++) {
+            ids.add(readId(index.getInt(postingsStart + (first + x) * 4)));
+        }
+        return ids;
+    }
+
+    private String readId(int license) throws IOException {
+        if (license < 0 || license >= licenseCount) {
+            throw new IOException("Corrupt hardware index license " + license);
+        }
+        long offset = idsStart + (long) index.getInt(licensesStart + license * 4);
+        if (offset + 2 > index.capacity()) {
+            throw new IOException("Corrupt hardware index license " + license);
+        }
+        ByteBuffer buffer = index.duplicate();
+        buffer.position((int) offset);
+        int length = buffer.getShort() & 0xffff;
+        if (length > buffer.remaining()) {
+            throw new IOException("Corrupt hardware index license " + license);
+        }
+        byte[] id = new byte[length];
+        buffer.get(id);
+        try {
+            return new String(id, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            // Every Java platform is required to support UTF-8
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * @return A 48 bit MAC address written as 12 hex digits, in any case
+     * and with any ':', '-' or '.' separators, as a long, or -1 if it is
+     * not one.
+     */
+    static long parseAddress(String address) {
+        long mac = 0;
+        int digits = 0;
+        for (int x = 0; x < address.length(); x++) {
+            char c = address.charAt(x);
+            int digit = Character.digit(c, 16);
+            if (digit >= 0) {
+                if (++digits > 12) {
+                    return -1;
+                }
+                mac = mac << 4 | digit;
+            } else if (c != ':' && c != '-' && c != '.' && !Character.isWhitespace(c)) {
+                return -1;
+            }
+        }
+        return digits == 12 ? mac : -1;
+    }
+
+    static String formatAddress(long mac) {
+        StringBuilder sb = new StringBuilder(17);
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            if (sb.length() > 0) {
+                sb.append(':');
+            }
+            int b = (int) (mac >>> shift) & 0xff;
+            sb.append(Character.forDigit(b >>> 4, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
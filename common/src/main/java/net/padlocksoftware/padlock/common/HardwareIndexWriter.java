@@ -0,0 +1,345 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Builds a HardwareIndex.  See HardwareIndex for the layout.
+ *
+ * Built for stores of tens of millions of licenses: all state is kept in
+ * a handful of primitive arrays rather than one object per address or
+ * license, so the garbage collector has next to nothing to trace.
+ * Addresses are numbered as they are first seen, through an open
+ * addressing hash table of longs, and each (address, license) pair is
+ * packed into a single long so the postings sort with Arrays.sort.
+ * License ids are streamed to a temporary file rather than held in
+ * memory.
+ *
+ * Not safe for use from multiple threads.
+ */
+public final class HardwareIndexWriter {
+
+    private static final int INITIAL_SIZE = 1024;
+
+    private final File index;
+    private final File idsFile;
+    private final DataOutputStream ids;
+    private int idsLength = 0;
+    private int[] idOffsets = new int[INITIAL_SIZE];
+    private int licenseCount = 0;
+
+    private long[] tableAddresses = new long[INITIAL_SIZE * 2];
+    private int[] tableNumbers = new int[INITIAL_SIZE * 2];
+    private long[] addresses = new long[INITIAL_SIZE];
+    private int addressCount = 0;
+
+    private long[] postings = new long[INITIAL_SIZE];
+    private int postingCount = 0;
+    private long skipped = 0;
+
+    /**
+     * Start building an index, to replace the given file on close().
+     */
+    public HardwareIndexWriter(File index) throws IOException {
+        this.index = index;
+        this.idsFile = new File(index.getPath() + ".ids.tmp");
+        this.ids = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(idsFile), 64 * 1024));
+        Arrays.fill(tableNumbers, -1);
+    }
+
+    /**
+     * Add a license and the hardware addresses it is locked to.  Addresses
+     * that are not 48 bit MAC addresses are counted and left out.
+     */
+    public void add(String id, Collection<String> hardwareAddresses) throws IOException {
+        byte[] bytes = LicenseArchive.utf8(id);
+        if (bytes.length > 0xffff) {
+            throw new IOException("License id too long: " + id);
+        }
+        if (licenseCount == Integer.MAX_VALUE - 8 || (long) idsLength + 2 + bytes.length > Integer.MAX_VALUE) {
+            throw new IOException("Too many licenses for one hardware index");
+        }
+
+        if (licenseCount == idOffsets.length) {
+            idOffsets = copy(idOffsets, grow(idOffsets.length));
+        }
+        idOffsets[licenseCount] = idsLength;
+        ids.writeShort(bytes.length);
+        ids.write(bytes);
+        idsLength += 2 + bytes.length;
+        int license = licenseCount++;
+
+        for (String address : hardwareAddresses) {
+            long mac = HardwareIndex.parseAddress(address);
+            if (mac < 0) {
+                skipped++;
+                continue;
+            }
+            if (postingCount == postings.length) {
+                if (postingCount == Integer.MAX_VALUE - 8) {
+                    throw new IOException("Too many hardware addresses for one hardware index");
+                }
+                postings = copy(postings, grow(postings.length));
+            }
+            postings[postingCount++] = (long) number(mac) << 32 | license;
+        }
+    }
+
+    /**
+     * @return The number of addresses left out as not MAC addresses.
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+
+    public int getLicenseCount() {
+        return licenseCount;
+    }
+
+    public int getAddressCount() {
+        return addressCount;
+    }
+
+    /**
+     * @return The number of the address, numbering it if it is new.
+     */
+    private int number(long mac) {
+        int mask = tableNumbers.length - 1;
+        int slot = LicenseArchive.slot(mix(mac), mask);
+        while (tableNumbers[slot] >= 0) {
+            if (tableAddresses[slot] == mac) {
+                return tableNumbers[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (addressCount == addresses.length) {
+            addresses = copy(addresses, grow(addresses.length));
+        }
+        addresses[addressCount] = mac;
+        tableAddresses[slot] = mac;
+        tableNumbers[slot] = addressCount;
+        addressCount++;
+
+        if (addressCount > tableNumbers.length / 4 * 3) {
+            rehash(tableNumbers.length * 2);
+        }
+        return addressCount - 1;
+    }
+
+    private void rehash(int slots) {
+        tableAddresses = new long[slots];
+        tableNumbers = new int[slots];
+        Arrays.fill(tableNumbers, -1);
+        int mask = slots - 1;
+        for (int number = 0; number < addressCount; number++) {
+            int slot = LicenseArchive.slot(mix(addresses[number]), mask);
+            while (tableNumbers[slot] >= 0) {
+                slot = (slot + 1) & mask;
+            }
+            tableAddresses[slot] = addresses[number];
+            tableNumbers[slot] = number;
+        }
+    }
+
+    /**
+     * MurmurHash3's finalizer, since MAC addresses from one vendor share
+     * their high bits.
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static int grow(int length) {
+        return (int) Math.min(Integer.MAX_VALUE - 8, length * 2L);
+    }
+
+    private static int[] copy(int[] array, int length) {
+        int[] copy = new int[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+
+    /**
+     * @return The index of the key in the first length entries of the
+     * sorted array, which must hold it.
+     */
+    private static int search(long[] sorted, int length, long key) {
+        int low = 0;
+        int high = length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static long[] copy(long[] array, int length) {
+        long[] copy = new long[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+
+    /**
+     * Sort the postings and write the index.
+     */
+    public void close() throws IOException {
+        ids.close();
+        try {
+            write();
+        } finally {
+            idsFile.delete();
+        }
+    }
+
+    private void write() throws IOException {
+        //
+        // Renumber addresses in address order, then sort the postings by
+        // address and license with duplicates removed.  The hash table
+        // still maps each address to its old number, so the addresses are
+        // sorted in place and the table dropped once they are ranked.
+        //
+        long[] sorted = addresses;
+        Arrays.sort(sorted, 0, addressCount);
+        int[] rank = new int[addressCount];
+        for (int slot = 0; slot < tableNumbers.length; slot++) {
+            if (tableNumbers[slot] >= 0) {
+                rank[tableNumbers[slot]] = search(sorted, addressCount, tableAddresses[slot]);
+            }
+        }
+        tableAddresses = null;
+        tableNumbers = null;
+        for (int x = 0; x < postingCount; x++) {
+            postings[x] = (long) rank[(int) (postings[x] >>> 32)] << 32 | (postings[x] & 0xffffffffL);
+        }
+        rank = null;
+        Arrays.sort(postings, 0, postingCount);
+
+        int unique = 0;
+        for (int x = 0; x < postingCount; x++) {
+            if (unique == 0 || postings[x] != postings[unique - 1]) {
+                postings[unique++] = postings[x];
+            }
+        }
+
+        int[] first = new int[addressCount];
+        int[] count = new int[addressCount];
+        for (int x = 0; x < unique; x++) {
+            int address = (int) (postings[x] >>> 32);
+            if (count[address]++ == 0) {
+                first[address] = x;
+            }
+        }
+
+        //
+        // Shared addresses, most licenses first, packed as
+        // (MAX - count, address) so they also sort as longs
+        //
+        int sharedCount = 0;
+        for (int address = 0; address < addressCount; address++) {
+            if (count[address] > 1) {
+                sharedCount++;
+            }
+        }
+        long[] shared = new long[sharedCount];
+        sharedCount = 0;
+        for (int address = 0; address < addressCount; address++) {
+            if (count[address] > 1) {
+                shared[sharedCount++] = (long) (Integer.MAX_VALUE - count[address]) << 32 | address;
+            }
+        }
+        Arrays.sort(shared);
+
+        long size = HardwareIndex.HEADER_SIZE + (long) addressCount * HardwareIndex.ADDRESS_SIZE +
+                4L * (sharedCount + unique + licenseCount) + idsLength;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Too many licenses for one hardware index");
+        }
+
+        File temp = new File(index.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 64 * 1024));
+        try {
+            out.writeInt(HardwareIndex.MAGIC);
+            out.writeInt(HardwareIndex.VERSION);
+            out.writeInt(addressCount);
+            out.writeInt(licenseCount);
+            out.writeInt(unique);
+            out.writeInt(sharedCount);
+            out.writeLong(0);
+
+            for (int address = 0; address < addressCount; address++) {
+                out.writeLong(sorted[address]);
+                out.writeInt(first[address]);
+                out.writeInt(count[address]);
+            }
+            for (long address : shared) {
+                out.writeInt((int) address);
+            }
+            for (int x = 0; x < unique; x++) {
+                out.writeInt((int) postings[x]);
+            }
+            for (int license = 0; license < licenseCount; license++) {
+                out.writeInt(idOffsets[license]);
+            }
+
+            InputStream in = new BufferedInputStream(new FileInputStream(idsFile), 64 * 1024);
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        if (!temp.renameTo(index) && !(index.delete() && temp.renameTo(index))) {
+            throw new IOException("Unable to replace hardware index: " + index);
+        }
+    }
+}
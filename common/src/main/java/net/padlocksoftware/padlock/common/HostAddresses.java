@@ -0,0 +1,80 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.common;
+
+import java.util.Set;
+import net.padlocksoftware.padlock.DefaultMacAddressProvider;
+import net.padlocksoftware.padlock.MacAddressProvider;
+
+/**
+ * The host's hardware addresses, as the hardware test sees them.  By
+ * default they come from the library's DefaultMacAddressProvider through
+ * a CachingMacAddressProvider, so every license checked in the JVM shares
+ * one lookup per refresh interval.
+ *
+ * The library's own MacAddresses.setMacAddressProvider() does nothing in
+ * the version this project builds against, so tests and tools stub the
+ * addresses here instead.  The library's Validator still asks
+ * MacAddresses directly.
+ */
+public final class HostAddresses {
+
+    private static volatile MacAddressProvider provider = new CachingMacAddressProvider(
+            new DefaultMacAddressProvider(), CachingMacAddressProvider.DEFAULT_REFRESH_MILLIS);
+
+    private HostAddresses() {
+    }
+
+    /**
+     * @return The host's addresses from the current provider.
+     */
+    public static Set<String> get() {
+        return provider.getSystemMacAddresses();
+    }
+
+    public static MacAddressProvider getProvider() {
+        return provider;
+    }
+
+    /**
+     * Replace the provider, for instance with a stub returning fixed
+     * addresses.  The provider is called on every hardware test, so one
+     * that is slow should be wrapped in a CachingMacAddressProvider.
+     */
+    public static void setProvider(MacAddressProvider provider) {
+        if (provider == null) {
+            throw new NullPointerException("provider");
+        }
+        HostAddresses.provider = provider;
+    }
+
+    /**
+     * Use the library's default provider, gathering the addresses again
+     * after the given interval.
+     *
+     * @param refreshMillis 0 gathers them on every call.
+     */
+    public static void setRefreshInterval(long refreshMillis) {
+        setProvider(new CachingMacAddressProvider(new DefaultMacAddressProvider(), refreshMillis));
+    }
+}
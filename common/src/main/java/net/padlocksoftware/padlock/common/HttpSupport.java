@@ -0,0 +1,97 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.common;
+
+import com.sun.net.httpserver.HttpExchange;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Helpers shared by the HTTP server modes of the command line tools.
+ */
+public final class HttpSupport {
+
+    private HttpSupport() {
+    }
+
+    /**
+     * Use one virtual thread per request when the runtime supports them,
+     * otherwise a fixed pool of platform threads.
+     */
+    public static ExecutorService createExecutor(int threads) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (Exception e) {
+            return Executors.newFixedThreadPool(threads);
+        }
+    }
+
+    /**
+     * @return The request body, or null if it is longer than maxSize bytes.
+     */
+    public static byte[] readBody(HttpExchange exchange, int maxSize) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            if (bytes.size() + n > maxSize) {
+                return null;
+            }
+            bytes.write(buffer, 0, n);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Answer a metrics request in the Prometheus text format, or as JSON if
+     * the query string asks for format=json.
+     */
+    public static void respondMetrics(HttpExchange exchange, Metrics metrics) throws IOException {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query != null && ("&" + query + "&").indexOf("&format=json&") >= 0) {
+            respond(exchange, 200, "application/json", metrics.toJson());
+        } else {
+            respond(exchange, 200, "text/plain; version=0.0.4", metrics.toPrometheus());
+        }
+    }
+
+    public static void respond(HttpExchange exchange, int status, String contentType, String body)
+            throws IOException {
+        respond(exchange, status, contentType + "; charset=UTF-8", body.getBytes("UTF-8"));
+    }
+
+    public static void respond(HttpExchange exchange, int status, String contentType, byte[] body)
+            throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+}
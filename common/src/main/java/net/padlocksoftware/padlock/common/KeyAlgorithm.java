@@ -0,0 +1,171 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.common;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidParameterException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.interfaces.DSAKey;
+import java.security.interfaces.ECKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+
+/**
+ * The key types licenses can be signed with, and the signature algorithm
+ * used for each.
+ *
+ * Only 1024 bit DSA keys, signed with SHA1withDSA, can be checked by the
+ * Padlock library's own Validator; that remains the default.  Larger DSA
+ * keys use SHA256withDSA, RSA keys SHA256withRSA, EC keys ECDSA with a
+ * digest matching the curve, and Ed25519 keys EdDSA.  EC needs Java 7 and
+ * Ed25519 Java 15 at runtime.
+ */
+public enum KeyAlgorithm {
+
+    DSA("DSA", 1024),
+    RSA("RSA", 2048),
+    EC("EC", 256),
+    ED25519("Ed25519", 255);
+
+    private static final Metrics.Timer GENERATE_TIMER = Metrics.getDefault().timer("key_generate",
+            "Time spent generating key pairs");
+
+    private final String name;
+    private final int defaultKeySize;
+
+    private KeyAlgorithm(String name, int defaultKeySize) {
+        this.name = name;
+        this.defaultKeySize = defaultKeySize;
+    }
+
+    /**
+     * @return The JCA name of the algorithm.
+     */
+    public String getName() {
+        return name;
+    }
+
+    public int getDefaultKeySize() {
+        return defaultKeySize;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the name is not a supported algorithm.
+     */
+    public static KeyAlgorithm forName(String name) {
+        for (KeyAlgorithm algorithm : values()) {
+            if (algorithm.name.equalsIgnoreCase(name)) {
+                return algorithm;
+            }
+        }
+
+        //
+        // Ed25519 keys report their algorithm as EdDSA
+        //
+        if ("EdDSA".equalsIgnoreCase(name)) {
+            return ED25519;
+        }
+        throw new IllegalArgumentException("Unsupported key algorithm: " + name);
+    }
+
+    public static KeyAlgorithm of(Key key) {
+        return forName(key.getAlgorithm());
+    }
+
+    /**
+     * Generate a new key pair.  Ed25519 keys have a fixed size.
+     */
+    public KeyPair generate(int keySize) throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance(name);
+        if (this == ED25519) {
+            if (keySize != defaultKeySize) {
+                throw new InvalidParameterException("Ed25519 keys are always " + defaultKeySize + " bits");
+            }
+        } else {
+            generator.initialize(keySize);
+        }
+
+        long start = GENERATE_TIMER.start();
+        try {
+            return generator.generateKeyPair();
+        } finally {
+            GENERATE_TIMER.record(start);
+        }
+    }
+
+    public PublicKey decodePublic(byte[] encoded) throws GeneralSecurityException {
+        return KeyFactory.getInstance(name).generatePublic(new X509EncodedKeySpec(encoded));
+    }
+
+    public PrivateKey decodePrivate(byte[] encoded) throws GeneralSecurityException {
+        return KeyFactory.getInstance(name).generatePrivate(new PKCS8EncodedKeySpec(encoded));
+    }
+
+    /**
+     * Decode an X.509 encoded public key of any supported algorithm.
+     */
+    public static PublicKey parsePublicKey(byte[] encoded) throws InvalidKeySpecException {
+        for (KeyAlgorithm algorithm : values()) {
+            try {
+                return algorithm.decodePublic(encoded);
+            } catch (GeneralSecurityException ex) {
+                // Not this algorithm, or no provider for it
+            }
+        }
+        throw new InvalidKeySpecException("Unrecognized public key");
+    }
+
+    /**
+     * @return The JCA signature algorithm licenses are signed with using
+     * this key, or its counterpart.
+     */
+    public static String signatureAlgorithm(Key key) {
+        switch (of(key)) {
+            case DSA:
+                return ((DSAKey) key).getParams().getP().bitLength() <= 1024 ?
+                        "SHA1withDSA" : "SHA256withDSA";
+            case RSA:
+                return "SHA256withRSA";
+            case EC:
+                int size = ((ECKey) key).getParams().getCurve().getField().getFieldSize();
+                return size <= 256 ? "SHA256withECDSA" : size <= 384 ?
+                        "SHA384withECDSA" : "SHA512withECDSA";
+            default:
+                return "Ed25519";
+        }
+    }
+
+    /**
+     * @return true if licenses signed with this key, or its counterpart, can
+     * be signed by LicenseSigner and checked by the library Validator.
+     */
+    public static boolean isLibraryCompatible(Key key) {
+        return "SHA1withDSA".equals(signatureAlgorithm(key));
+    }
+}
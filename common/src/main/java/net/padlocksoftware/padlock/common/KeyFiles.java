@@ -0,0 +1,118 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.common;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.Properties;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Reads and writes key pair files of any KeyAlgorithm.
+ *
+ * The layout is that of KeyManager: hex encoded "public" and "private"
+ * keys, plus an "algorithm" entry.  Files without one are DSA, as written
+ * by earlier versions, and 1024 bit DSA files can still be read by
+ * KeyManager.importKeyPair().
+ */
+public final class KeyFiles {
+
+    static final String PUBLIC = "public";
+    static final String PRIVATE = "private";
+    static final String ALGORITHM = "algorithm";
+
+    private static final Metrics.Timer IMPORT_TIMER = Metrics.getDefault().timer("key_import",
+            "Time spent reading key pair files");
+    private static final Metrics.Timer EXPORT_TIMER = Metrics.getDefault().timer("key_export",
+            "Time spent writing key pair files");
+
+    private KeyFiles() {
+    }
+
+    public static void exportKeyPair(KeyPair pair, File file) throws IOException {
+        long start = EXPORT_TIMER.start();
+        try {
+            export(pair, file);
+        } finally {
+            EXPORT_TIMER.record(start);
+        }
+    }
+
+    public static KeyPair importKeyPair(File file) throws IOException {
+        long start = IMPORT_TIMER.start();
+        try {
+            return load(file);
+        } finally {
+            IMPORT_TIMER.record(start);
+        }
+    }
+
+    private static void export(KeyPair pair, File file) throws IOException {
+        Properties props = new Properties();
+        props.setProperty(ALGORITHM, KeyAlgorithm.of(pair.getPublic()).getName());
+        props.setProperty(PUBLIC, new String(Hex.encodeHex(pair.getPublic().getEncoded())));
+        props.setProperty(PRIVATE, new String(Hex.encodeHex(pair.getPrivate().getEncoded())));
+
+        OutputStream out = new FileOutputStream(file);
+        try {
+            props.store(out, null);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static KeyPair load(File file) throws IOException {
+        Properties props = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            props.load(in);
+        } finally {
+            in.close();
+        }
+
+        String publicKey = props.getProperty(PUBLIC);
+        String privateKey = props.getProperty(PRIVATE);
+        if (publicKey == null || privateKey == null) {
+            throw new IOException("Invalid key file: " + file);
+        }
+
+        try {
+            KeyAlgorithm algorithm = KeyAlgorithm.forName(props.getProperty(ALGORITHM, "DSA"));
+            return new KeyPair(algorithm.decodePublic(Hex.decodeHex(publicKey.toCharArray())),
+                    algorithm.decodePrivate(Hex.decodeHex(privateKey.toCharArray())));
+        } catch (DecoderException ex) {
+            throw new IOException("Invalid key file: " + file + ": " + ex.getMessage());
+        } catch (GeneralSecurityException ex) {
+            throw new IOException("Invalid key file: " + file + ": " + ex.getMessage());
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("Invalid key file: " + file + ": " + ex.getMessage());
+        }
+    }
+}
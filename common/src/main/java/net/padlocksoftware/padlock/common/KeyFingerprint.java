@@ -0,0 +1,70 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.common;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Stable identifiers for public keys: the hex encoded SHA-256 digest of
+ * the key's X.509 encoding.
+ */
+public final class KeyFingerprint {
+
+    //
+    // MessageDigest.getInstance() looks the algorithm up through the
+    // providers each time, so each thread keeps one; digest() resets it
+    //
+    private static final ThreadLocal<MessageDigest> DIGESTS = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException ex) {
+                // Every Java platform is required to support SHA-256
+                throw new IllegalStateException(ex);
+            }
+        }
+    };
+
+    private KeyFingerprint() {
+    }
+
+    public static String of(PublicKey key) {
+        return of(key.getEncoded());
+    }
+
+    public static String of(byte[] encodedKey) {
+        return new String(Hex.encodeHex(sha256(encodedKey)));
+    }
+
+    /**
+     * @return The SHA-256 digest of the data, computed with this thread's
+     * MessageDigest.
+     */
+    public static byte[] sha256(byte[] data) {
+        return DIGESTS.get().digest(data);
+    }
+}
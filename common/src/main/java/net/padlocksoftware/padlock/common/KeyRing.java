@@ -0,0 +1,186 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import net.padlocksoftware.padlock.license.License;
+
+/**
+ * Key pairs indexed by the fingerprint of their public key, so the key a
+ * license was signed with can be found without trying each one.
+ *
+ * Licenses signed through LicenseKeySigner carry that fingerprint in the
+ * FINGERPRINT_PROPERTY property; it is covered by the signature like any
+ * other property.  Key pairs whose private key is not available, such as
+ * certificates in a keystore, hold a null private key and can only be used
+ * to verify.
+ *
+ * A ring is filled once and then only read.  Reading is safe from multiple
+ * threads; adding keys is not.
+ */
+public final class KeyRing {
+
+    public static final String FINGERPRINT_PROPERTY = "keyFingerprint";
+
+    private final Map<String, KeyPair> keys = new LinkedHashMap<String, KeyPair>();
+
+    /**
+     * Load the keys in a directory of key pair files, a PKCS#12 keystore
+     * ending in .p12 or .pfx, or a single key pair file.  The keystore
+     * password is read from the PADLOCK_KEYSTORE_PASSWORD environment
+     * variable, and is empty if it is not set.
+     */
+    public static KeyRing load(File file) throws IOException {
+        KeyRing ring = new KeyRing();
+        String name = file.getName().toLowerCase();
+        if (file.isDirectory()) {
+            new DirectoryKeyStorage(file).loadInto(ring);
+        } else if (name.endsWith(".p12") || name.endsWith(".pfx")) {
+            String password = System.getenv(Pkcs12KeyStorage.PASSWORD_VARIABLE);
+            new Pkcs12KeyStorage(file, password == null ? new char[0] : password.toCharArray()).loadInto(ring);
+        } else {
+            ring.add(KeyFiles.importKeyPair(file));
+        }
+
+        if (ring.size() == 0) {
+            throw new IOException("No keys in " + file);
+        }
+        return ring;
+    }
+
+    /**
+     * @return A ring holding only the given key.
+     */
+    public static KeyRing of(PublicKey publicKey) {
+        KeyRing ring = new KeyRing();
+        ring.add(new KeyPair(publicKey, null));
+        return ring;
+    }
+
+    /**
+     * @return The fingerprint a license names its signing key by, or null
+     * if it names none.
+     */
+    public static String fingerprintOf(License license) {
+        return license.getProperty(FINGERPRINT_PROPERTY);
+    }
+
+    /**
+     * Add a key pair, replacing any with the same public key.
+     *
+     * @return The fingerprint of its public key.
+     */
+    public String add(KeyPair pair) {
+        String fingerprint = KeyFingerprint.of(pair.getPublic());
+        keys.put(fingerprint, pair);
+        return fingerprint;
+    }
+
+    /**
+     * @return The key pair with this fingerprint, or null.
+     */
+    public KeyPair get(String fingerprint) {
+        return keys.get(fingerprint);
+    }
+
+    /**
+     * @return The key pair whose fingerprint starts with the given prefix,
+     * or null if there is none.
+     * @throws IllegalArgumentException if more than one key matches.
+     */
+    public KeyPair find(String prefix) {
+        String lower = prefix.toLowerCase();
+        KeyPair found = null;
+        for (Map.Entry<String, KeyPair> entry : keys.entrySet()) {
+            if (entry.getKey().startsWith(lower)) {
+                if (found != null) {
+                    throw new IllegalArgumentException("More than one key matches " + prefix);
+                }
+                found = entry.getValue();
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return The only key pair that can sign, or null if there is none or
+     * more than one.
+     */
+    public KeyPair getSigningKey() {
+        KeyPair found = null;
+        for (KeyPair pair : keys.values()) {
+            if (pair.getPrivate() != null) {
+                if (found != null) {
+                    return null;
+                }
+                found = pair;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return The fingerprints, in the order the keys were added.
+     */
+    public List<String> getFingerprints() {
+        return new ArrayList<String>(keys.keySet());
+    }
+
+    /**
+     * @return The key pairs, in the order they were added.
+     */
+    public List<KeyPair> getKeyPairs() {
+        return new ArrayList<KeyPair>(keys.values());
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    /**
+     * @return A fingerprint of the whole ring: that of its key when it
+     * holds one, otherwise a digest of its sorted key fingerprints, so it
+     * changes whenever a key is added or removed.
+     */
+    public String getFingerprint() {
+        if (keys.size() == 1) {
+            return keys.keySet().iterator().next();
+        }
+
+        String[] fingerprints = keys.keySet().toArray(new String[keys.size()]);
+        Arrays.sort(fingerprints);
+        StringBuilder joined = new StringBuilder();
+        for (String fingerprint : fingerprints) {
+            joined.append(fingerprint).append(',');
+        }
+        return KeyFingerprint.of(LicenseArchive.utf8(joined.toString()));
+    }
+}
@@ -0,0 +1,313 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Read access to an indexed license archive, an append-only file of
+ * licenses keyed by license id, written by LicenseArchiveWriter.
+ *
+ * <pre>
+ *   archive           magic "PLA" 0x00, version, then records of
+ *                       length   int     bytes that follow
+ *                       id       short length, then UTF-8
+ *                       license  exported license, text or binary
+ *   archive.idx       magic "PLIX", version, slot count, entry count,
+ *                     indexed data length, then one slot per 16 bytes:
+ *                       hash     long    64 bit hash of the id
+ *                       offset   long    record offset, 0 when empty
+ * </pre>
+ *
+ * The index is an open addressing hash table with linear probing, so a
+ * lookup touches one or two slots and one record.  Both files are memory
+ * mapped rather than read: opening costs the same for any archive size
+ * and only the pages a lookup touches are ever loaded.  Licenses appended
+ * after the index was last written are not visible until the writer
+ * closes.  Safe for use from multiple threads.
+ */
+public final class LicenseArchive {
+
+    static final int DATA_MAGIC = 0x504c4100;
+    static final int INDEX_MAGIC = 0x504c4958;
+    static final int VERSION = 1;
+    static final int DATA_HEADER_SIZE = 8;
+    static final int INDEX_HEADER_SIZE = 32;
+    static final int SLOT_SIZE = 16;
+    static final String INDEX_SUFFIX = ".idx";
+
+    /**
+     * Largest record, id and license together.
+     */
+    static final int MAX_RECORD_SIZE = 1 << 20;
+
+    /**
+     * Largest index, so it can be mapped as a single buffer.
+     */
+    static final int MAX_SLOTS = 1 << 26;
+
+    /**
+     * Data is mapped in segments of this size, each overlapping the next
+     * by MAX_RECORD_SIZE so every record lies whole within one segment.
+     */
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    private final RandomAccessFile data;
+    private final RandomAccessFile indexFile;
+    private final ByteBuffer index;
+    private final int mask;
+    private final int size;
+    private final long dataLength;
+    private final MappedByteBuffer[] segments;
+
+    private LicenseArchive(File archive) throws IOException {
+        File indexPath = indexFile(archive);
+        if (!indexPath.isFile()) {
+            throw new IOException("Missing archive index: " + indexPath);
+        }
+
+        data = new RandomAccessFile(archive, "r");
+        indexFile = new RandomAccessFile(indexPath, "r");
+        try {
+            if (data.length() < DATA_HEADER_SIZE || data.readInt() != DATA_MAGIC) {
+                throw new IOException("Not a license archive: " + archive);
+            }
+            if (data.readInt() != VERSION) {
+                throw new IOException("Unsupported license archive version: " + archive);
+            }
+
+            FileChannel channel = indexFile.getChannel();
+            index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (index.capacity() < INDEX_HEADER_SIZE || index.getInt(0) != INDEX_MAGIC ||
+                    index.getInt(4) != VERSION) {
+                throw new IOException("Invalid archive index: " + indexPath);
+            }
+
+            int slots = index.getInt(8);
+            size = index.getInt(12);
+            dataLength = index.getLong(16);
+            if (Integer.bitCount(slots) != 1 ||
+                    index.capacity() != INDEX_HEADER_SIZE + (long) slots * SLOT_SIZE ||
+                    dataLength > data.length()) {
+                throw new IOException("Archive index does not match archive: " + indexPath);
+            }
+            mask = slots - 1;
+            segments = new MappedByteBuffer[(int) ((dataLength + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+        } catch (IOException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    public static LicenseArchive open(File archive) throws IOException {
+        return new LicenseArchive(archive);
+    }
+
+    static File indexFile(File archive) {
+        return new File(archive.getPath() + INDEX_SUFFIX);
+    }
+
+    /**
+     * @return The number of distinct license ids in the archive.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The exported license stored under an id, or null.
+     */
+    public byte[] get(String id) throws IOException {
+        byte[] key = utf8(id);
+        long hash = hash(key);
+
+        for (int slot = slot(hash, mask); ; slot = (slot + 1) & mask) {
+            int position = INDEX_HEADER_SIZE + slot * SLOT_SIZE;
+            long offset = index.getLong(position + 8);
+            if (offset == 0) {
+                return null;
+            }
+            if (index.getLong(position) == hash) {
+                byte[] license = read(offset, key);
+                if (license != null) {
+                    return license;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Every license in the archive, the latest stored under each
+     * id, in no particular order.  Read errors are thrown as
+     * IllegalStateException.
+     */
+    public Iterator<LicenseRecord> records() {
+        return new Iterator<LicenseRecord>() {
+            private int slot = advance(0);
+
+            private int advance(int from) {
+                while (from <= mask && index.getLong(INDEX_HEADER_SIZE + from * SLOT_SIZE + 8) == 0) {
+                    from++;
+                }
+                return from;
+            }
+
+            public boolean hasNext() {
+                return slot <= mask;
+            }
+
+            public LicenseRecord next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                long offset = index.getLong(INDEX_HEADER_SIZE + slot * SLOT_SIZE + 8);
+                slot = advance(slot + 1);
+                try {
+                    return read(offset);
+                } catch (IOException ex) {
+                    throw new IllegalStateException("Error reading license archive: " + ex.getMessage());
+                }
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * @return The id and license of the record at offset.
+     */
+    private LicenseRecord read(long offset) throws IOException {
+        ByteBuffer segment = record(offset);
+        int length = segment.getInt();
+        int idLength = segment.getShort() & 0xffff;
+        byte[] id = new byte[idLength];
+        segment.get(id);
+        byte[] license = new byte[length - 2 - idLength];
+        segment.get(license);
+        return new LicenseRecord(new String(id, "UTF-8"), license);
+    }
+
+    /**
+     * @return The license of the record at offset if its id is key,
+     * otherwise null.
+     */
+    private byte[] read(long offset, byte[] key) throws IOException {
+        ByteBuffer segment = record(offset);
+        int length = segment.getInt();
+        int idLength = segment.getShort() & 0xffff;
+        if (idLength != key.length) {
+            return null;
+        }
+        for (byte b : key) {
+            if (segment.get() != b) {
+                return null;
+            }
+        }
+
+        byte[] license = new byte[length - 2 - idLength];
+        segment.get(license);
+        return license;
+    }
+
+    /**
+     * @return A buffer positioned at the record at offset, once its lengths
+     * are known to keep it whole within the indexed data.  Offsets come
+     * from the index, which a crash or a bad copy can leave wrong.
+     */
+    private ByteBuffer record(long offset) throws IOException {
+        if (offset < DATA_HEADER_SIZE || offset > dataLength - 6) {
+            throw new IOException("Corrupt license archive record at " + offset);
+        }
+        ByteBuffer segment = segment((int) (offset / SEGMENT_SIZE)).duplicate();
+        int position = (int) (offset % SEGMENT_SIZE);
+        segment.position(position);
+
+        int length = segment.getInt(position);
+        int idLength = segment.getShort(position + 4) & 0xffff;
+        if (length < 2 + idLength || length > MAX_RECORD_SIZE || offset + 4 + length > dataLength) {
+            throw new IOException("Corrupt license archive record at " + offset);
+        }
+        return segment;
+    }
+
+    private synchronized MappedByteBuffer segment(int n) throws IOException {
+        if (n < 0 || n >= segments.length) {
+            throw new IOException("Corrupt license archive record in segment " + n);
+        }
+        if (segments[n] == null) {
+            long start = n * SEGMENT_SIZE;
+            long length = Math.min(SEGMENT_SIZE + MAX_RECORD_SIZE + 4, dataLength - start);
+            segments[n] = data.getChannel().map(FileChannel.MapMode.READ_ONLY, start, length);
+        }
+        return segments[n];
+    }
+
+    public void close() throws IOException {
+        try {
+            data.close();
+        } finally {
+            indexFile.close();
+        }
+    }
+
+    static byte[] utf8(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            // Every Java platform is required to support UTF-8
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * FNV-1a over the id bytes, finished with MurmurHash3's mixer so the
+     * low bits used for the slot are well spread.
+     */
+    static long hash(byte[] key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    static int slot(long hash, int mask) {
+        return (int) hash & mask;
+    }
+}
@@ -0,0 +1,332 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Appends licenses to an indexed license archive, creating it if needed.
+ * See LicenseArchive for the layout.
+ *
+ * Records are only ever appended; storing an id again makes the index
+ * point at the newer record.  The index is kept in memory while writing
+ * and replaced on close(), written to a temporary file and renamed into
+ * place.  Records appended after the last close, say by a writer that
+ * crashed, are indexed when the archive is next opened for writing, and a
+ * torn final record is cut off.
+ */
+public final class LicenseArchiveWriter {
+
+    private static final int INITIAL_SLOTS = 1024;
+
+    private final File archive;
+    private final DataOutputStream out;
+    private long dataLength;
+    private long[] hashes;
+    private long[] offsets;
+    private int size;
+    private boolean dirty;
+
+    public LicenseArchiveWriter(File archive) throws IOException {
+        this.archive = archive;
+
+        if (!archive.exists() || archive.length() == 0) {
+            DataOutputStream header = new DataOutputStream(new FileOutputStream(archive));
+            try {
+                header.writeInt(LicenseArchive.DATA_MAGIC);
+                header.writeInt(LicenseArchive.VERSION);
+            } finally {
+                header.close();
+            }
+            dataLength = LicenseArchive.DATA_HEADER_SIZE;
+            allocate(INITIAL_SLOTS);
+            dirty = true;
+        } else {
+            recover();
+        }
+
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(archive, true), 64 * 1024));
+    }
+
+    /**
+     * @return The number of distinct license ids in the archive.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Append an exported license under an id.
+     */
+    public synchronized void append(String id, byte[] license) throws IOException {
+        byte[] key = LicenseArchive.utf8(id);
+        if (key.length > 0xffff || 2L + key.length + license.length > LicenseArchive.MAX_RECORD_SIZE) {
+            throw new IOException("License record too large: " + id);
+        }
+
+        long offset = dataLength;
+        out.writeInt(2 + key.length + license.length);
+        out.writeShort(key.length);
+        out.write(key);
+        out.write(license);
+        dataLength += 6 + key.length + license.length;
+
+        put(LicenseArchive.hash(key), offset, key);
+        dirty = true;
+    }
+
+    /**
+     * Flush the appended records and write the index.
+     */
+    public synchronized void close() throws IOException {
+        out.close();
+        if (dirty) {
+            writeIndex();
+        }
+    }
+
+    private void allocate(int slots) {
+        hashes = new long[slots];
+        offsets = new long[slots];
+    }
+
+    private void put(long hash, long offset, byte[] key) throws IOException {
+        if ((size + 1) * 4L > hashes.length * 3L) {
+            grow();
+        }
+
+        int mask = hashes.length - 1;
+        for (int slot = LicenseArchive.slot(hash, mask); ; slot = (slot + 1) & mask) {
+            if (offsets[slot] == 0) {
+                hashes[slot] = hash;
+                offsets[slot] = offset;
+                size++;
+                return;
+            }
+            if (hashes[slot] == hash && idEquals(offsets[slot], key)) {
+                offsets[slot] = offset;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Double the table while it is at most three quarters full.  The
+     * table is kept between three eighths and three quarters full.
+     */
+    private void grow() throws IOException {
+        if (hashes.length >= LicenseArchive.MAX_SLOTS) {
+            throw new IOException("License archive index is full");
+        }
+
+        long[] oldHashes = hashes;
+        long[] oldOffsets = offsets;
+        allocate(hashes.length * 2);
+        int mask = hashes.length - 1;
+        for (int x = 0; x < oldOffsets.length; x++) {
+            if (oldOffsets[x] != 0) {
+                int slot = LicenseArchive.slot(oldHashes[x], mask);
+                while (offsets[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                hashes[slot] = oldHashes[x];
+                offsets[slot] = oldOffsets[x];
+            }
+        }
+    }
+
+    /**
+     * Compare the id of an existing record with key.  Only reached when
+     * the 64 bit hashes match, so almost always for a repeated id.
+     */
+    private boolean idEquals(long offset, byte[] key) throws IOException {
+        if (out != null) {
+            out.flush();
+        }
+
+        RandomAccessFile file = new RandomAccessFile(archive, "r");
+        try {
+            file.seek(offset + 4);
+            int idLength = file.readUnsignedShort();
+            if (idLength != key.length) {
+                return false;
+            }
+            byte[] id = new byte[idLength];
+            file.readFully(id);
+            return Arrays.equals(id, key);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Load the index written by the last close, if it is usable, then
+     * index any records appended after it.
+     */
+    private void recover() throws IOException {
+        long length = archive.length();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(archive), 64 * 1024));
+        try {
+            if (length < LicenseArchive.DATA_HEADER_SIZE || in.readInt() != LicenseArchive.DATA_MAGIC ||
+                    in.readInt() != LicenseArchive.VERSION) {
+                throw new IOException("Not a license archive: " + archive);
+            }
+
+            if (!readIndex(length)) {
+                dataLength = LicenseArchive.DATA_HEADER_SIZE;
+                allocate(INITIAL_SLOTS);
+                size = 0;
+            }
+
+            long position = dataLength;
+            skipFully(in, position - LicenseArchive.DATA_HEADER_SIZE);
+            while (position < length) {
+                byte[] key;
+                int recordLength;
+                try {
+                    recordLength = in.readInt();
+                    int idLength = in.readUnsignedShort();
+                    //
+                    // skip() can run past the end of a file, so a torn record
+                    // is found by its length rather than by EOFException
+                    //
+                    if (recordLength < 2 + idLength || recordLength > LicenseArchive.MAX_RECORD_SIZE ||
+                            position + 4 + recordLength > length) {
+                        break;
+                    }
+                    key = new byte[idLength];
+                    in.readFully(key);
+                    skipFully(in, recordLength - 2 - idLength);
+                } catch (EOFException ex) {
+                    break;
+                }
+
+                dataLength = position;
+                put(LicenseArchive.hash(key), position, key);
+                position += 4 + recordLength;
+                dataLength = position;
+                dirty = true;
+            }
+        } finally {
+            in.close();
+        }
+
+        if (dataLength < length) {
+            RandomAccessFile file = new RandomAccessFile(archive, "rw");
+            try {
+                file.setLength(dataLength);
+            } finally {
+                file.close();
+            }
+            dirty = true;
+        }
+    }
+
+    /**
+     * @return true if the index file was read and matches the archive.
+     */
+    private boolean readIndex(long length) throws IOException {
+        File file = LicenseArchive.indexFile(archive);
+        if (!file.isFile()) {
+            return false;
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        try {
+            if (in.readInt() != LicenseArchive.INDEX_MAGIC || in.readInt() != LicenseArchive.VERSION) {
+                return false;
+            }
+            int slots = in.readInt();
+            int entries = in.readInt();
+            long indexed = in.readLong();
+            in.readLong();
+            if (Integer.bitCount(slots) != 1 || slots > LicenseArchive.MAX_SLOTS ||
+                    indexed < LicenseArchive.DATA_HEADER_SIZE || indexed > length ||
+                    file.length() != LicenseArchive.INDEX_HEADER_SIZE + (long) slots * LicenseArchive.SLOT_SIZE) {
+                return false;
+            }
+
+            allocate(slots);
+            for (int x = 0; x < slots; x++) {
+                hashes[x] = in.readLong();
+                offsets[x] = in.readLong();
+            }
+            size = entries;
+            dataLength = indexed;
+            return true;
+        } catch (EOFException ex) {
+            return false;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        File file = LicenseArchive.indexFile(archive);
+        File temp = new File(file.getPath() + ".tmp");
+
+        FileOutputStream stream = new FileOutputStream(temp);
+        DataOutputStream index = new DataOutputStream(new BufferedOutputStream(stream, 64 * 1024));
+        try {
+            index.writeInt(LicenseArchive.INDEX_MAGIC);
+            index.writeInt(LicenseArchive.VERSION);
+            index.writeInt(hashes.length);
+            index.writeInt(size);
+            index.writeLong(dataLength);
+            index.writeLong(0);
+            for (int x = 0; x < hashes.length; x++) {
+                index.writeLong(hashes[x]);
+                index.writeLong(offsets[x]);
+            }
+            index.flush();
+            stream.getFD().sync();
+        } finally {
+            index.close();
+        }
+
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+            throw new IOException("Unable to replace archive index: " + file);
+        }
+        dirty = false;
+    }
+
+    private static void skipFully(DataInputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            count -= skipped;
+        }
+    }
+}
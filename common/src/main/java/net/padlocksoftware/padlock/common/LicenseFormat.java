@@ -0,0 +1,128 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import net.padlocksoftware.padlock.license.License;
+import net.padlocksoftware.padlock.license.LicenseIO;
+
+/**
+ * The encodings a license can be exported in.  Reading detects the
+ * encoding, so either kind of file is accepted wherever a license is read.
+ */
+public enum LicenseFormat {
+
+    /**
+     * LicenseIO's properties text, readable by the Padlock library.
+     */
+    TEXT,
+
+    /**
+     * BinaryLicenseCodec's compact encoding.
+     */
+    BINARY;
+
+    private static final Metrics.Timer EXPORT_TIMER = Metrics.getDefault().timer("license_export",
+            "Time spent exporting licenses");
+    private static final Metrics.Timer IMPORT_TIMER = Metrics.getDefault().timer("license_import",
+            "Time spent importing licenses");
+
+    /**
+     * @throws IllegalArgumentException if the name is not a format.
+     */
+    public static LicenseFormat forName(String name) {
+        return valueOf(name.trim().toUpperCase());
+    }
+
+    /**
+     * Write a license.  The stream is not closed.
+     */
+    public void write(License license, OutputStream out) throws IOException {
+        long start = EXPORT_TIMER.start();
+        try {
+            if (this == BINARY) {
+                out.write(BinaryLicenseCodec.encode(license));
+            } else {
+                LicenseIO.exportLicense(license, out);
+            }
+        } finally {
+            EXPORT_TIMER.record(start);
+        }
+    }
+
+    public byte[] toBytes(License license) throws IOException {
+        long start = EXPORT_TIMER.start();
+        try {
+            if (this == BINARY) {
+                return BinaryLicenseCodec.encode(license);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+            LicenseIO.exportLicense(license, out);
+            return out.toByteArray();
+        } finally {
+            EXPORT_TIMER.record(start);
+        }
+    }
+
+    /**
+     * Read a license in either format.
+     *
+     * @throws net.padlocksoftware.padlock.license.ImportException if the
+     * data is not a valid license.
+     */
+    public static License read(byte[] data) throws IOException {
+        long start = IMPORT_TIMER.start();
+        try {
+            if (BinaryLicenseCodec.isBinary(data)) {
+                return BinaryLicenseCodec.decode(data);
+            }
+            return LicenseIO.importLicense(new ByteArrayInputStream(data));
+        } finally {
+            IMPORT_TIMER.record(start);
+        }
+    }
+
+    /**
+     * Read a license file in either format.
+     */
+    public static License read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.max(64, file.length()));
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, n);
+            }
+            return read(bytes.toByteArray());
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.common;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.interfaces.DSAPrivateKey;
+import java.util.Date;
+import java.util.Properties;
+import net.padlocksoftware.padlock.license.License;
+import net.padlocksoftware.padlock.license.LicenseIO;
+import net.padlocksoftware.padlock.license.LicenseImpl;
+import net.padlocksoftware.padlock.license.LicenseSigner;
+import net.padlocksoftware.padlock.license.PadlockState;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Signs licenses with a private key of any KeyAlgorithm.
+ *
+ * Keys LicenseSigner understands are handed to it unchanged.  Other keys
+ * sign the same license data with the algorithm KeyAlgorithm picks for
+ * them, and follow the same demo mode rule: without a valid Padlock
+ * license the expiration date is set two weeks after the start date.
+ * Their data is encoded as SIGNED_CHARSET rather than the platform
+ * charset LicenseSigner uses, so a license verifies on any host whatever
+ * locale it was signed under.
+ *
+ * Signers made from a key pair with recordFingerprint set also record the
+ * public key's fingerprint in each license, under
+ * KeyRing.FINGERPRINT_PROPERTY, so validators holding many keys can find
+ * the right one.  Other signers leave the license properties untouched.
+ */
+public final class LicenseKeySigner {
+
+    private static final long TWO_WEEKS_IN_MS = 14L * 24 * 60 * 60 * 1000;
+
+    private static final String SIGNATURE = "signature";
+
+    /**
+     * The charset license data is signed in, for keys other than those
+     * LicenseSigner handles.
+     */
+    static final String SIGNED_CHARSET = "UTF-8";
+
+    private static final Metrics.Timer SIGN_TIMER = Metrics.getDefault().timer("license_sign",
+            "Time spent signing licenses");
+
+    private final PrivateKey privateKey;
+    private final String algorithm;
+    private final LicenseSigner librarySigner;
+    private final boolean demo;
+    private final String fingerprint;
+
+    public LicenseKeySigner(KeyPair pair) {
+        this(pair.getPrivate(), null);
+    }
+
+    public LicenseKeySigner(KeyPair pair, boolean recordFingerprint) {
+        this(pair.getPrivate(), recordFingerprint ? KeyFingerprint.of(pair.getPublic()) : null);
+    }
+
+    public LicenseKeySigner(PrivateKey privateKey) {
+        this(privateKey, null);
+    }
+
+    private LicenseKeySigner(PrivateKey privateKey, String fingerprint) {
+        this.privateKey = privateKey;
+        this.fingerprint = fingerprint;
+        this.algorithm = KeyAlgorithm.signatureAlgorithm(privateKey);
+        if (KeyAlgorithm.isLibraryCompatible(privateKey)) {
+            this.librarySigner = LicenseSigner.createLicenseSigner((DSAPrivateKey) privateKey);
+            this.demo = false;
+        } else {
+            this.librarySigner = null;
+            this.demo = !new PadlockState(null).isValid();
+        }
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Sign a license.  Keys other than 1024 bit DSA produce a new, signed
+     * License rather than signing the one given, so callers must always
+     * use the returned instance.
+     *
+     * @throws IllegalStateException if the license is already signed, it
+     * names another key under KeyRing.FINGERPRINT_PROPERTY, or the
+     * signature cannot be made.
+     */
+    public License sign(License license) {
+        long start = SIGN_TIMER.start();
+        try {
+            return signLicense(license);
+        } finally {
+            SIGN_TIMER.record(start);
+        }
+    }
+
+    private License signLicense(License license) {
+        if (fingerprint != null && !license.isSigned()) {
+            String existing = license.getProperty(KeyRing.FINGERPRINT_PROPERTY);
+            if (existing != null && !existing.equals(fingerprint)) {
+                throw new IllegalStateException("License already names key " + existing);
+            }
+            license.addProperty(KeyRing.FINGERPRINT_PROPERTY, fingerprint);
+        }
+
+        if (librarySigner != null) {
+            librarySigner.sign(license);
+            return license;
+        }
+
+        if (license.isSigned()) {
+            throw new IllegalStateException("License is already signed");
+        }
+
+        if (demo) {
+            license.setExpirationDate(new Date(license.getStartDate().getTime() + TWO_WEEKS_IN_MS));
+        }
+
+        LicenseImpl impl = (LicenseImpl) license;
+        byte[] signature;
+        try {
+            Signature signer = Signature.getInstance(algorithm);
+            signer.initSign(privateKey);
+            signer.update(impl.concatenate().getBytes(SIGNED_CHARSET));
+            signature = signer.sign();
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("Unable to sign license with " + algorithm + ": " +
+                    ex.getMessage());
+        } catch (UnsupportedEncodingException ex) {
+            // Every Java platform is required to support UTF-8
+            throw new IllegalStateException(ex);
+        }
+
+        Properties raw = impl.getRawProperties();
+        raw.setProperty(SIGNATURE, new String(Hex.encodeHex(signature)));
+        return LicenseIO.importLicense(raw);
+    }
+}
@@ -0,0 +1,176 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.common;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import net.padlocksoftware.padlock.license.License;
+import net.padlocksoftware.padlock.license.LicenseImpl;
+
+/**
+ * Checks license signatures made by LicenseKeySigner, or by LicenseSigner,
+ * against a public key of any KeyAlgorithm.  Only the signature is checked;
+ * dates and hardware are left to the caller.
+ *
+ * Each thread keeps its own Signature, initialized once for this key, and
+ * the buffers the signed data and signature are decoded into, so a check
+ * allocates little beyond what the signature algorithm itself needs.  A
+ * Signature returns to its initialized state after every verify(), so it
+ * can be reused without initializing it again.
+ */
+public final class LicenseKeyVerifier {
+
+    private static final Metrics.Timer VERIFY_TIMER = Metrics.getDefault().timer("signature_verify",
+            "Time spent verifying license signatures");
+
+    private final PublicKey publicKey;
+    private final String algorithm;
+
+    private final ThreadLocal<Context> contexts = new ThreadLocal<Context>() {
+        @Override
+        protected Context initialValue() {
+            return new Context();
+        }
+    };
+
+    /**
+     * One thread's Signature and buffers.
+     */
+    private final class Context {
+        private Signature signature;
+        private final CharsetEncoder encoder = signedCharset().newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private ByteBuffer data = ByteBuffer.allocate(1024);
+        private byte[] signatureBytes = new byte[128];
+
+        Signature signature() throws GeneralSecurityException {
+            if (signature == null) {
+                Signature created = Signature.getInstance(algorithm);
+                created.initVerify(publicKey);
+                signature = created;
+            }
+            return signature;
+        }
+
+        /**
+         * Encode the signed data as the signer did, into the reused buffer.
+         */
+        ByteBuffer encode(String text) {
+            int size = (int) Math.ceil(text.length() * (double) encoder.maxBytesPerChar());
+            if (data.capacity() < size) {
+                data = ByteBuffer.allocate(Math.max(size, data.capacity() * 2));
+            }
+            data.clear();
+            encoder.reset();
+            encoder.encode(CharBuffer.wrap(text), data, true);
+            encoder.flush(data);
+            return data;
+        }
+
+        /**
+         * @return The length of the decoded signature, or -1 if it is not
+         * valid hex.
+         */
+        int decodeSignature(String hex) {
+            if ((hex.length() & 1) != 0) {
+                return -1;
+            }
+            int length = hex.length() / 2;
+            if (signatureBytes.length < length) {
+                signatureBytes = new byte[length];
+            }
+            for (int x = 0; x < length; x++) {
+                int high = Character.digit(hex.charAt(2 * x), 16);
+                int low = Character.digit(hex.charAt(2 * x + 1), 16);
+                if (high < 0 || low < 0) {
+                    return -1;
+                }
+                signatureBytes[x] = (byte) (high << 4 | low);
+            }
+            return length;
+        }
+    }
+
+    public LicenseKeyVerifier(PublicKey publicKey) {
+        this.publicKey = publicKey;
+        this.algorithm = KeyAlgorithm.signatureAlgorithm(publicKey);
+    }
+
+    public PublicKey getPublicKey() {
+        return publicKey;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * @return The charset the license data was signed in: the platform
+     * charset for keys LicenseSigner handles, as the library signs and
+     * checks them, otherwise LicenseKeySigner.SIGNED_CHARSET.
+     */
+    private Charset signedCharset() {
+        return KeyAlgorithm.isLibraryCompatible(publicKey) ?
+                Charset.defaultCharset() : Charset.forName(LicenseKeySigner.SIGNED_CHARSET);
+    }
+
+    /**
+     * @return true if the license is signed and the signature was made with
+     * the private half of this key.
+     */
+    public boolean verify(License license) {
+        String signatureString = license.getLicenseSignatureString();
+        if (signatureString == null) {
+            return false;
+        }
+
+        long start = VERIFY_TIMER.start();
+        Context context = contexts.get();
+        try {
+            int length = context.decodeSignature(signatureString);
+            if (length < 0) {
+                return false;
+            }
+            Signature signature = context.signature();
+            ByteBuffer data = context.encode(((LicenseImpl) license).concatenate());
+            signature.update(data.array(), 0, data.position());
+            return signature.verify(context.signatureBytes, 0, length);
+        } catch (Exception ex) {
+            //
+            // Not every provider resets a Signature that threw, so start
+            // the next check with a new one
+            //
+            context.signature = null;
+            return false;
+        } finally {
+            VERIFY_TIMER.record(start);
+        }
+    }
+}
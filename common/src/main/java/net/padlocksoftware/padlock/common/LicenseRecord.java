@@ -0,0 +1,100 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.common;
+
+import java.io.UnsupportedEncodingException;
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * A named license as it travels through a pipeline: one line holding the
+ * license id, a tab, and the exported license (text or binary) in Base64.
+ *
+ * <pre>
+ *   cust-1	I0xpY2Vuc2UgZmlsZQ...
+ * </pre>
+ *
+ * Every record fits on a single line whatever the license format, so a
+ * stream of them can be split, filtered and joined by ordinary line
+ * based tools and read back one record at a time.
+ */
+public final class LicenseRecord {
+
+    public static final char SEPARATOR = '\t';
+
+    private final String id;
+    private final byte[] license;
+
+    public LicenseRecord(String id, byte[] license) {
+        if (id.indexOf(SEPARATOR) >= 0 || id.indexOf('\n') >= 0 || id.indexOf('\r') >= 0) {
+            throw new IllegalArgumentException("Invalid license id: " + id);
+        }
+        this.id = id;
+        this.license = license;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return The exported license, in either LicenseFormat.
+     */
+    public byte[] getLicense() {
+        return license;
+    }
+
+    /**
+     * @return The record as a line, without the line terminator.
+     */
+    public String toLine() {
+        try {
+            return id + SEPARATOR + new String(Base64.encodeBase64(license), "US-ASCII");
+        } catch (UnsupportedEncodingException ex) {
+            // Every Java platform is required to support US-ASCII
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Parse a line written by toLine().
+     *
+     * @throws IllegalArgumentException if the line is not a record.
+     */
+    public static LicenseRecord parse(String line) {
+        int tab = line.indexOf(SEPARATOR);
+        if (tab < 1) {
+            throw new IllegalArgumentException("Not a license record");
+        }
+
+        try {
+            byte[] encoded = line.substring(tab + 1).trim().getBytes("US-ASCII");
+            if (!Base64.isArrayByteBase64(encoded)) {
+                throw new IllegalArgumentException("Invalid license data for " + line.substring(0, tab));
+            }
+            return new LicenseRecord(line.substring(0, tab), Base64.decodeBase64(encoded));
+        } catch (UnsupportedEncodingException ex) {
+            // Every Java platform is required to support US-ASCII
+            throw new IllegalStateException(ex);
+        }
+    }
+}
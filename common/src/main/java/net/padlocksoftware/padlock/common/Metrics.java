@@ -0,0 +1,265 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.common;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timers, counters and gauges for the phases of key and license handling,
+ * kept in one registry per process so the tools can report where their
+ * time goes.
+ *
+ * The registry can be written as JSON, which the command line tools do on
+ * request, or in the Prometheus text format, which the servers publish.
+ * Recording costs two System.nanoTime() calls and a few atomic updates, so
+ * the phases are always timed.
+ */
+public final class Metrics {
+
+    /**
+     * Count, total and worst case duration of one phase.
+     */
+    public static final class Timer {
+
+        private final String name;
+        private final String help;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        Timer(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return A start time to pass to record().
+         */
+        public long start() {
+            return System.nanoTime();
+        }
+
+        /**
+         * Record one event that started at the given System.nanoTime().
+         */
+        public void record(long startNanos) {
+            long elapsed = System.nanoTime() - startNanos;
+            count.incrementAndGet();
+            totalNanos.addAndGet(elapsed);
+
+            long max = maxNanos.get();
+            while (elapsed > max && !maxNanos.compareAndSet(max, elapsed)) {
+                max = maxNanos.get();
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getTotalNanos() {
+            return totalNanos.get();
+        }
+
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+    }
+
+    public static final class Counter {
+
+        private final String name;
+        private final String help;
+        private final AtomicLong value = new AtomicLong();
+
+        Counter(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void increment() {
+            value.incrementAndGet();
+        }
+
+        public long get() {
+            return value.get();
+        }
+    }
+
+    /**
+     * A value read when the metrics are exported, such as a cache size.
+     */
+    public interface Gauge {
+
+        long get();
+    }
+
+    private static final Metrics DEFAULT = new Metrics();
+
+    private final Map<String, Timer> timers = new LinkedHashMap<String, Timer>();
+    private final Map<String, Counter> counters = new LinkedHashMap<String, Counter>();
+    private final Map<String, Gauge> gauges = new LinkedHashMap<String, Gauge>();
+    private final Map<String, String> gaugeHelp = new LinkedHashMap<String, String>();
+
+    /**
+     * @return The registry shared by the whole process.
+     */
+    public static Metrics getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @return The timer with this name, created on first use.
+     */
+    public synchronized Timer timer(String name, String help) {
+        Timer timer = timers.get(name);
+        if (timer == null) {
+            timer = new Timer(name, help);
+            timers.put(name, timer);
+        }
+        return timer;
+    }
+
+    /**
+     * @return The counter with this name, created on first use.
+     */
+    public synchronized Counter counter(String name, String help) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            counter = new Counter(name, help);
+            counters.put(name, counter);
+        }
+        return counter;
+    }
+
+    /**
+     * Register a gauge, replacing any earlier one of the same name.
+     */
+    public synchronized void gauge(String name, String help, Gauge gauge) {
+        gauges.put(name, gauge);
+        gaugeHelp.put(name, help);
+    }
+
+    /**
+     * Timers are written as {"count", "totalMillis", "avgMillis",
+     * "maxMillis"} objects; counters and gauges as plain numbers.
+     */
+    public synchronized String toJson() {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("{\"timers\":{");
+        String separator = "";
+        for (Timer timer : timers.values()) {
+            long count = timer.getCount();
+            sb.append(separator).append('"').append(timer.name).append("\":{");
+            sb.append("\"count\":").append(count);
+            sb.append(",\"totalMillis\":").append(timer.getTotalNanos() / 1e6);
+            sb.append(",\"avgMillis\":").append(count == 0 ? 0.0 : timer.getTotalNanos() / 1e6 / count);
+            sb.append(",\"maxMillis\":").append(timer.getMaxNanos() / 1e6).append('}');
+            separator = ",";
+        }
+        sb.append("},\"counters\":{");
+        separator = "";
+        for (Counter counter : counters.values()) {
+            sb.append(separator).append('"').append(counter.name).append("\":").append(counter.get());
+            separator = ",";
+        }
+        sb.append("},\"gauges\":{");
+        separator = "";
+        for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+            sb.append(separator).append('"').append(gauge.getKey()).append("\":")
+                    .append(gauge.getValue().get());
+            separator = ",";
+        }
+        return sb.append("}}").toString();
+    }
+
+    /**
+     * The Prometheus text exposition format.  Every name gets a "padlock_"
+     * prefix; timers become summaries in seconds plus a "_max" gauge.
+     */
+    public synchronized String toPrometheus() {
+        StringBuilder sb = new StringBuilder(1024);
+        for (Timer timer : timers.values()) {
+            String name = "padlock_" + timer.name + "_seconds";
+            describe(sb, name, timer.help, "summary");
+            sb.append(name).append("_count ").append(timer.getCount()).append('\n');
+            sb.append(name).append("_sum ").append(timer.getTotalNanos() / 1e9).append('\n');
+            describe(sb, name + "_max", "Longest " + lowerFirst(timer.help), "gauge");
+            sb.append(name).append("_max ").append(timer.getMaxNanos() / 1e9).append('\n');
+        }
+        for (Counter counter : counters.values()) {
+            String name = "padlock_" + counter.name + "_total";
+            describe(sb, name, counter.help, "counter");
+            sb.append(name).append(' ').append(counter.get()).append('\n');
+        }
+        for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+            String name = "padlock_" + gauge.getKey();
+            describe(sb, name, gaugeHelp.get(gauge.getKey()), "gauge");
+            sb.append(name).append(' ').append(gauge.getValue().get()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Write the JSON form to a file, or to standard out if the file is
+     * named "-".
+     */
+    public void writeJson(File file) throws IOException {
+        byte[] json = (toJson() + "\n").getBytes("UTF-8");
+        if (file.getPath().equals("-")) {
+            System.out.write(json);
+            System.out.flush();
+            return;
+        }
+
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(json);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void describe(StringBuilder sb, String name, String help, String type) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String lowerFirst(String s) {
+        return s.length() == 0 ? s : Character.toLowerCase(s.charAt(0)) + s.substring(1);
+    }
+}
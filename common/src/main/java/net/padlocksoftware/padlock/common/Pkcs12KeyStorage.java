@@ -0,0 +1,106 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.common;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.util.Enumeration;
+
+/**
+ * The keys in a PKCS#12 keystore, such as one made with
+ * keytool -genkeypair -storetype PKCS12.  Private key entries give a key
+ * pair that can sign; trusted certificate entries give a public key that
+ * can only verify.  Secret keys are ignored.  Private keys are read with
+ * the store password, as keytool writes them.
+ */
+public final class Pkcs12KeyStorage implements KeyStorage {
+
+    /**
+     * The environment variable KeyRing.load() reads the store password
+     * from, so it never appears on a command line.
+     */
+    public static final String PASSWORD_VARIABLE = "PADLOCK_KEYSTORE_PASSWORD";
+
+    private final File file;
+    private final char[] password;
+
+    /**
+     * @param password May be empty, but not null.
+     */
+    public Pkcs12KeyStorage(File file, char[] password) {
+        this.file = file;
+        this.password = password;
+    }
+
+    public void loadInto(KeyRing ring) throws IOException {
+        KeyStore store;
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            store = KeyStore.getInstance("PKCS12");
+            store.load(in, password);
+        } catch (GeneralSecurityException ex) {
+            throw new IOException("Unable to read keystore " + file + ": " + ex.getMessage());
+        } finally {
+            in.close();
+        }
+
+        try {
+            for (Enumeration<String> aliases = store.aliases(); aliases.hasMoreElements(); ) {
+                String alias = aliases.nextElement();
+                Certificate certificate = store.getCertificate(alias);
+                if (certificate == null) {
+                    continue;
+                }
+
+                PrivateKey privateKey = null;
+                if (store.isKeyEntry(alias)) {
+                    Key key = store.getKey(alias, password);
+                    if (!(key instanceof PrivateKey)) {
+                        continue;
+                    }
+                    privateKey = (PrivateKey) key;
+                }
+
+                KeyPair pair = new KeyPair(certificate.getPublicKey(), privateKey);
+                try {
+                    KeyAlgorithm.of(pair.getPublic());
+                } catch (IllegalArgumentException ex) {
+                    throw new IOException("Unable to use key " + alias + " in " + file + ": " +
+                            ex.getMessage());
+                }
+                ring.add(pair);
+            }
+        } catch (GeneralSecurityException ex) {
+            throw new IOException("Unable to read keystore " + file + ": " + ex.getMessage());
+        }
+    }
+}
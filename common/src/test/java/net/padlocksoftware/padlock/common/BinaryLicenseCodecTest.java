@@ -0,0 +1,164 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.common;
+
+import java.io.ByteArrayOutputStream;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Date;
+import java.util.Properties;
+import net.padlocksoftware.padlock.license.ImportException;
+import net.padlocksoftware.padlock.license.License;
+import net.padlocksoftware.padlock.license.LicenseFactory;
+import net.padlocksoftware.padlock.license.LicenseIO;
+import net.padlocksoftware.padlock.license.LicenseImpl;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BinaryLicenseCodecTest {
+
+    private static KeyPair keyPair;
+
+    @BeforeClass
+    public static void generateKey() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("DSA");
+        generator.initialize(1024);
+        keyPair = generator.generateKeyPair();
+    }
+
+    private static License license() {
+        License license = LicenseFactory.createLicense();
+        license.setStartDate(new Date(1262304000000L));
+        license.setExpirationDate(new Date(1893456000000L));
+        license.addProperty("edition", "enterprise");
+        license.addProperty("seats", "25");
+        license.addHardwareAddress("00-1a-2b-3c-4d-5e");
+        return license;
+    }
+
+    private static Properties raw(License license) {
+        return ((LicenseImpl) license).getRawProperties();
+    }
+
+    @Test
+    public void unsignedLicenseRoundTrips() {
+        License license = license();
+        byte[] encoded = BinaryLicenseCodec.encode(license);
+
+        assertTrue(BinaryLicenseCodec.isBinary(encoded));
+        assertEquals(raw(license), raw(BinaryLicenseCodec.decode(encoded)));
+    }
+
+    @Test
+    public void signedLicenseRoundTripsAndVerifies() {
+        License license = new LicenseKeySigner(keyPair).sign(license());
+        License decoded = BinaryLicenseCodec.decode(BinaryLicenseCodec.encode(license));
+
+        assertEquals(raw(license), raw(decoded));
+        assertTrue(decoded.isSigned());
+        assertTrue(new LicenseKeyVerifier(keyPair.getPublic()).verify(decoded));
+    }
+
+    @Test
+    public void decodedLicenseExportsTheSameText() throws Exception {
+        License license = new LicenseKeySigner(keyPair).sign(license());
+        License decoded = BinaryLicenseCodec.decode(BinaryLicenseCodec.encode(license));
+
+        assertEquals(withoutComments(export(license)), withoutComments(export(decoded)));
+    }
+
+    @Test
+    public void valuesThatOnlyLookPackableRoundTrip() {
+        License license = license();
+        license.addProperty("lowerHex", "deadbeef");
+        license.addProperty("upperHex", "DEADBEEF");
+        license.addProperty("oddHex", "abc");
+        license.addProperty("empty", "");
+        license.addProperty("unicode", "Gr\u00fc\u00dfe \u65e5\u672c");
+
+        License decoded = BinaryLicenseCodec.decode(BinaryLicenseCodec.encode(license));
+
+        assertEquals(raw(license), raw(decoded));
+        assertEquals("DEADBEEF", decoded.getProperty("upperHex"));
+        assertEquals("abc", decoded.getProperty("oddHex"));
+        assertEquals("Gr\u00fc\u00dfe \u65e5\u672c", decoded.getProperty("unicode"));
+    }
+
+    @Test
+    public void textLicenseIsNotBinary() throws Exception {
+        assertFalse(BinaryLicenseCodec.isBinary(export(license())));
+        assertFalse(BinaryLicenseCodec.isBinary(new byte[] {'P', 'L'}));
+    }
+
+    @Test(expected = ImportException.class)
+    public void textLicenseIsRejected() throws Exception {
+        BinaryLicenseCodec.decode(export(license()));
+    }
+
+    @Test(expected = ImportException.class)
+    public void trailingDataIsRejected() {
+        byte[] encoded = BinaryLicenseCodec.encode(license());
+        byte[] padded = new byte[encoded.length + 1];
+        System.arraycopy(encoded, 0, padded, 0, encoded.length);
+        BinaryLicenseCodec.decode(padded);
+    }
+
+    @Test
+    public void truncatedDataIsRejected() {
+        byte[] encoded = BinaryLicenseCodec.encode(license());
+        for (int length = BinaryLicenseCodec.MAGIC.length; length < encoded.length; length++) {
+            byte[] truncated = new byte[length];
+            System.arraycopy(encoded, 0, truncated, 0, length);
+            try {
+                BinaryLicenseCodec.decode(truncated);
+                fail("Decoded a license truncated to " + length + " bytes");
+            } catch (ImportException expected) {
+            }
+        }
+    }
+
+    /**
+     * @return The exported text without the timestamp comment Properties
+     * writes, which differs between exports a second apart.
+     */
+    private static String withoutComments(byte[] exported) throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (String line : new String(exported, "ISO-8859-1").split("\n")) {
+            if (!line.startsWith("#")) {
+                text.append(line).append('\n');
+            }
+        }
+        return text.toString();
+    }
+
+    private static byte[] export(License license) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LicenseIO.exportLicense(license, out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,222 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LicenseArchiveTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] license(String id) {
+        return LicenseArchive.utf8("license for " + id);
+    }
+
+    private File write(String... ids) throws IOException {
+        File archive = new File(folder.getRoot(), "licenses.pla");
+        LicenseArchiveWriter writer = new LicenseArchiveWriter(archive);
+        try {
+            for (String id : ids) {
+                writer.append(id, license(id));
+            }
+        } finally {
+            writer.close();
+        }
+        return archive;
+    }
+
+    private static Map<String, byte[]> records(LicenseArchive archive) {
+        Map<String, byte[]> records = new HashMap<String, byte[]>();
+        for (Iterator<LicenseRecord> it = archive.records(); it.hasNext();) {
+            LicenseRecord record = it.next();
+            records.put(record.getId(), record.getLicense());
+        }
+        return records;
+    }
+
+    @Test
+    public void writtenLicensesCanBeRead() throws IOException {
+        String[] ids = new String[5000];
+        for (int x = 0; x < ids.length; x++) {
+            ids[x] = "license-" + x;
+        }
+        LicenseArchive archive = LicenseArchive.open(write(ids));
+        try {
+            assertEquals(ids.length, archive.size());
+            for (String id : ids) {
+                assertArrayEquals(license(id), archive.get(id));
+            }
+            assertNull(archive.get("license-" + ids.length));
+
+            Map<String, byte[]> records = records(archive);
+            assertEquals(ids.length, records.size());
+            assertArrayEquals(license("license-42"), records.get("license-42"));
+        } finally {
+            archive.close();
+        }
+    }
+
+    @Test
+    public void latestRecordForAnIdWins() throws IOException {
+        File file = write("a", "b");
+        LicenseArchiveWriter writer = new LicenseArchiveWriter(file);
+        writer.append("a", LicenseArchive.utf8("replacement"));
+        writer.close();
+
+        LicenseArchive archive = LicenseArchive.open(file);
+        try {
+            assertEquals(2, archive.size());
+            assertArrayEquals(LicenseArchive.utf8("replacement"), archive.get("a"));
+            assertArrayEquals(license("b"), archive.get("b"));
+            assertEquals(2, records(archive).size());
+        } finally {
+            archive.close();
+        }
+    }
+
+    @Test
+    public void tornTailIsCutOffWhenReopened() throws IOException {
+        File file = write("a", "b", "c");
+        long lengthBeforeC = file.length() - (6 + 1 + license("c").length);
+        truncate(file, file.length() - 3);
+
+        try {
+            LicenseArchive.open(file).close();
+            fail("Opened an archive shorter than its index");
+        } catch (IOException expected) {
+        }
+
+        new LicenseArchiveWriter(file).close();
+        assertEquals(lengthBeforeC, file.length());
+
+        LicenseArchive archive = LicenseArchive.open(file);
+        try {
+            assertEquals(2, archive.size());
+            assertArrayEquals(license("a"), archive.get("a"));
+            assertArrayEquals(license("b"), archive.get("b"));
+            assertNull(archive.get("c"));
+            assertEquals(2, records(archive).size());
+        } finally {
+            archive.close();
+        }
+
+        LicenseArchiveWriter writer = new LicenseArchiveWriter(file);
+        writer.append("c", license("c"));
+        writer.close();
+
+        archive = LicenseArchive.open(file);
+        try {
+            assertEquals(3, archive.size());
+            assertArrayEquals(license("c"), archive.get("c"));
+        } finally {
+            archive.close();
+        }
+    }
+
+    @Test
+    public void recordsAppendedAfterTheIndexAreRecovered() throws IOException {
+        File file = write("a", "b");
+        byte[] key = LicenseArchive.utf8("c");
+        RandomAccessFile data = new RandomAccessFile(file, "rw");
+        try {
+            data.seek(data.length());
+            data.writeInt(2 + key.length + license("c").length);
+            data.writeShort(key.length);
+            data.write(key);
+            data.write(license("c"));
+        } finally {
+            data.close();
+        }
+
+        LicenseArchive archive = LicenseArchive.open(file);
+        try {
+            assertNull(archive.get("c"));
+        } finally {
+            archive.close();
+        }
+
+        new LicenseArchiveWriter(file).close();
+
+        archive = LicenseArchive.open(file);
+        try {
+            assertEquals(3, archive.size());
+            assertArrayEquals(license("c"), archive.get("c"));
+        } finally {
+            archive.close();
+        }
+    }
+
+    @Test
+    public void corruptIndexOffsetIsReported() throws IOException {
+        File file = write("a");
+        RandomAccessFile index = new RandomAccessFile(LicenseArchive.indexFile(file), "rw");
+        try {
+            index.seek(8);
+            int slots = index.readInt();
+            for (int slot = 0; slot < slots; slot++) {
+                long position = LicenseArchive.INDEX_HEADER_SIZE + (long) slot * LicenseArchive.SLOT_SIZE + 8;
+                index.seek(position);
+                if (index.readLong() != 0) {
+                    index.seek(position);
+                    index.writeLong(file.length() + 1000);
+                }
+            }
+        } finally {
+            index.close();
+        }
+
+        LicenseArchive archive = LicenseArchive.open(file);
+        try {
+            archive.get("a");
+            fail("Read a record past the end of the archive");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().startsWith("Corrupt license archive record"));
+        } finally {
+            archive.close();
+        }
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile data = new RandomAccessFile(file, "rw");
+        try {
+            data.setLength(length);
+        } finally {
+            data.close();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.common;
+
+import java.security.KeyPair;
+import java.security.Signature;
+import java.util.Date;
+import net.padlocksoftware.padlock.license.License;
+import net.padlocksoftware.padlock.license.LicenseFactory;
+import net.padlocksoftware.padlock.license.LicenseImpl;
+import org.apache.commons.codec.binary.Hex;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LicenseKeySignerTest {
+
+    private static final String NAME = "Gr\u00fc\u00dfe \u65e5\u672c";
+
+    private static License license() {
+        License license = LicenseFactory.createLicense();
+        license.setStartDate(new Date(1262304000000L));
+        license.addProperty("name", NAME);
+        return license;
+    }
+
+    private static void checkNonAsciiProperty(KeyPair keyPair) throws Exception {
+        License license = new LicenseKeySigner(keyPair).sign(license());
+        LicenseKeyVerifier verifier = new LicenseKeyVerifier(keyPair.getPublic());
+
+        assertEquals(NAME, license.getProperty("name"));
+        assertTrue(verifier.verify(license));
+
+        License changed = license();
+        changed.addProperty("name", "Gr\u00fc\u00dfe");
+        ((LicenseImpl) changed).getRawProperties().setProperty("signature",
+                license.getLicenseSignatureString());
+        assertFalse(verifier.verify(changed));
+
+        if (!KeyAlgorithm.isLibraryCompatible(keyPair.getPublic())) {
+            //
+            // Whatever the platform charset, the signature covers the UTF-8
+            // encoding of the license data
+            //
+            Signature signature = Signature.getInstance(verifier.getAlgorithm());
+            signature.initVerify(keyPair.getPublic());
+            signature.update(((LicenseImpl) license).concatenate().getBytes("UTF-8"));
+            assertTrue(signature.verify(Hex.decodeHex(license.getLicenseSignatureString().toCharArray())));
+        }
+    }
+
+    @Test
+    public void libraryDsaKeySignsNonAsciiProperty() throws Exception {
+        checkNonAsciiProperty(KeyAlgorithm.DSA.generate(1024));
+    }
+
+    @Test
+    public void largeDsaKeySignsNonAsciiProperty() throws Exception {
+        checkNonAsciiProperty(KeyAlgorithm.DSA.generate(2048));
+    }
+
+    @Test
+    public void rsaKeySignsNonAsciiProperty() throws Exception {
+        checkNonAsciiProperty(KeyAlgorithm.RSA.generate(KeyAlgorithm.RSA.getDefaultKeySize()));
+    }
+
+    @Test
+    public void ecKeySignsNonAsciiProperty() throws Exception {
+        checkNonAsciiProperty(KeyAlgorithm.EC.generate(KeyAlgorithm.EC.getDefaultKeySize()));
+    }
+
+    @Test
+    public void ed25519KeySignsNonAsciiProperty() throws Exception {
+        checkNonAsciiProperty(KeyAlgorithm.ED25519.generate(KeyAlgorithm.ED25519.getDefaultKeySize()));
+    }
+}
@@ -0,0 +1,156 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.keymaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import net.padlocksoftware.padlock.common.KeyAlgorithm;
+import net.padlocksoftware.padlock.common.KeyFiles;
+
+/**
+ * Generates many key pairs at once, one per worker thread at a time, and
+ * writes each to its own file in a directory.  Key generation is CPU
+ * bound and independent per key, so it scales with the number of cores.
+ */
+public final class BatchKeyGenerator {
+
+    static final String EXTENSION = ".kp";
+
+    /**
+     * A key pair and the file it was written to.
+     */
+    public static final class GeneratedKey {
+        private final File file;
+        private final KeyPair pair;
+
+        GeneratedKey(File file, KeyPair pair) {
+            this.file = file;
+            this.pair = pair;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public KeyPair getKeyPair() {
+            return pair;
+        }
+    }
+
+    private final KeyAlgorithm algorithm;
+    private final int keySize;
+    private final int threads;
+
+    public BatchKeyGenerator(KeyAlgorithm algorithm, int keySize, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        this.algorithm = algorithm;
+        this.keySize = keySize;
+        this.threads = threads;
+    }
+
+    /**
+     * @return The files count keys will be written to, named key-1.kp
+     * onwards with the number padded so they sort in order.
+     */
+    static List<File> keyFiles(File directory, int count) {
+        int width = Integer.toString(count).length();
+        List<File> files = new ArrayList<File>(count);
+        for (int x = 1; x <= count; x++) {
+            String number = Integer.toString(x);
+            while (number.length() < width) {
+                number = "0" + number;
+            }
+            files.add(new File(directory, "key-" + number + EXTENSION));
+        }
+        return files;
+    }
+
+    /**
+     * Generate count key pairs into a directory, creating it if needed.
+     * Existing key files are never overwritten.
+     *
+     * @return The keys, in file name order.
+     */
+    public List<GeneratedKey> generate(int count, File directory)
+            throws IOException, GeneralSecurityException, InterruptedException {
+        //
+        // Fail fast on an unusable algorithm or key size rather than once
+        // per key
+        //
+        algorithm.generate(keySize);
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory: " + directory);
+        }
+
+        List<File> files = keyFiles(directory, count);
+        for (File file : files) {
+            if (file.exists()) {
+                throw new IOException("Key file already exists: " + file);
+            }
+        }
+
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<GeneratedKey>> futures = new ArrayList<Future<GeneratedKey>>(count);
+            for (final File file : files) {
+                futures.add(workers.submit(new Callable<GeneratedKey>() {
+                    public GeneratedKey call() throws Exception {
+                        KeyPair pair = algorithm.generate(keySize);
+                        KeyFiles.exportKeyPair(pair, file);
+                        return new GeneratedKey(file, pair);
+                    }
+                }));
+            }
+
+            List<GeneratedKey> keys = new ArrayList<GeneratedKey>(count);
+            for (Future<GeneratedKey> future : futures) {
+                try {
+                    keys.add(future.get());
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    } else if (cause instanceof GeneralSecurityException) {
+                        throw (GeneralSecurityException) cause;
+                    }
+                    throw new IllegalStateException(cause);
+                }
+            }
+            return keys;
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+}
@@ -23,11 +23,18 @@
 package net.padlocksoftware.padlock.keymaker;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.security.GeneralSecurityException;
 import java.security.KeyPair;
+import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.List;
-import net.padlocksoftware.padlock.KeyManager;
+import net.padlocksoftware.padlock.common.KeyAlgorithm;
+import net.padlocksoftware.padlock.common.KeyFiles;
+import net.padlocksoftware.padlock.common.KeyFingerprint;
+import net.padlocksoftware.padlock.common.Metrics;
 import org.apache.commons.codec.binary.Hex;
 
 /**
@@ -36,6 +43,8 @@ import org.apache.commons.codec.binary.Hex;
  */
 public final class Main {
 
+    static final String INDEX_FILE = "index.txt";
+
     private static String[] formatOutput(String publicKey) {
       List<String> list = new ArrayList<String>();
 
@@ -53,29 +62,85 @@ public final class Main {
       return list.toArray(new String[0]);
     }
 
+    /**
+     * @return The Java snippet embedding a public key in an application.
+     */
+    static String formatPublicKey(PublicKey publicKey) {
+        StringBuilder sb = new StringBuilder();
+        String[] lines = formatOutput(new String(Hex.encodeHex(publicKey.getEncoded())));
+        for (int x = 0 ; x < lines.length ; x++) {
+            String line = lines[x];
+            if (x ==0 ) {
+                // First line
+                sb.append("\t private static final String publicKey = \n\t\t\"" +
+                        line + "\" + \n");
+            } else if (x == lines.length-1) {
+                // Last line
+                sb.append("\t\t\"" + line + "\";\n");
+            } else {
+                sb.append("\t\t\"" + line + "\" + \n");
+            }
+        }
+        return sb.toString();
+    }
+
     private static void showUsageAndExit() {
-        System.out.println("Usage: KeyMaker <outputfile>");
+        System.out.println("Usage: KeyMaker [-a <Algorithm>] [-s <Key Size>] [-M <Metrics File>] <outputfile>");
+        System.out.println("       KeyMaker [-a <Algorithm>] [-s <Key Size>] [-M <Metrics File>] -n <Count>");
+        System.out.println("                [-t <Threads>] <outputdirectory>");
+        System.out.println();
+        System.out.println("Algorithms: DSA (default, 1024 bits), RSA (2048 bits), EC (256 bits)");
+        System.out.println("            and Ed25519.  Only 1024 bit DSA keys can be checked by the");
+        System.out.println("            Padlock library Validator; the others need the tools in");
+        System.out.println("            this distribution.");
+        System.out.println();
+        System.out.println("-n generates that many key pairs in parallel, one file each, and writes");
+        System.out.println("   " + INDEX_FILE + " listing every key's fingerprint and public key code.");
+        System.out.println();
+        System.out.println("-M writes how long key generation and export took as JSON to a file,");
+        System.out.println("   or to standard out for \"-\".");
         System.exit(1);
     }
+
     /**
      * @param args the command line arguments
      */
     public static void main(String[] args) {
 
-        int keySize = 1024;
+        KeyAlgorithm algorithm = KeyAlgorithm.DSA;
+        Integer keySize = null;
+        int count = 0;
+        int threads = Runtime.getRuntime().availableProcessors();
         File file = null;
+        File metricsFile = null;
 
-        if (args.length < 1|| args.length > 3) {
+        if (args.length < 1|| args.length > 11) {
             showUsageAndExit();
         }
         
         for (int x = 0 ; x < args.length ; x++) {
             String arg = args[x];
 
-            if (arg.equals("-s")) {
+            if (arg.equals("-s") || arg.equals("-a") || arg.equals("-n") || arg.equals("-t") ||
+                    arg.equals("-M")) {
+                x++;
+                if (x == args.length) {
+                    showUsageAndExit();
+                }
                 try {
-                    x++;
-                } catch(Exception e) {
+                    if (arg.equals("-s")) {
+                        keySize = Integer.valueOf(args[x]);
+                    } else if (arg.equals("-n")) {
+                        count = positive(args[x]);
+                    } else if (arg.equals("-t")) {
+                        threads = positive(args[x]);
+                    } else if (arg.equals("-M")) {
+                        metricsFile = new File(args[x]);
+                    } else {
+                        algorithm = KeyAlgorithm.forName(args[x]);
+                    }
+                } catch(IllegalArgumentException e) {
+                    System.out.println("Invalid value for " + arg + ": " + args[x] + "\n");
                     showUsageAndExit();
                 }
             } else {
@@ -83,28 +148,103 @@ public final class Main {
             }
         }
 
-        KeyPair pair = KeyManager.createKeyPair();
+        if (file == null) {
+            showUsageAndExit();
+        }
+
+        int size = keySize == null ? algorithm.getDefaultKeySize() : keySize;
+        if (count > 0) {
+            generateKeys(algorithm, size, count, threads, file);
+            writeMetrics(metricsFile);
+            return;
+        }
+
+        KeyPair pair = null;
         try {
-            KeyManager.exportKeyPair(pair, file);
-            String[] lines = formatOutput(new String(Hex.encodeHex(pair.getPublic().getEncoded())));
+            pair = algorithm.generate(size);
+        } catch (GeneralSecurityException ex) {
+            System.out.println("Unable to create " + algorithm.getName() + " key: " + ex.getMessage());
+            System.exit(1);
+        } catch (IllegalArgumentException ex) {
+            System.out.println("Unable to create " + algorithm.getName() + " key: " + ex.getMessage());
+            System.exit(1);
+        }
+
+        try {
+            KeyFiles.exportKeyPair(pair, file);
             System.out.println("Your public key code: \n");
-            for (int x = 0 ; x < lines.length ; x++) {
-                String line = lines[x];
-                if (x ==0 ) {
-                    // First line
-                    System.out.println("\t private static final String publicKey = \n\t\t\"" +
-                            line + "\" + ");
-                } else if (x == lines.length-1) {
-                    // Last line
-                    System.out.println("\t\t\"" + line + "\";\n");
-                } else {
-                    System.out.println("\t\t\"" + line + "\" + ");
-                }
-            }
+            System.out.println(formatPublicKey(pair.getPublic()));
         } catch (IOException ex) {
             ex.printStackTrace();
         }
+        writeMetrics(metricsFile);
 
     }
 
+    private static void writeMetrics(File metricsFile) {
+        if (metricsFile == null) {
+            return;
+        }
+        try {
+            Metrics.getDefault().writeJson(metricsFile);
+        } catch (IOException ex) {
+            System.out.println("Unable to write metrics: " + ex.getMessage());
+        }
+    }
+
+    private static int positive(String value) {
+        int n = Integer.parseInt(value);
+        if (n < 1) {
+            throw new IllegalArgumentException();
+        }
+        return n;
+    }
+
+    private static void generateKeys(KeyAlgorithm algorithm, int keySize, int count, int threads,
+            File directory) {
+        long start = System.currentTimeMillis();
+        try {
+            File index = new File(directory, INDEX_FILE);
+            if (index.exists()) {
+                System.out.println("Index file already exists: " + index);
+                System.exit(1);
+            }
+
+            List<BatchKeyGenerator.GeneratedKey> keys =
+                    new BatchKeyGenerator(algorithm, keySize, threads).generate(count, directory);
+            writeIndex(keys, index);
+
+            System.out.println("Generated " + keys.size() + " " + algorithm.getName() + " key pairs in " +
+                    (System.currentTimeMillis() - start) + " ms using " + threads + " threads");
+            System.out.println("Public key codes are listed in " + index);
+        } catch (IOException ex) {
+            System.out.println("Error: " + ex.getMessage());
+            System.exit(1);
+        } catch (GeneralSecurityException ex) {
+            System.out.println("Unable to create " + algorithm.getName() + " key: " + ex.getMessage());
+            System.exit(1);
+        } catch (IllegalArgumentException ex) {
+            System.out.println("Unable to create " + algorithm.getName() + " key: " + ex.getMessage());
+            System.exit(1);
+        } catch (InterruptedException ex) {
+            System.out.println("Interrupted");
+            System.exit(1);
+        }
+    }
+
+    private static void writeIndex(List<BatchKeyGenerator.GeneratedKey> keys, File index)
+            throws IOException {
+        PrintStream out = new PrintStream(new FileOutputStream(index), false, "UTF-8");
+        try {
+            for (BatchKeyGenerator.GeneratedKey key : keys) {
+                PublicKey publicKey = key.getKeyPair().getPublic();
+                out.println("# " + key.getFile().getName());
+                out.println("# fingerprint: " + KeyFingerprint.of(publicKey));
+                out.println(formatPublicKey(publicKey));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
 }
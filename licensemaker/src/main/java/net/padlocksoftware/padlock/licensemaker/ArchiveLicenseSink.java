@@ -0,0 +1,71 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.licensemaker;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+import net.padlocksoftware.padlock.common.LicenseFormat;
+import net.padlocksoftware.padlock.license.License;
+
+/**
+ * Writes every license as an &lt;id&gt;.lic entry of a single zip archive.
+ * A second license for the same id is refused with a
+ * DuplicateLicenseException, leaving the archive as it was.
+ */
+public final class ArchiveLicenseSink implements LicenseSink {
+
+    private final ZipOutputStream zip;
+    private final LicenseFormat format;
+
+    public ArchiveLicenseSink(File archive) throws IOException {
+        this(archive, LicenseFormat.TEXT);
+    }
+
+    public ArchiveLicenseSink(File archive, LicenseFormat format) throws IOException {
+        this.zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(archive)));
+        this.format = format;
+    }
+
+    public void write(String id, License license) throws IOException {
+        try {
+            zip.putNextEntry(new ZipEntry(id + DirectoryLicenseSink.EXTENSION));
+        } catch (ZipException ex) {
+            //
+            // The only ZipException a deflated entry can raise here is a
+            // duplicate name, checked before anything is written
+            //
+            throw new DuplicateLicenseException(id);
+        }
+        format.write(license, zip);
+        zip.closeEntry();
+    }
+
+    public void close() throws IOException {
+        zip.close();
+    }
+}
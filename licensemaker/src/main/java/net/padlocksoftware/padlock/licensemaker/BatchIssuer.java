@@ -0,0 +1,360 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.licensemaker;
+
+import java.io.IOException;
+import java.security.KeyPair;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.padlocksoftware.padlock.common.LicenseKeySigner;
+import net.padlocksoftware.padlock.license.License;
+
+/**
+ * Issues every license described by a manifest using a single key pair, so
+ * key parsing and JVM startup are paid once per batch.
+ *
+ * Rows are parsed on the calling thread, built and signed on a fixed pool
+ * of worker threads, and written by a single writer thread in manifest
+ * order.  At most queueSize licenses are in flight at any time; once that
+ * many are waiting to be written the reader blocks, so memory use does not
+ * grow with the size of the manifest.
+ *
+ * Rejected rows are reported by the writer thread too, in their place in
+ * the manifest, so a RowListener sees every row once and in order.  A row
+ * whose id the sink already holds a license for is rejected the same way.
+ */
+public final class BatchIssuer {
+
+    /**
+     * Told of each manifest row, on the writer thread and in manifest
+     * order, once its license is written or the row is rejected.
+     */
+    public interface RowListener {
+
+        void issued(String id) throws IOException;
+
+        /**
+         * @param error Why, as reported on standard error.
+         */
+        void rejected(String error) throws IOException;
+    }
+
+    /**
+     * A signed license waiting to be written, or a rejected row.
+     */
+    private static final class Issued {
+        final String id;
+        final int row;
+        final License license;
+        final long startNanos;
+        final String error;
+
+        Issued(String id, int row, License license, long startNanos) {
+            this.id = id;
+            this.row = row;
+            this.license = license;
+            this.startNanos = startNanos;
+            this.error = null;
+        }
+
+        Issued(String error) {
+            this.id = null;
+            this.row = 0;
+            this.license = null;
+            this.startNanos = 0;
+            this.error = error;
+        }
+    }
+
+    //
+    // Marks the end of the manifest for the writer thread
+    //
+    private static final Future<Issued> END = new FutureTask<Issued>(new Callable<Issued>() {
+        public Issued call() {
+            return null;
+        }
+    });
+
+    private final KeyPair keyPair;
+    private final boolean recordFingerprint;
+    private final LicenseSink sink;
+    private final int threads;
+    private final BlockingQueue<Future<Issued>> pending;
+    private final PipelineStats stats = new PipelineStats();
+    private final PipelineStats.Stage parseStage = stats.stage("parse");
+    private final PipelineStats.Stage buildStage = stats.stage("build");
+    private final PipelineStats.Stage signStage = stats.stage("sign");
+    private final PipelineStats.Stage writeStage = stats.stage("write");
+    private final PipelineStats.Stage totalStage = stats.stage("total");
+
+    //
+    // LicenseKeySigner keeps no per-call state, but one per worker keeps us
+    // independent of that detail
+    //
+    private final ThreadLocal<LicenseKeySigner> signers = new ThreadLocal<LicenseKeySigner>() {
+        @Override
+        protected LicenseKeySigner initialValue() {
+            return new LicenseKeySigner(keyPair, recordFingerprint);
+        }
+    };
+
+    private volatile IOException writeFailure = null;
+    private RowListener listener = null;
+    private int issued = 0;
+    private final AtomicInteger failed = new AtomicInteger();
+
+    public BatchIssuer(KeyPair keyPair, LicenseSink sink) {
+        this(keyPair, sink, Runtime.getRuntime().availableProcessors());
+    }
+
+    public BatchIssuer(KeyPair keyPair, LicenseSink sink, int threads) {
+        this(keyPair, sink, threads, false);
+    }
+
+    public BatchIssuer(KeyPair keyPair, LicenseSink sink, int threads, boolean recordFingerprint) {
+        this(keyPair, sink, threads, threads * 64, recordFingerprint);
+    }
+
+    public BatchIssuer(KeyPair keyPair, LicenseSink sink, int threads, int queueSize) {
+        this(keyPair, sink, threads, queueSize, false);
+    }
+
+    /**
+     * @param recordFingerprint Whether licenses record the fingerprint of
+     * keyPair, for validators holding more than one key.
+     */
+    public BatchIssuer(KeyPair keyPair, LicenseSink sink, int threads, int queueSize,
+            boolean recordFingerprint) {
+        if (threads < 1 || queueSize < 1) {
+            throw new IllegalArgumentException("threads and queueSize must be positive");
+        }
+        this.keyPair = keyPair;
+        this.recordFingerprint = recordFingerprint;
+        this.sink = sink;
+        this.threads = threads;
+        this.pending = new ArrayBlockingQueue<Future<Issued>>(queueSize);
+    }
+
+    /**
+     * Sign and write every row of the manifest.  Rows that cannot be parsed
+     * are reported on standard error and skipped.
+     */
+    public void issue(ManifestReader manifest) throws IOException {
+        issue(manifest, null);
+    }
+
+    /**
+     * @param listener Told of every row, may be null.  A failure it throws
+     * stops the batch as a write failure does.
+     */
+    public void issue(ManifestReader manifest, RowListener listener) throws IOException {
+        this.listener = listener;
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                drain();
+            }
+        }, "LicenseWriter");
+        writer.start();
+
+        try {
+            while (writeFailure == null) {
+                long start = System.nanoTime();
+                final LicenseSpec spec;
+                try {
+                    spec = manifest.next();
+                } catch (ManifestException ex) {
+                    enqueue(rejected(ex.getMessage()));
+                    continue;
+                }
+
+                if (spec == null) {
+                    break;
+                }
+                parseStage.record(start);
+
+                final int row = manifest.getRow();
+                final long rowStart = start;
+                enqueue(workers.submit(new Callable<Issued>() {
+                    public Issued call() {
+                        long start = System.nanoTime();
+                        License license = spec.createLicense();
+                        buildStage.record(start);
+
+                        start = System.nanoTime();
+                        license = signers.get().sign(license);
+                        signStage.record(start);
+                        return new Issued(spec.getId(), row, license, rowStart);
+                    }
+                }));
+            }
+        } finally {
+            enqueue(END);
+            workers.shutdown();
+            try {
+                writer.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (writeFailure != null) {
+            throw writeFailure;
+        }
+    }
+
+    /**
+     * @return A finished future for a rejected row, to take its place in
+     * the writer's queue.
+     */
+    private static Future<Issued> rejected(final String error) {
+        FutureTask<Issued> future = new FutureTask<Issued>(new Callable<Issued>() {
+            public Issued call() {
+                return new Issued(error);
+            }
+        });
+        future.run();
+        return future;
+    }
+
+    private void enqueue(Future<Issued> future) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                pending.put(future);
+                break;
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writer loop: takes futures in submission order so output order always
+     * matches the manifest, whatever order the workers finish in.
+     */
+    private void drain() {
+        while (true) {
+            Future<Issued> future;
+            try {
+                future = pending.take();
+            } catch (InterruptedException ex) {
+                continue;
+            }
+
+            if (future == END) {
+                return;
+            }
+
+            //
+            // After a write failure keep draining so the reader never blocks
+            //
+            if (writeFailure != null) {
+                future.cancel(false);
+                continue;
+            }
+
+            try {
+                Issued item;
+                try {
+                    item = future.get();
+                } catch (ExecutionException ex) {
+                    item = new Issued("Unable to sign license: " + ex.getCause());
+                }
+
+                if (item.error != null) {
+                    reject(item.error);
+                    continue;
+                }
+
+                long start = System.nanoTime();
+                try {
+                    sink.write(item.id, item.license);
+                } catch (DuplicateLicenseException ex) {
+                    reject(new ManifestException(item.row, ex.getMessage()).getMessage());
+                    continue;
+                }
+                writeStage.record(start);
+                totalStage.record(item.startNanos);
+                issued++;
+                if (listener != null) {
+                    listener.issued(item.id);
+                }
+            } catch (IOException ex) {
+                writeFailure = ex;
+            } catch (InterruptedException ex) {
+                writeFailure = new IOException("Interrupted while writing licenses");
+            } catch (RuntimeException ex) {
+                writeFailure = failure(ex);
+            } catch (Error ex) {
+                //
+                // Were this thread to die the reader would block on a full
+                // queue forever, so fail the batch instead
+                //
+                writeFailure = failure(ex);
+            }
+        }
+    }
+
+    private void reject(String error) throws IOException {
+        System.err.println(error);
+        failed.incrementAndGet();
+        if (listener != null) {
+            listener.rejected(error);
+        }
+    }
+
+    private static IOException failure(Throwable cause) {
+        IOException ex = new IOException("Unable to write license: " + cause);
+        ex.initCause(cause);
+        return ex;
+    }
+
+    /**
+     * @return Number of licenses written.  Only meaningful once issue() returns.
+     */
+    public int getIssued() {
+        return issued;
+    }
+
+    /**
+     * @return Number of rows rejected.  Only meaningful once issue() returns.
+     */
+    public int getFailed() {
+        return failed.get();
+    }
+
+    public PipelineStats getStats() {
+        return stats;
+    }
+}
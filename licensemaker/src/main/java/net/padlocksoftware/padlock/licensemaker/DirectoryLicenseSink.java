@@ -0,0 +1,74 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.licensemaker;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import net.padlocksoftware.padlock.common.LicenseFormat;
+import net.padlocksoftware.padlock.license.License;
+
+/**
+ * Writes each license to its own &lt;id&gt;.lic file in a directory.  An
+ * existing file is never replaced, whether an earlier row of the batch or
+ * an earlier run wrote it: its id is refused with a
+ * DuplicateLicenseException.
+ */
+public final class DirectoryLicenseSink implements LicenseSink {
+
+    static final String EXTENSION = ".lic";
+
+    private final File directory;
+    private final LicenseFormat format;
+
+    public DirectoryLicenseSink(File directory) throws IOException {
+        this(directory, LicenseFormat.TEXT);
+    }
+
+    public DirectoryLicenseSink(File directory, LicenseFormat format) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create output directory: " + directory);
+        }
+        this.directory = directory;
+        this.format = format;
+    }
+
+    public void write(String id, License license) throws IOException {
+        File file = new File(directory, id + EXTENSION);
+        if (!file.createNewFile()) {
+            throw new DuplicateLicenseException(id);
+        }
+
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            format.write(license, out);
+        } finally {
+            out.close();
+        }
+    }
+
+    public void close() throws IOException {
+    }
+}
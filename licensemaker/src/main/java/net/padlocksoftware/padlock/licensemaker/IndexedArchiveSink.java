@@ -0,0 +1,57 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.licensemaker;
+
+import java.io.File;
+import java.io.IOException;
+import net.padlocksoftware.padlock.common.LicenseArchiveWriter;
+import net.padlocksoftware.padlock.common.LicenseFormat;
+import net.padlocksoftware.padlock.license.License;
+
+/**
+ * Appends every license to an indexed license archive, which
+ * LicenseValidator can look licenses up in by id without unpacking it.
+ * An existing archive is added to rather than replaced.
+ */
+public final class IndexedArchiveSink implements LicenseSink {
+
+    private final LicenseArchiveWriter writer;
+    private final LicenseFormat format;
+
+    public IndexedArchiveSink(File archive) throws IOException {
+        this(archive, LicenseFormat.TEXT);
+    }
+
+    public IndexedArchiveSink(File archive, LicenseFormat format) throws IOException {
+        this.writer = new LicenseArchiveWriter(archive);
+        this.format = format;
+    }
+
+    public void write(String id, License license) throws IOException {
+        writer.append(id, format.toBytes(license));
+    }
+
+    public void close() throws IOException {
+        writer.close();
+    }
+}
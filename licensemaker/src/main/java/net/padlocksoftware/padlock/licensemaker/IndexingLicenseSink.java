@@ -0,0 +1,57 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.licensemaker;
+
+import java.io.File;
+import java.io.IOException;
+import net.padlocksoftware.padlock.common.ExpirationIndex;
+import net.padlocksoftware.padlock.common.ExpirationIndexWriter;
+import net.padlocksoftware.padlock.license.License;
+
+/**
+ * Passes licenses on to another sink and records each one's expiration in
+ * an expiration index, so the index stays current without being rebuilt.
+ */
+public final class IndexingLicenseSink implements LicenseSink {
+
+    private final LicenseSink sink;
+    private final ExpirationIndexWriter index;
+
+    public IndexingLicenseSink(LicenseSink sink, File expirationIndex) throws IOException {
+        this.sink = sink;
+        this.index = new ExpirationIndexWriter(expirationIndex);
+    }
+
+    public void write(String id, License license) throws IOException {
+        sink.write(id, license);
+        index.add(ExpirationIndex.Entry.fromLicense(id, license));
+    }
+
+    public void close() throws IOException {
+        try {
+            sink.close();
+        } finally {
+            index.close();
+        }
+    }
+}
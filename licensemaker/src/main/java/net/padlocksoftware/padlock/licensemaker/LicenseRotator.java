@@ -0,0 +1,373 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.licensemaker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import net.padlocksoftware.padlock.common.BinaryLicenseCodec;
+import net.padlocksoftware.padlock.common.KeyFingerprint;
+import net.padlocksoftware.padlock.common.LicenseFormat;
+import net.padlocksoftware.padlock.common.LicenseKeySigner;
+import net.padlocksoftware.padlock.common.LicenseKeyVerifier;
+import net.padlocksoftware.padlock.license.ImportException;
+import net.padlocksoftware.padlock.license.License;
+
+/**
+ * Re-signs a store of licenses with a new key.
+ *
+ * Every file below the source directory is imported, its signature checked
+ * against the old key, and a license with the same dates, properties and
+ * hardware addresses is signed with the new key and written to the same
+ * relative path under the output directory, in the format it was read in.
+ * Licenses the old key did not sign are reported and left out, except
+ * those already signed by the new key, which are copied as they are.  That
+ * makes rotating a directory in place safe to repeat.
+ *
+ * Files are visited in sorted order and rotated on a pool of worker
+ * threads, with a bounded number in flight.  Progress is saved to a
+ * RotationCheckpoint about once a second, so a run over millions of
+ * licenses that is interrupted resumes close to where it stopped.
+ */
+public final class LicenseRotator {
+
+    private static final long CHECKPOINT_INTERVAL_MS = 1000;
+
+    private enum Outcome {
+        ROTATED, ALREADY_ROTATED, REJECTED, UNREADABLE
+    }
+
+    private static final class Result {
+        final String path;
+        final Outcome outcome;
+
+        Result(String path, Outcome outcome) {
+            this.path = path;
+            this.outcome = outcome;
+        }
+    }
+
+    private final LicenseKeyVerifier oldVerifier;
+    private final LicenseKeyVerifier newVerifier;
+    private final KeyPair newKeys;
+    private final boolean recordFingerprint;
+    private final int threads;
+
+    private final ThreadLocal<LicenseKeySigner> signers = new ThreadLocal<LicenseKeySigner>() {
+        @Override
+        protected LicenseKeySigner initialValue() {
+            return new LicenseKeySigner(newKeys, recordFingerprint);
+        }
+    };
+
+    private long resumed = 0;
+    private long rotated = 0;
+    private long alreadyRotated = 0;
+    private long rejected = 0;
+    private long unreadable = 0;
+
+    public LicenseRotator(PublicKey oldKey, KeyPair newKeys, int threads) {
+        this(oldKey, newKeys, threads, false);
+    }
+
+    /**
+     * @param recordFingerprint Whether rotated licenses record the
+     * fingerprint of newKeys, for validators holding more than one key.
+     */
+    public LicenseRotator(PublicKey oldKey, KeyPair newKeys, int threads,
+            boolean recordFingerprint) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        this.oldVerifier = new LicenseKeyVerifier(oldKey);
+        this.newVerifier = new LicenseKeyVerifier(newKeys.getPublic());
+        this.newKeys = newKeys;
+        this.recordFingerprint = recordFingerprint;
+        this.threads = threads;
+    }
+
+    /**
+     * Rotate every license below source into output, which may be the same
+     * directory.
+     *
+     * @param checkpointFile Where progress is kept.  If it exists the run
+     * continues from it.
+     * @throws IOException if a license cannot be written, or the source has
+     * changed since the checkpoint was saved.
+     */
+    public void rotate(File source, File output, File checkpointFile)
+            throws IOException, InterruptedException {
+        if (!source.isDirectory()) {
+            throw new IOException("Not a directory: " + source);
+        }
+
+        RotationCheckpoint checkpoint = RotationCheckpoint.load(checkpointFile, source,
+                KeyFingerprint.of(newKeys.getPublic()));
+        if (checkpoint.isComplete()) {
+            resumed = checkpoint.getProcessed();
+            return;
+        }
+
+        Walker walker = new Walker(source, output, checkpointFile);
+        String path = null;
+        for (long x = 0; x < checkpoint.getProcessed(); x++) {
+            path = walker.next();
+            if (path == null) {
+                break;
+            }
+        }
+        if (path == null ? checkpoint.getLast() != null : !path.equals(checkpoint.getLast())) {
+            throw new IOException("Source directory has changed since checkpoint " + checkpointFile);
+        }
+        resumed = checkpoint.getProcessed();
+
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        LinkedList<Future<Result>> window = new LinkedList<Future<Result>>();
+        long saved = System.currentTimeMillis();
+
+        try {
+            while ((path = walker.next()) != null) {
+                window.add(workers.submit(task(source, output, path)));
+                if (window.size() < threads * 64) {
+                    continue;
+                }
+
+                finish(window.removeFirst(), checkpoint);
+                if (System.currentTimeMillis() - saved >= CHECKPOINT_INTERVAL_MS) {
+                    checkpoint.save(false);
+                    saved = System.currentTimeMillis();
+                }
+            }
+
+            while (!window.isEmpty()) {
+                finish(window.removeFirst(), checkpoint);
+            }
+            checkpoint.save(true);
+        } catch (IOException ex) {
+            checkpoint.save(false);
+            throw ex;
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * @return Licenses skipped because an earlier run already finished them.
+     */
+    public long getResumed() {
+        return resumed;
+    }
+
+    public long getRotated() {
+        return rotated;
+    }
+
+    /**
+     * @return Licenses that were already signed with the new key.
+     */
+    public long getAlreadyRotated() {
+        return alreadyRotated;
+    }
+
+    /**
+     * @return Licenses whose signature did not match the old key.
+     */
+    public long getRejected() {
+        return rejected;
+    }
+
+    public long getUnreadable() {
+        return unreadable;
+    }
+
+    private void finish(Future<Result> future, RotationCheckpoint checkpoint)
+            throws IOException, InterruptedException {
+        Result result;
+        try {
+            result = future.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Unable to rotate license: " + cause);
+        }
+
+        switch (result.outcome) {
+            case ROTATED: rotated++; break;
+            case ALREADY_ROTATED: alreadyRotated++; break;
+            case REJECTED: rejected++; break;
+            default: unreadable++;
+        }
+        checkpoint.advance(result.path);
+    }
+
+    private Callable<Result> task(final File source, final File output, final String path) {
+        return new Callable<Result>() {
+            public Result call() throws IOException {
+                File in = new File(source, path);
+                byte[] bytes;
+                License license;
+                try {
+                    bytes = readFully(in);
+                    license = LicenseFormat.read(bytes);
+                } catch (IOException ex) {
+                    System.err.println(in + ": unreadable: " + ex.getMessage());
+                    return new Result(path, Outcome.UNREADABLE);
+                } catch (ImportException ex) {
+                    System.err.println(in + ": unreadable: " + ex.getMessage());
+                    return new Result(path, Outcome.UNREADABLE);
+                }
+
+                File out = new File(output, path);
+                if (!oldVerifier.verify(license)) {
+                    if (newVerifier.verify(license)) {
+                        if (!out.equals(in)) {
+                            write(out, bytes);
+                        }
+                        return new Result(path, Outcome.ALREADY_ROTATED);
+                    }
+                    System.err.println(in + ": rejected: not signed by the old key");
+                    return new Result(path, Outcome.REJECTED);
+                }
+
+                License resigned = signers.get().sign(LicenseSpec.fromLicense(license).createLicense());
+                LicenseFormat format = BinaryLicenseCodec.isBinary(bytes) ?
+                        LicenseFormat.BINARY : LicenseFormat.TEXT;
+                write(out, format.toBytes(resigned));
+                return new Result(path, Outcome.ROTATED);
+            }
+        };
+    }
+
+    /**
+     * Replace a file through a temporary file, so an interrupted run never
+     * leaves a partly written license behind.
+     */
+    private static void write(File file, byte[] bytes) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("Unable to create directory: " + parent);
+        }
+
+        File temp = new File(parent, "." + file.getName() + ".tmp");
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+            throw new IOException("Unable to replace " + file);
+        }
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.max(64, file.length()));
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, n);
+            }
+            return bytes.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Lists the files below a directory depth first in sorted order, as
+     * paths relative to it, without holding more than one directory
+     * listing per level.  Hidden files, the output directory and the
+     * checkpoint are skipped.
+     */
+    private static final class Walker {
+
+        private final LinkedList<File[]> listings = new LinkedList<File[]>();
+        private final LinkedList<Integer> positions = new LinkedList<Integer>();
+        private final int prefix;
+        private final File output;
+        private final File checkpoint;
+
+        Walker(File source, File output, File checkpoint) {
+            this.prefix = source.getPath().length() + 1;
+            this.output = output.getAbsoluteFile();
+            this.checkpoint = checkpoint.getAbsoluteFile();
+            push(source);
+        }
+
+        private void push(File directory) {
+            File[] children = directory.listFiles();
+            if (children == null) {
+                children = new File[0];
+            }
+            Arrays.sort(children);
+            listings.addLast(children);
+            positions.addLast(0);
+        }
+
+        /**
+         * @return The next file's relative path, or null when done.
+         */
+        String next() {
+            while (!listings.isEmpty()) {
+                File[] children = listings.getLast();
+                int position = positions.removeLast();
+                if (position == children.length) {
+                    listings.removeLast();
+                    continue;
+                }
+                positions.addLast(position + 1);
+
+                File child = children[position];
+                if (child.isHidden() || child.getAbsoluteFile().equals(checkpoint)) {
+                    continue;
+                }
+                if (child.isDirectory()) {
+                    if (!child.getAbsoluteFile().equals(output)) {
+                        push(child);
+                    }
+                    continue;
+                }
+                return child.getPath().substring(prefix);
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,311 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.licensemaker;
+
+import java.text.ParseException;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import net.padlocksoftware.padlock.common.KeyRing;
+import net.padlocksoftware.padlock.license.License;
+import net.padlocksoftware.padlock.license.LicenseFactory;
+
+/**
+ * The unsigned contents of a single license: the same fields the command
+ * line accepts through -s/-S, -e/-E, -x, -p and -h.
+ */
+public final class LicenseSpec {
+
+    static final String ID = "id";
+    static final String START = "start";
+    static final String EXPIRATION = "expiration";
+    static final String FLOAT = "float";
+    static final String PROPERTIES = "properties";
+    static final String HARDWARE = "hardware";
+    static final String DATE_FORMAT = "dateFormat";
+
+    private String id;
+    private Date startDate;
+    private Date expirationDate;
+    private Long floatingExpirationPeriod;
+    private final Properties properties = new Properties();
+    private final Set<String> hardwareAddresses = new HashSet<String>();
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public Date getStartDate() {
+        return startDate;
+    }
+
+    public void setStartDate(Date startDate) {
+        this.startDate = startDate;
+    }
+
+    public Date getExpirationDate() {
+        return expirationDate;
+    }
+
+    public void setExpirationDate(Date expirationDate) {
+        this.expirationDate = expirationDate;
+    }
+
+    public Long getFloatingExpirationPeriod() {
+        return floatingExpirationPeriod;
+    }
+
+    public void setFloatingExpirationPeriod(Long floatingExpirationPeriod) {
+        this.floatingExpirationPeriod = floatingExpirationPeriod;
+    }
+
+    public Properties getProperties() {
+        return properties;
+    }
+
+    public Set<String> getHardwareAddresses() {
+        return hardwareAddresses;
+    }
+
+    /**
+     * Parse a date given in the supplied SimpleDateFormat pattern or, when
+     * the pattern does not match the whole value, in ms since the epoch.
+     * The pattern comes first so all-digit patterns such as yyyyMMdd are
+     * not mistaken for ms.
+     */
+    static Date parseDate(String value, String format) throws ParseException {
+        value = value.trim();
+        //
+        // Strict, or the last field of an all-digit pattern would swallow
+        // a ms value whole
+        //
+        SimpleDateFormat parser = new SimpleDateFormat(format);
+        parser.setLenient(false);
+        ParsePosition position = new ParsePosition(0);
+        Date date = parser.parse(value, position);
+        if (date != null && position.getIndex() == value.length()) {
+            return date;
+        }
+
+        try {
+            return new Date(Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            throw new ParseException("Unparseable date: \"" + value + "\"",
+                    date == null ? position.getErrorIndex() : position.getIndex());
+        }
+    }
+
+    /**
+     * Add properties of the form "key1=value1, key2=value2".
+     */
+    void parseProperties(String arg) {
+        String[] pairs = arg.split(",");
+
+        for (String pair : pairs) {
+            if (pair.trim().length() == 0) {
+                continue;
+            }
+            String[] str = pair.split("=");
+            if (str.length != 2) {
+                throw new IllegalArgumentException("Invalid properties string: " + arg);
+            }
+            setProperty(str[0].trim(), str[1].trim());
+        }
+    }
+
+    /**
+     * Add a property given by the user.  KeyRing.FINGERPRINT_PROPERTY is
+     * reserved for the signer, since validators trust it to pick the key.
+     */
+    void setProperty(String name, String value) {
+        checkPropertyName(name);
+        properties.setProperty(name, value);
+    }
+
+    /**
+     * @throws IllegalArgumentException if name is reserved for the signer.
+     */
+    static void checkPropertyName(String name) {
+        if (KeyRing.FINGERPRINT_PROPERTY.equals(name)) {
+            throw new IllegalArgumentException("Property " + name + " is reserved");
+        }
+    }
+
+    /**
+     * Add hardware addresses of the form "mac1, mac2, mac3".
+     */
+    void parseHardwareAddresses(String arg) {
+        String[] addresses = arg.split(",");
+
+        for (String address : addresses) {
+            address = address.trim();
+            if (address.length() > 0) {
+                hardwareAddresses.add(address);
+            }
+        }
+    }
+
+    /**
+     * Build a spec from named fields, as found in a manifest row or a
+     * signing request:
+     *
+     * <ul>
+     * <li>id - names the license; letters, digits, '.', '_' and '-' only</li>
+     * <li>start, expiration - a date in dateFormat, or ms since the epoch</li>
+     * <li>float - ms to expire after the first run</li>
+     * <li>properties - "key1=value1, key2=value2", or a map</li>
+     * <li>hardware - "mac1, mac2", or a list</li>
+     * <li>dateFormat - SimpleDateFormat pattern overriding the default</li>
+     * </ul>
+     *
+     * @throws IllegalArgumentException if any field is invalid.
+     */
+    static LicenseSpec fromFields(Map<String, Object> fields, String dateFormat) {
+        LicenseSpec spec = new LicenseSpec();
+
+        String id = text(fields.get(ID));
+        if (id != null) {
+            if (!id.matches("[A-Za-z0-9._-]+")) {
+                throw new IllegalArgumentException("Invalid license id: " + id);
+            }
+            spec.setId(id);
+        }
+
+        String format = text(fields.get(DATE_FORMAT));
+        if (format == null) {
+            format = dateFormat;
+        }
+
+        try {
+            String value = text(fields.get(START));
+            if (value != null) {
+                spec.setStartDate(parseDate(value, format));
+            }
+
+            value = text(fields.get(EXPIRATION));
+            if (value != null) {
+                spec.setExpirationDate(parseDate(value, format));
+            }
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("Invalid date: " + e.getMessage());
+        }
+
+        String value = text(fields.get(FLOAT));
+        if (value != null) {
+            try {
+                spec.setFloatingExpirationPeriod(Long.valueOf(value.trim()));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid expiration float: " + value);
+            }
+        }
+
+        Object props = fields.get(PROPERTIES);
+        if (props instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) props).entrySet()) {
+                spec.setProperty(entry.getKey().toString(), String.valueOf(entry.getValue()));
+            }
+        } else if (text(props) != null) {
+            spec.parseProperties(text(props));
+        }
+
+        Object hardware = fields.get(HARDWARE);
+        if (hardware instanceof List) {
+            for (Object address : (List<?>) hardware) {
+                spec.getHardwareAddresses().add(String.valueOf(address).trim());
+            }
+        } else if (text(hardware) != null) {
+            spec.parseHardwareAddresses(text(hardware));
+        }
+
+        return spec;
+    }
+
+    /**
+     * @return The value as a String, or null if it is absent or blank.
+     */
+    private static String text(Object value) {
+        if (value == null) {
+            return null;
+        }
+        String s = value.toString();
+        return s.trim().length() == 0 ? null : s;
+    }
+
+    /**
+     * Build a spec holding the dates, properties and hardware addresses of
+     * an existing license, so it can be issued again.
+     */
+    static LicenseSpec fromLicense(License license) {
+        LicenseSpec spec = new LicenseSpec();
+        spec.setStartDate(license.getStartDate());
+        spec.setExpirationDate(license.getExpirationDate());
+        spec.setFloatingExpirationPeriod(license.getFloatingExpirationPeriod());
+        spec.getProperties().putAll(license.getProperties());
+        //
+        // The old fingerprint names the old key; the new signer adds its own
+        //
+        spec.getProperties().remove(KeyRing.FINGERPRINT_PROPERTY);
+        spec.getHardwareAddresses().addAll(license.getHardwareAddresses());
+        return spec;
+    }
+
+    /**
+     * Create a new, unsigned License populated from this spec.
+     */
+    public License createLicense() {
+        License license = LicenseFactory.createLicense();
+
+        if (startDate != null) {
+            license.setStartDate(startDate);
+        }
+
+        if (expirationDate != null) {
+            license.setExpirationDate(expirationDate);
+        }
+
+        if (floatingExpirationPeriod != null) {
+            license.setFloatingExpirationPeriod(floatingExpirationPeriod);
+        }
+
+        for (final Enumeration propNames = properties.propertyNames(); propNames.hasMoreElements();) {
+            final String key = (String) propNames.nextElement();
+            license.addProperty(key, properties.getProperty(key));
+        }
+
+        for (String address : hardwareAddresses) {
+            license.addHardwareAddress(address);
+        }
+
+        return license;
+    }
+}
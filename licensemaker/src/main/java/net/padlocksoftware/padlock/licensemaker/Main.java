@@ -22,23 +22,28 @@
 
 package net.padlocksoftware.padlock.licensemaker;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.security.KeyPair;
-import java.security.interfaces.DSAPrivateKey;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
 import java.util.Set;
-import net.padlocksoftware.padlock.KeyManager;
+import net.padlocksoftware.padlock.common.ExpirationIndex;
+import net.padlocksoftware.padlock.common.ExpirationIndexWriter;
+import net.padlocksoftware.padlock.common.KeyFingerprint;
+import net.padlocksoftware.padlock.common.KeyRing;
+import net.padlocksoftware.padlock.common.LicenseFormat;
+import net.padlocksoftware.padlock.common.LicenseKeySigner;
+import net.padlocksoftware.padlock.common.Metrics;
+import net.padlocksoftware.padlock.common.Pkcs12KeyStorage;
 import net.padlocksoftware.padlock.license.License;
-import net.padlocksoftware.padlock.license.LicenseFactory;
-import net.padlocksoftware.padlock.license.LicenseIO;
-import net.padlocksoftware.padlock.license.LicenseSigner;
 
 /**
  *
@@ -46,12 +51,24 @@ import net.padlocksoftware.padlock.license.LicenseSigner;
  */
 public class Main {
 
+    //
+    // Default key rotation checkpoint, kept in the output directory
+    //
+    static final String CHECKPOINT_FILE = ".rotation-checkpoint";
+
     //
     // If not specified, this format is used.
     //
     static String defaultDateFormat = "yyyy/MM/dd";
     static Properties properties = new Properties();
+    static KeyRing keyRing = null;
+    static boolean recordFingerprint = false;
+    static String keyFingerprint = null;
     static KeyPair keyPair = null;
+    static KeyPair oldKeyPair = null;
+    static File rotateDirectory = null;
+    static File checkpointFile = null;
+    static File metricsFile = null;
     static File licenseFile = null;
     static License license = null;
     static Date startDate = null;
@@ -59,13 +76,43 @@ public class Main {
     static Long floatingExpirationPeriod = null;
     static Set<String> hardwareAddresses = new HashSet<String>();
     static boolean stdOut = false;
+    static File manifestFile = null;
+    static File outputDirectory = null;
+    static File archiveFile = null;
+    static File indexedArchiveFile = null;
+    static File expirationIndexFile = null;
+    static int threads = Runtime.getRuntime().availableProcessors();
+    static InetSocketAddress serverAddress = null;
+    static LicenseFormat format = LicenseFormat.TEXT;
+    static int shard = -1;
+    static int shardCount = 0;
+    static File shardDirectory = null;
+    static File mergeDirectory = null;
 
     private static void showUsageAndExit() {
 
         System.err.println("Usage:");
-        System.err.println("LicenseMaker [options] -k <KeyPair File> (-o <Output License File> | -O)\n");
+        System.err.println("LicenseMaker [options] -k <Keys> (-o <Output License File> | -O)");
+        System.err.println("LicenseMaker -k <Keys> -b <Manifest> (-d <Output Directory> | -a <Output Archive> |\n" +
+                "                                         -A <License Archive> | -O)");
+        System.err.println("LicenseMaker -k <New KeyPair File> -K <Old KeyPair File> -r <Source Directory>\n" +
+                "             -d <Output Directory> [-c <Checkpoint File>] [-t <Threads>]");
+        System.err.println("LicenseMaker -k <Keys> -b <Manifest> -j <Shard>/<Shards> -w <Shard Directory>");
+        System.err.println("LicenseMaker -m <Shard Directory> (-d <Output Directory> | -a <Output Archive> |\n" +
+                "                                 -A <License Archive> | -O)");
+        System.err.println("LicenseMaker -k <Keys> -L [host:]<Port> [-t <Threads>]\n");
         System.err.println("Options:");
-        System.err.println("   -O                       Send output to standard out instead of a file\n");
+        System.err.println("   -k <Keys>                A key pair file, a directory of key pair files or a\n" +
+                "                            PKCS#12 keystore ending in .p12 or .pfx, whose\n" +
+                "                            password is read from " + Pkcs12KeyStorage.PASSWORD_VARIABLE + ".\n" +
+                "                            When it holds more than one key, licenses record\n" +
+                "                            the fingerprint of the key that signed them");
+        System.err.println("   -f <Fingerprint>         The key to sign with, by fingerprint or a unique\n" +
+                "                            prefix of one, when -k holds more than one");
+        System.err.println("   -O                       Send output to standard out instead of a file");
+        System.err.println("   -F <Format>              License encoding, text (the default) or binary.\n" +
+                "                            Binary licenses are smaller and faster to validate\n" +
+                "                            but can only be read by LicenseValidator\n");
         System.err.println("   -s <Start>               The start of the license validity period, if\n" +
                 "                            different than the current date.  In ms since\n" +
                 "                            the epoch (1/1/1970)");
@@ -84,6 +131,57 @@ public class Main {
                 "                            in the form of \"key1=value1, key2=value2\"");
         System.err.println("   -h <Addresses>           Hardware locked addresses, expressed as a single string\n" +
                 "                            in the form of \"mac1, mac2, mac3\"");
+        System.err.println("   -I <Expiration Index>    Add each license issued to this LicenseValidator\n" +
+                "                            expiration index.  A single license is indexed\n" +
+                "                            under its file name without the .lic extension,\n" +
+                "                            a batch license under its id");
+        System.err.println("   -M <Metrics File>        When done, write how long key import, signing and\n" +
+                "                            export took as JSON to this file, or to standard\n" +
+                "                            out for \"-\"\n");
+        System.err.println("Batch options:");
+        System.err.println("   -b <Manifest>            Issue one license per manifest row.  A manifest is\n" +
+                "                            either CSV with a header row or, when the file ends\n" +
+                "                            in .json/.jsonl, one JSON object per line.  Fields\n" +
+                "                            are id, start, expiration, float, properties and\n" +
+                "                            hardware, using the same values as the options above.\n" +
+                "                            A manifest of \"-\" is read from standard in");
+        System.err.println("   -O                       Write each license to standard out as soon as it is\n" +
+                "                            signed, one \"<id><tab><Base64 license>\" line per\n" +
+                "                            license, for LicenseValidator -R to read");
+        System.err.println("   -d <Output Directory>    Write each license to <id>.lic in this directory");
+        System.err.println("   -a <Output Archive>      Write all licenses into a single zip archive");
+        System.err.println("   -A <License Archive>     Append all licenses to an indexed license archive,\n" +
+                "                            creating it if needed.  LicenseValidator can check\n" +
+                "                            single licenses in it by id");
+        System.err.println("   -t <Threads>             Number of signing threads, defaults to the number\n" +
+                "                            of available processors\n");
+        System.err.println("Shard options:");
+        System.err.println("   -j <Shard>/<Shards>      Issue only one shard of the manifest, from 0 to\n" +
+                "                            <Shards> - 1.  Rows are split by a hash of their id,\n" +
+                "                            so each shard can run as its own process, on this\n" +
+                "                            machine or another sharing the file system");
+        System.err.println("   -w <Shard Directory>     Where each shard writes its licenses as -O records,\n" +
+                "                            its report of rejected rows and its checkpoint.\n" +
+                "                            Repeating an interrupted shard's command resumes it");
+        System.err.println("   -m <Shard Directory>     Once every shard is complete, write their licenses to\n" +
+                "                            one of -d, -a, -A or -O and concatenate their reports\n" +
+                "                            into " + ShardMerger.MERGED_REPORT + ".  Licenses are grouped by shard.\n" +
+                "                            Incomplete shards are listed instead\n");
+        System.err.println("Rotation options:");
+        System.err.println("   -r <Source Directory>    Re-sign every license below this directory with the\n" +
+                "                            key given by -k, writing each one to the same path\n" +
+                "                            under -d, which may be the source itself.  Dates,\n" +
+                "                            properties, hardware addresses and format are kept");
+        System.err.println("   -K <Old KeyPair File>    The key the licenses are signed with now.  Licenses\n" +
+                "                            it did not sign are reported and left out");
+        System.err.println("   -c <Checkpoint File>     Where progress is saved, by default " + CHECKPOINT_FILE + "\n" +
+                "                            in the output directory.  Repeating an interrupted\n" +
+                "                            command resumes it\n");
+        System.err.println("Server options:");
+        System.err.println("   -L [host:]<Port>         Sign licenses on demand.  POST a JSON object with the\n" +
+                "                            same fields as a batch manifest row to\n" +
+                "                            http://host:port/sign to receive the signed license.\n" +
+                "                            The host defaults to 127.0.0.1");
         System.exit(1);
 
     }
@@ -158,6 +256,12 @@ public class Main {
                 System.err.println("\nInvalid properties string: " + arg + "\n");
                 System.exit(1);
             }
+            try {
+                LicenseSpec.checkPropertyName(str[0].trim());
+            } catch (IllegalArgumentException ex) {
+                System.err.println("\nError: " + ex.getMessage() + "\n");
+                System.exit(1);
+            }
             properties.setProperty(str[0].trim(), str[1].trim());
         }
     }
@@ -171,14 +275,111 @@ public class Main {
         }
     }
 
+    private static void parseThreads(String arg) {
+        try {
+            threads = Integer.parseInt(arg);
+        } catch (NumberFormatException e) {
+            threads = 0;
+        }
+
+        if (threads < 1) {
+            System.err.println("\nInvalid thread count: " + arg + "\n");
+            System.exit(1);
+        }
+    }
+
+    private static void parseFormat(String arg) {
+        try {
+            format = LicenseFormat.forName(arg);
+        } catch (IllegalArgumentException e) {
+            System.err.println("\nInvalid license format: " + arg + "\n");
+            System.exit(1);
+        }
+    }
+
+    private static void parseShard(String arg) {
+        int slash = arg.indexOf('/');
+        try {
+            shard = Integer.parseInt(arg.substring(0, Math.max(0, slash)));
+            shardCount = Integer.parseInt(arg.substring(slash + 1));
+        } catch (NumberFormatException e) {
+            shardCount = 0;
+        }
+
+        if (shardCount < 1 || shard < 0 || shard >= shardCount) {
+            System.err.println("\nInvalid shard: " + arg + "\n");
+            System.exit(1);
+        }
+    }
+
+    private static void parseServerAddress(String arg) {
+        String host = "127.0.0.1";
+        String port = arg;
+        int colon = arg.lastIndexOf(':');
+        if (colon >= 0) {
+            host = arg.substring(0, colon);
+            port = arg.substring(colon + 1);
+        }
+
+        try {
+            serverAddress = new InetSocketAddress(host, Integer.parseInt(port));
+        } catch (IllegalArgumentException e) {
+            System.err.println("\nInvalid server address: " + arg + "\n");
+            System.exit(1);
+        }
+    }
+
     private static void parseKeyPairFile(String arg) {
+        keyRing = readKeyRing(arg);
+    }
+
+    private static KeyRing readKeyRing(String arg) {
         File keyFile = new File(arg);
         try {
-            keyPair = KeyManager.importKeyPair(keyFile);
+            return KeyRing.load(keyFile);
         } catch (IOException ex) {
-            System.err.println("\nError: Unable to read key file: " + keyFile + "\n");
+            System.err.println("\nError: Unable to read key file: " + keyFile + " (" + ex.getMessage() + ")\n");
+            System.exit(1);
+            return null;
+        }
+    }
+
+    /**
+     * Pick the key to sign with from the -k keys: the one -f names, or the
+     * only one with a private key.
+     */
+    private static KeyPair selectSigningKey() {
+        KeyPair pair;
+        try {
+            if (keyFingerprint != null) {
+                pair = keyRing.find(keyFingerprint);
+            } else {
+                pair = keyRing.size() == 1 ? keyRing.getKeyPairs().get(0) : keyRing.getSigningKey();
+            }
+        } catch (IllegalArgumentException ex) {
+            System.err.println("\nError: " + ex.getMessage() + "\n");
+            System.exit(1);
+            return null;
+        }
+
+        if (pair == null) {
+            System.err.println(keyFingerprint != null ? "\nError: No key with fingerprint " + keyFingerprint + "\n" :
+                    "\nError: Choose the key to sign with using -f <Fingerprint>\n");
+            System.exit(1);
+        } else if (pair.getPrivate() == null) {
+            System.err.println("\nError: No private key for " + KeyFingerprint.of(pair.getPublic()) + "\n");
             System.exit(1);
         }
+        return pair;
+    }
+
+    private static KeyPair readOldKeyPair(String arg) {
+        KeyRing ring = readKeyRing(arg);
+        if (ring.size() != 1) {
+            System.err.println("\nError: " + arg + " holds " + ring.size() + " keys; -K needs exactly one\n");
+            System.exit(1);
+        }
+        return ring.getKeyPairs().get(0);
     }
 
     private static void parseLicenseFile(String arg) {
@@ -250,15 +451,62 @@ public class Main {
             } else if (arg.equals("-k")) {
                 x++;
                 parseKeyPairFile(args[x]);
+            } else if (arg.equals("-f")) {
+                x++;
+                keyFingerprint = args[x];
             } else if (arg.equals("-o")) {
                 x++;
                 parseLicenseFile(args[x]);
             } else if (arg.equals("-h")) {
                 x++;
                 parseLicenseHardware(args[x]);
+            } else if (arg.equals("-b")) {
+                x++;
+                manifestFile = new File(args[x]);
+            } else if (arg.equals("-d")) {
+                x++;
+                outputDirectory = new File(args[x]);
+            } else if (arg.equals("-a")) {
+                x++;
+                archiveFile = new File(args[x]);
+            } else if (arg.equals("-A")) {
+                x++;
+                indexedArchiveFile = new File(args[x]);
+            } else if (arg.equals("-t")) {
+                x++;
+                parseThreads(args[x]);
+            } else if (arg.equals("-L")) {
+                x++;
+                parseServerAddress(args[x]);
+            } else if (arg.equals("-M")) {
+                x++;
+                metricsFile = new File(args[x]);
+            } else if (arg.equals("-I")) {
+                x++;
+                expirationIndexFile = new File(args[x]);
+            } else if (arg.equals("-K")) {
+                x++;
+                oldKeyPair = readOldKeyPair(args[x]);
+            } else if (arg.equals("-r")) {
+                x++;
+                rotateDirectory = new File(args[x]);
+            } else if (arg.equals("-c")) {
+                x++;
+                checkpointFile = new File(args[x]);
+            } else if (arg.equals("-F")) {
+                x++;
+                parseFormat(args[x]);
+            } else if (arg.equals("-j")) {
+                x++;
+                parseShard(args[x]);
+            } else if (arg.equals("-w")) {
+                x++;
+                shardDirectory = new File(args[x]);
+            } else if (arg.equals("-m")) {
+                x++;
+                mergeDirectory = new File(args[x]);
             } else if (arg.equals("-O")){
                 stdOut = true;
-                x++;
             } else {
                 System.err.println("\nError: Uknown Argument\n");
                 showUsageAndExit();
@@ -270,7 +518,67 @@ public class Main {
         if (args[args.length-1].equals("-O")) {
             stdOut = true;
         }
+
+        if (keyRing != null) {
+            keyPair = selectSigningKey();
+            recordFingerprint = keyRing.size() > 1;
+        }
         
+        if (serverAddress != null) {
+            if (keyPair == null) {
+                System.err.println("\nError: Server mode requires a key\n");
+                showUsageAndExit();
+            }
+            return;
+        }
+
+        if (rotateDirectory != null) {
+            if (keyPair == null || oldKeyPair == null || outputDirectory == null) {
+                System.err.println("\nError: Rotation requires -k, -K and -d\n");
+                showUsageAndExit();
+            }
+            if (checkpointFile == null) {
+                checkpointFile = new File(outputDirectory, CHECKPOINT_FILE);
+            }
+            return;
+        }
+
+        //
+        // Batch mode needs exactly one destination for the whole manifest,
+        // or for every shard once merged.  Shards write to their directory.
+        //
+        int destinations = (stdOut ? 1 : 0) + (outputDirectory == null ? 0 : 1) + (archiveFile == null ? 0 : 1) +
+                (indexedArchiveFile == null ? 0 : 1);
+        if (mergeDirectory != null) {
+            if (destinations != 1 || manifestFile != null) {
+                System.err.println("\nError: Merging requires one of -d, -a, -A or -O\n");
+                showUsageAndExit();
+            }
+            return;
+        }
+
+        if ((shardCount > 0) != (shardDirectory != null)) {
+            System.err.println("\nError: -j and -w go together\n");
+            showUsageAndExit();
+        }
+        if (shardCount > 0) {
+            if (keyPair == null || manifestFile == null || manifestFile.getPath().equals("-") ||
+                    destinations != 0 || expirationIndexFile != null) {
+                System.err.println("\nError: A shard requires a key and a manifest file, and writes only\n" +
+                        "to its shard directory; give -d, -a, -A, -O or -I when merging\n");
+                showUsageAndExit();
+            }
+            return;
+        }
+
+        if (manifestFile != null) {
+            if (keyPair == null || destinations != 1) {
+                System.err.println("\nError: Batch mode requires a key and one of -d, -a, -A or -O\n");
+                showUsageAndExit();
+            }
+            return;
+        }
+
         //
         // Verify that the license name and key are not null
         //
@@ -278,6 +586,211 @@ public class Main {
             System.err.println("\nError: No output specified\n");
             showUsageAndExit();
         }
+        if (expirationIndexFile != null && licenseFile == null) {
+            System.err.println("\nError: -I needs a license file to name the license by\n");
+            showUsageAndExit();
+        }
+    }
+
+    /**
+     * @return The sink for the -d, -a, -A or -O destination, indexing to
+     * -I if given.
+     */
+    private static LicenseSink createSink() throws IOException {
+        LicenseSink sink;
+        if (stdOut) {
+            sink = new StreamLicenseSink(System.out, format);
+        } else if (outputDirectory != null) {
+            sink = new DirectoryLicenseSink(outputDirectory, format);
+        } else if (archiveFile != null) {
+            sink = new ArchiveLicenseSink(archiveFile, format);
+        } else {
+            sink = new IndexedArchiveSink(indexedArchiveFile, format);
+        }
+        if (expirationIndexFile != null) {
+            sink = new IndexingLicenseSink(sink, expirationIndexFile);
+        }
+        return sink;
+    }
+
+    private static void runBatch() {
+        ManifestReader manifest = null;
+        LicenseSink sink = null;
+        int status = 0;
+
+        try {
+            manifest = ManifestReader.open(manifestFile, defaultDateFormat);
+            sink = createSink();
+
+            BatchIssuer issuer = new BatchIssuer(keyPair, sink, threads, recordFingerprint);
+            issuer.issue(manifest);
+
+            System.err.println("Issued " + issuer.getIssued() + " licenses (" +
+                    issuer.getFailed() + " rows rejected) using " + threads + " signing threads");
+            issuer.getStats().report(System.err, issuer.getIssued());
+            if (issuer.getFailed() > 0) {
+                status = 2;
+            }
+        } catch (IOException ex) {
+            System.err.println("\nError: " + ex.getMessage() + "\n");
+            status = 1;
+        } finally {
+            //
+            // Close before exiting so archives get their directory or index
+            //
+            try {
+                if (sink != null) {
+                    sink.close();
+                }
+                if (manifest != null) {
+                    manifest.close();
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                status = 1;
+            }
+        }
+
+        writeMetrics();
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    private static void runShard() {
+        ManifestReader manifest = null;
+        ShardWriter writer = null;
+        int status = 0;
+
+        try {
+            writer = new ShardWriter(shardDirectory, shard, shardCount, manifestFile,
+                    KeyFingerprint.of(keyPair.getPublic()), format);
+            if (writer.isComplete()) {
+                System.err.println("Shard " + shard + " of " + shardCount + " is already complete");
+            } else {
+                manifest = ManifestReader.open(manifestFile, defaultDateFormat);
+                manifest.setShard(shard, shardCount);
+                long resumed = writer.resume(manifest);
+
+                BatchIssuer issuer = new BatchIssuer(keyPair, writer, threads, recordFingerprint);
+                issuer.issue(manifest, writer);
+                writer.finish();
+
+                System.err.println("Shard " + shard + " of " + shardCount + ": issued " + issuer.getIssued() +
+                        " licenses (" + issuer.getFailed() + " rows rejected, " + resumed +
+                        " rows done by earlier runs) using " + threads + " signing threads");
+                issuer.getStats().report(System.err, issuer.getIssued());
+            }
+            if (writer.getRejected() > 0) {
+                status = 2;
+            }
+        } catch (IOException ex) {
+            System.err.println("\nError: " + ex.getMessage());
+            System.err.println("Run the same command again to resume the shard\n");
+            status = 1;
+        } finally {
+            try {
+                if (writer != null) {
+                    writer.close();
+                }
+                if (manifest != null) {
+                    manifest.close();
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                status = 1;
+            }
+        }
+
+        writeMetrics();
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    private static void runMerge() {
+        LicenseSink sink = null;
+        int status = 0;
+
+        try {
+            ShardMerger merger = new ShardMerger(mergeDirectory);
+            List<Integer> incomplete = merger.getIncomplete();
+            if (!incomplete.isEmpty()) {
+                System.err.println("\nError: Not every shard is complete.  Run these again:");
+                for (int x : incomplete) {
+                    System.err.println("  -j " + x + "/" + merger.getShards());
+                }
+                System.err.println();
+                System.exit(1);
+            }
+
+            sink = createSink();
+            File report = new File(mergeDirectory, ShardMerger.MERGED_REPORT);
+            merger.merge(sink, report);
+            System.err.println("Merged " + merger.getMerged() + " licenses from " + merger.getShards() +
+                    " shards (" + merger.getRejected() + " rows rejected, reported in " + report + ")");
+        } catch (IOException ex) {
+            System.err.println("\nError: " + ex.getMessage() + "\n");
+            status = 1;
+        } finally {
+            try {
+                if (sink != null) {
+                    sink.close();
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                status = 1;
+            }
+        }
+
+        writeMetrics();
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    private static void runRotation() {
+        long start = System.currentTimeMillis();
+        LicenseRotator rotator = new LicenseRotator(oldKeyPair.getPublic(), keyPair, threads,
+                recordFingerprint);
+        try {
+            rotator.rotate(rotateDirectory, outputDirectory, checkpointFile);
+        } catch (IOException ex) {
+            System.err.println("\nError: " + ex.getMessage());
+            System.err.println("Run the same command again to resume from " + checkpointFile + "\n");
+            System.exit(1);
+        } catch (InterruptedException ex) {
+            System.err.println("Interrupted");
+            System.exit(1);
+        }
+
+        System.err.println("Rotated " + rotator.getRotated() + " licenses (" +
+                rotator.getAlreadyRotated() + " already rotated, " + rotator.getRejected() +
+                " rejected, " + rotator.getUnreadable() + " unreadable, " + rotator.getResumed() +
+                " done by earlier runs) in " + (System.currentTimeMillis() - start) + " ms using " +
+                threads + " threads");
+        writeMetrics();
+        if (rotator.getRejected() + rotator.getUnreadable() > 0) {
+            System.exit(2);
+        }
+    }
+
+    private static void runServer() {
+        try {
+            final SigningServer server = new SigningServer(keyPair, serverAddress, threads,
+                    defaultDateFormat, format, recordFingerprint);
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    server.stop();
+                }
+            });
+            server.start();
+            System.err.println("Listening on " + server.getAddress());
+        } catch (IOException ex) {
+            System.err.println("\nError starting server: " + ex.getMessage() + "\n");
+            System.exit(1);
+        }
     }
 
     /**
@@ -286,55 +799,95 @@ public class Main {
     public static void main(String[] args) {
         parseArguments(args);
 
-        //
-        // Create the license information
-        //
-        license = LicenseFactory.createLicense();
-
-        if (startDate != null) {
-            license.setStartDate(startDate);
+        if (serverAddress != null) {
+            runServer();
+            return;
         }
 
-        if (expirationDate != null) {
-            license.setExpirationDate(expirationDate);
+        if (mergeDirectory != null) {
+            runMerge();
+            return;
         }
 
-        if (floatingExpirationPeriod != null) {
-            license.setFloatingExpirationPeriod(floatingExpirationPeriod);
+        if (shardCount > 0) {
+            runShard();
+            return;
         }
 
-        for (final Enumeration propNames = properties.propertyNames(); propNames.hasMoreElements();) {
-            final String key = (String) propNames.nextElement();
-            license.addProperty(key, properties.getProperty(key));
+        if (manifestFile != null) {
+            runBatch();
+            return;
         }
 
-        for (String address : hardwareAddresses) {
-            license.addHardwareAddress(address);
+        if (rotateDirectory != null) {
+            runRotation();
+            return;
         }
 
+        //
+        // Create the license information
+        //
+        LicenseSpec spec = new LicenseSpec();
+        spec.setStartDate(startDate);
+        spec.setExpirationDate(expirationDate);
+        spec.setFloatingExpirationPeriod(floatingExpirationPeriod);
+        spec.getProperties().putAll(properties);
+        spec.getHardwareAddresses().addAll(hardwareAddresses);
+        license = spec.createLicense();
+
         //
         // Finally, sign the file
         //
 
-        LicenseSigner signer = LicenseSigner.createLicenseSigner((DSAPrivateKey) keyPair.getPrivate());
-        signer.sign(license);
+        license = new LicenseKeySigner(keyPair, recordFingerprint).sign(license);
 
         try {
             //
             // Export to file
             //
             if (stdOut) {
-                ByteArrayOutputStream os = new ByteArrayOutputStream();
-                LicenseIO.exportLicense(license, os);
-                System.out.println(os.toString());
-                os.close();
+                format.write(license, System.out);
+                System.out.flush();
             } else {
-                LicenseIO.exportLicense(license, licenseFile);
+                OutputStream out = new FileOutputStream(licenseFile);
+                try {
+                    format.write(license, out);
+                } finally {
+                    out.close();
+                }
+                if (expirationIndexFile != null) {
+                    indexLicense();
+                }
             }
         } catch (IOException ex) {
             ex.printStackTrace();
         }
 
+        writeMetrics();
+    }
+
+    private static void indexLicense() throws IOException {
+        String id = licenseFile.getName();
+        if (id.endsWith(DirectoryLicenseSink.EXTENSION)) {
+            id = id.substring(0, id.length() - DirectoryLicenseSink.EXTENSION.length());
+        }
 
+        ExpirationIndexWriter index = new ExpirationIndexWriter(expirationIndexFile);
+        try {
+            index.add(ExpirationIndex.Entry.fromLicense(id, license));
+        } finally {
+            index.close();
+        }
+    }
+
+    private static void writeMetrics() {
+        if (metricsFile == null) {
+            return;
+        }
+        try {
+            Metrics.getDefault().writeJson(metricsFile);
+        } catch (IOException ex) {
+            System.err.println("\nError: Unable to write metrics: " + ex.getMessage() + "\n");
+        }
     }
 }
@@ -0,0 +1,286 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.licensemaker;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Reads license rows from a batch manifest.  Two layouts are understood:
+ *
+ * <ul>
+ * <li>CSV, with a header row naming the columns.</li>
+ * <li>JSON lines, one object per line.</li>
+ * </ul>
+ *
+ * The fields of each row are described by {@link LicenseSpec#fromFields}.
+ * In CSV, values containing commas must be quoted.  Rows without an id
+ * are named after their row number.
+ *
+ * A reader may be limited to one shard of the manifest, so that several
+ * processes can each issue part of it.  Rows are assigned to shards by a
+ * CRC-32 of their id, or of their row number when they have no id or
+ * cannot be read, so every process reading the same manifest agrees on
+ * the split.  Rows of other shards are skipped before their fields are
+ * turned into licenses.
+ */
+public final class ManifestReader {
+
+    private final BufferedReader reader;
+    private final boolean json;
+    private final String dateFormat;
+    private String[] header;
+    private int row = 0;
+    private int shard = 0;
+    private int shardCount = 1;
+
+    public ManifestReader(Reader reader, boolean json, String dateFormat) {
+        this.reader = new BufferedReader(reader);
+        this.json = json;
+        this.dateFormat = dateFormat;
+    }
+
+    /**
+     * Read a manifest of either layout, telling them apart by whether the
+     * first non-blank line is a JSON object.
+     */
+    public ManifestReader(Reader reader, String dateFormat) throws IOException {
+        this.reader = new BufferedReader(reader);
+        this.json = startsWithObject(this.reader);
+        this.dateFormat = dateFormat;
+    }
+
+    /**
+     * Open a manifest file, choosing the layout from its extension: files
+     * ending in .json or .jsonl are read as JSON lines, anything else as CSV.
+     * A file named "-" reads standard in, choosing the layout from the
+     * content.
+     */
+    public static ManifestReader open(File file, String dateFormat) throws IOException {
+        if (file.getPath().equals("-")) {
+            return new ManifestReader(new InputStreamReader(System.in, "UTF-8"), dateFormat);
+        }
+
+        String name = file.getName().toLowerCase();
+        boolean json = name.endsWith(".jsonl") || name.endsWith(".json");
+        return new ManifestReader(new InputStreamReader(new FileInputStream(file), "UTF-8"),
+                json, dateFormat);
+    }
+
+    /**
+     * Return only the rows of one shard from now on.
+     *
+     * @param shard The shard, from 0 to count - 1.
+     */
+    public void setShard(int shard, int count) {
+        if (count < 1 || shard < 0 || shard >= count) {
+            throw new IllegalArgumentException("Invalid shard " + shard + " of " + count);
+        }
+        this.shard = shard;
+        this.shardCount = count;
+    }
+
+    /**
+     * @return The shard, from 0 to count - 1, of a row with the given id.
+     */
+    static int shardOf(String id, int count) {
+        CRC32 crc = new CRC32();
+        try {
+            crc.update(id.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException ex) {
+            // Every Java platform is required to support UTF-8
+            throw new IllegalStateException(ex);
+        }
+        return (int) (crc.getValue() % count);
+    }
+
+    /**
+     * @return The 1-based number of the last row returned by next().
+     */
+    public int getRow() {
+        return row;
+    }
+
+    /**
+     * Read the next license row.
+     *
+     * @return The next spec, or null at the end of the manifest.
+     */
+    public LicenseSpec next() throws IOException, ManifestException {
+        while (true) {
+            String line = reader.readLine();
+            if (line == null) {
+                return null;
+            }
+            if (line.trim().length() == 0) {
+                continue;
+            }
+
+            if (!json && header == null) {
+                header = splitCsv(line);
+                if (header == null) {
+                    throw new ManifestException(0, "Invalid CSV header");
+                }
+                for (int x = 0; x < header.length; x++) {
+                    header[x] = header[x].trim().toLowerCase();
+                }
+                continue;
+            }
+
+            row++;
+            Map<String, Object> fields;
+            try {
+                fields = json ? JsonParser.parseObject(line) : csvFields(line);
+            } catch (IllegalArgumentException e) {
+                if (!inShard(null)) {
+                    continue;
+                }
+                throw new ManifestException(row, e.getMessage());
+            }
+            if (inShard(fields.get(LicenseSpec.ID))) {
+                return toSpec(fields);
+            }
+        }
+    }
+
+    private boolean inShard(Object id) {
+        if (shardCount == 1) {
+            return true;
+        }
+        String key = id == null ? "" : id.toString();
+        if (key.trim().length() == 0) {
+            key = Integer.toString(row);
+        }
+        return shardOf(key, shardCount) == shard;
+    }
+
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private static boolean startsWithObject(BufferedReader reader) throws IOException {
+        reader.mark(8192);
+        try {
+            for (int x = 0; x < 8192; x++) {
+                int c = reader.read();
+                if (c < 0 || !Character.isWhitespace((char) c)) {
+                    return c == '{';
+                }
+            }
+            return false;
+        } finally {
+            reader.reset();
+        }
+    }
+
+    private Map<String, Object> csvFields(String line) throws IOException {
+        String[] values = splitCsv(line);
+
+        //
+        // A quoted value may span several physical lines
+        //
+        while (values == null) {
+            String more = reader.readLine();
+            if (more == null) {
+                throw new IllegalArgumentException("Unterminated quoted value");
+            }
+            line = line + "\n" + more;
+            values = splitCsv(line);
+        }
+
+        if (values.length > header.length) {
+            throw new IllegalArgumentException("Expected " + header.length +
+                    " values but found " + values.length);
+        }
+
+        Map<String, Object> fields = new HashMap<String, Object>();
+        for (int x = 0; x < values.length; x++) {
+            fields.put(header[x], values[x]);
+        }
+        return fields;
+    }
+
+    /**
+     * Split a single CSV record.
+     *
+     * @return The values, or null if the line ends inside a quoted value.
+     */
+    static String[] splitCsv(String line) {
+        List<String> values = new ArrayList<String>();
+        StringBuilder sb = new StringBuilder();
+        boolean quoted = false;
+
+        for (int x = 0; x < line.length(); x++) {
+            char c = line.charAt(x);
+            if (quoted) {
+                if (c == '"') {
+                    if (x + 1 < line.length() && line.charAt(x + 1) == '"') {
+                        sb.append('"');
+                        x++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    sb.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                values.add(sb.toString());
+                sb.setLength(0);
+            } else {
+                sb.append(c);
+            }
+        }
+
+        if (quoted) {
+            return null;
+        }
+        values.add(sb.toString());
+        return values.toArray(new String[0]);
+    }
+
+    private LicenseSpec toSpec(Map<String, Object> fields) throws ManifestException {
+        LicenseSpec spec;
+        try {
+            spec = LicenseSpec.fromFields(fields, dateFormat);
+        } catch (IllegalArgumentException e) {
+            throw new ManifestException(row, e.getMessage());
+        }
+
+        if (spec.getId() == null) {
+            spec.setId(Integer.toString(row));
+        }
+        return spec;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.licensemaker;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe latency counters for the stages of a batch run.
+ */
+public final class PipelineStats {
+
+    /**
+     * Cumulative and worst-case latency of a single pipeline stage.
+     */
+    public static final class Stage {
+
+        private final String name;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Record one item that entered the stage at the given System.nanoTime().
+         */
+        public void record(long startNanos) {
+            long elapsed = System.nanoTime() - startNanos;
+            count.incrementAndGet();
+            totalNanos.addAndGet(elapsed);
+
+            long max = maxNanos.get();
+            while (elapsed > max && !maxNanos.compareAndSet(max, elapsed)) {
+                max = maxNanos.get();
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public double getAverageMillis() {
+            long c = count.get();
+            return c == 0 ? 0 : totalNanos.get() / (c * 1000000.0);
+        }
+
+        public double getMaxMillis() {
+            return maxNanos.get() / 1000000.0;
+        }
+    }
+
+    private final List<Stage> stages = new ArrayList<Stage>();
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * Create a new stage; stages are reported in creation order.
+     */
+    public synchronized Stage stage(String name) {
+        Stage stage = new Stage(name);
+        stages.add(stage);
+        return stage;
+    }
+
+    public long getElapsedMillis() {
+        return (System.nanoTime() - startNanos) / 1000000L;
+    }
+
+    /**
+     * Print throughput for the given number of items followed by the
+     * average and maximum latency of every stage.
+     */
+    public synchronized void report(PrintStream out, long items) {
+        long elapsed = Math.max(1, getElapsedMillis());
+        out.println(String.format("Throughput: %.1f licenses/sec over %d ms",
+                items * 1000.0 / elapsed, elapsed));
+        for (Stage stage : stages) {
+            out.println(String.format("   %-8s avg %9.3f ms   max %9.3f ms   (%d)",
+                    stage.getName(), stage.getAverageMillis(), stage.getMaxMillis(),
+                    stage.getCount()));
+        }
+    }
+}
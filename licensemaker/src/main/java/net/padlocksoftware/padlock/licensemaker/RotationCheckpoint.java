@@ -0,0 +1,151 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.licensemaker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Progress of a key rotation, saved so an interrupted run can carry on.
+ *
+ * Licenses are rotated in a fixed order, so progress is just the number of
+ * licenses finished in that order and the path of the last one; licenses
+ * finished out of order past that point are simply rotated again.  The
+ * file is replaced atomically, so it is always either the old or the new
+ * checkpoint.
+ */
+final class RotationCheckpoint {
+
+    private static final String SOURCE = "source";
+    private static final String KEY = "key";
+    private static final String PROCESSED = "processed";
+    private static final String LAST = "last";
+    private static final String COMPLETE = "complete";
+
+    private final File file;
+    private final String source;
+    private final String key;
+    private long processed = 0;
+    private String last = null;
+    private boolean complete = false;
+
+    private RotationCheckpoint(File file, String source, String key) {
+        this.file = file;
+        this.source = source;
+        this.key = key;
+    }
+
+    /**
+     * Load the checkpoint of a run over source with the new key, or start
+     * a fresh one if the file does not exist.
+     *
+     * @throws IOException if the file belongs to a different run.
+     */
+    static RotationCheckpoint load(File file, File source, String keyFingerprint) throws IOException {
+        RotationCheckpoint checkpoint = new RotationCheckpoint(file, source.getAbsolutePath(),
+                keyFingerprint);
+        if (!file.exists()) {
+            return checkpoint;
+        }
+
+        Properties props = new Properties();
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            props.load(in);
+        } finally {
+            in.close();
+        }
+
+        if (!checkpoint.source.equals(props.getProperty(SOURCE)) ||
+                !keyFingerprint.equals(props.getProperty(KEY))) {
+            throw new IOException("Checkpoint " + file + " is for a different source or key");
+        }
+
+        try {
+            checkpoint.processed = Long.parseLong(props.getProperty(PROCESSED, "0"));
+        } catch (NumberFormatException ex) {
+            throw new IOException("Invalid checkpoint " + file);
+        }
+        checkpoint.last = props.getProperty(LAST);
+        checkpoint.complete = Boolean.valueOf(props.getProperty(COMPLETE, "false"));
+        return checkpoint;
+    }
+
+    /**
+     * @return The number of licenses finished in rotation order.
+     */
+    long getProcessed() {
+        return processed;
+    }
+
+    /**
+     * @return The path, relative to the source, of the last license
+     * finished in order, or null if none are.
+     */
+    String getLast() {
+        return last;
+    }
+
+    boolean isComplete() {
+        return complete;
+    }
+
+    void advance(String path) {
+        processed++;
+        last = path;
+    }
+
+    void save(boolean complete) throws IOException {
+        this.complete = complete;
+
+        Properties props = new Properties();
+        props.setProperty(SOURCE, source);
+        props.setProperty(KEY, key);
+        props.setProperty(PROCESSED, Long.toString(processed));
+        if (last != null) {
+            props.setProperty(LAST, last);
+        }
+        props.setProperty(COMPLETE, Boolean.toString(complete));
+
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temp);
+        BufferedOutputStream out = new BufferedOutputStream(stream);
+        try {
+            props.store(out, "License key rotation checkpoint");
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+            throw new IOException("Unable to replace checkpoint: " + file);
+        }
+    }
+}
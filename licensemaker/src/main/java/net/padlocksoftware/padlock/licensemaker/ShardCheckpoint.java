@@ -0,0 +1,232 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.licensemaker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Progress of one shard of a sharded batch, saved so an interrupted run
+ * can carry on.
+ *
+ * A shard's rows are issued and reported in manifest order, so progress
+ * is the number of its rows finished and the lengths its records and
+ * report files had at that point; anything written past them is thrown
+ * away and issued again.  The manifest is recognised by name and length
+ * rather than path, since the shards of one batch may run on machines
+ * that mount the shared file system in different places.  The file is
+ * replaced atomically, as RotationCheckpoint's is.
+ */
+final class ShardCheckpoint {
+
+    private static final String MANIFEST = "manifest";
+    private static final String MANIFEST_LENGTH = "manifestLength";
+    private static final String KEY = "key";
+    private static final String SHARD = "shard";
+    private static final String SHARDS = "shards";
+    private static final String ROWS = "rows";
+    private static final String ISSUED = "issued";
+    private static final String REJECTED = "rejected";
+    private static final String RECORDS_LENGTH = "recordsLength";
+    private static final String REPORT_LENGTH = "reportLength";
+    private static final String COMPLETE = "complete";
+
+    private final File file;
+    private String manifest;
+    private long manifestLength;
+    private String key;
+    private int shard;
+    private int shards;
+    private long rows = 0;
+    private long issued = 0;
+    private long rejected = 0;
+    private long recordsLength = 0;
+    private long reportLength = 0;
+    private boolean complete = false;
+
+    private ShardCheckpoint(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Load the checkpoint of a shard, or start a fresh one if the file does
+     * not exist.
+     *
+     * @throws IOException if the file belongs to a different batch.
+     */
+    static ShardCheckpoint load(File file, File manifest, String keyFingerprint, int shard, int shards)
+            throws IOException {
+        ShardCheckpoint checkpoint = new ShardCheckpoint(file);
+        checkpoint.manifest = manifest.getName();
+        checkpoint.manifestLength = manifest.length();
+        checkpoint.key = keyFingerprint;
+        checkpoint.shard = shard;
+        checkpoint.shards = shards;
+        if (!file.exists()) {
+            return checkpoint;
+        }
+
+        ShardCheckpoint saved = read(file);
+        if (!saved.manifest.equals(checkpoint.manifest) || saved.manifestLength != checkpoint.manifestLength ||
+                !saved.key.equals(keyFingerprint) || saved.shard != shard || saved.shards != shards) {
+            throw new IOException("Checkpoint " + file + " is for a different manifest, key or shard");
+        }
+        return saved;
+    }
+
+    /**
+     * Read a checkpoint as it was saved.
+     */
+    static ShardCheckpoint read(File file) throws IOException {
+        Properties props = new Properties();
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            props.load(in);
+        } finally {
+            in.close();
+        }
+
+        ShardCheckpoint checkpoint = new ShardCheckpoint(file);
+        checkpoint.manifest = props.getProperty(MANIFEST);
+        checkpoint.key = props.getProperty(KEY);
+        if (checkpoint.manifest == null || checkpoint.key == null) {
+            throw new IOException("Invalid checkpoint " + file);
+        }
+        try {
+            checkpoint.manifestLength = Long.parseLong(props.getProperty(MANIFEST_LENGTH, "-1"));
+            checkpoint.shard = Integer.parseInt(props.getProperty(SHARD, "-1"));
+            checkpoint.shards = Integer.parseInt(props.getProperty(SHARDS, "0"));
+            checkpoint.rows = Long.parseLong(props.getProperty(ROWS, "0"));
+            checkpoint.issued = Long.parseLong(props.getProperty(ISSUED, "0"));
+            checkpoint.rejected = Long.parseLong(props.getProperty(REJECTED, "0"));
+            checkpoint.recordsLength = Long.parseLong(props.getProperty(RECORDS_LENGTH, "0"));
+            checkpoint.reportLength = Long.parseLong(props.getProperty(REPORT_LENGTH, "0"));
+        } catch (NumberFormatException ex) {
+            throw new IOException("Invalid checkpoint " + file);
+        }
+        checkpoint.complete = Boolean.valueOf(props.getProperty(COMPLETE, "false"));
+        return checkpoint;
+    }
+
+    String getManifest() {
+        return manifest;
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    int getShard() {
+        return shard;
+    }
+
+    int getShards() {
+        return shards;
+    }
+
+    /**
+     * @return The number of the shard's rows finished in manifest order.
+     */
+    long getRows() {
+        return rows;
+    }
+
+    long getIssued() {
+        return issued;
+    }
+
+    long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * @return The length of the records file when the checkpoint was saved.
+     */
+    long getRecordsLength() {
+        return recordsLength;
+    }
+
+    /**
+     * @return The length of the report file when the checkpoint was saved.
+     */
+    long getReportLength() {
+        return reportLength;
+    }
+
+    boolean isComplete() {
+        return complete;
+    }
+
+    void advance(boolean issued) {
+        rows++;
+        if (issued) {
+            this.issued++;
+        } else {
+            rejected++;
+        }
+    }
+
+    /**
+     * @param recordsLength The length of the records file, synced to disk.
+     * @param reportLength The length of the report file, synced to disk.
+     */
+    void save(long recordsLength, long reportLength, boolean complete) throws IOException {
+        this.recordsLength = recordsLength;
+        this.reportLength = reportLength;
+        this.complete = complete;
+
+        Properties props = new Properties();
+        props.setProperty(MANIFEST, manifest);
+        props.setProperty(MANIFEST_LENGTH, Long.toString(manifestLength));
+        props.setProperty(KEY, key);
+        props.setProperty(SHARD, Integer.toString(shard));
+        props.setProperty(SHARDS, Integer.toString(shards));
+        props.setProperty(ROWS, Long.toString(rows));
+        props.setProperty(ISSUED, Long.toString(issued));
+        props.setProperty(REJECTED, Long.toString(rejected));
+        props.setProperty(RECORDS_LENGTH, Long.toString(recordsLength));
+        props.setProperty(REPORT_LENGTH, Long.toString(reportLength));
+        props.setProperty(COMPLETE, Boolean.toString(complete));
+
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temp);
+        BufferedOutputStream out = new BufferedOutputStream(stream);
+        try {
+            props.store(out, "License batch shard checkpoint");
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+            throw new IOException("Unable to replace checkpoint: " + file);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.licensemaker;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import net.padlocksoftware.padlock.common.LicenseFormat;
+import net.padlocksoftware.padlock.common.LicenseRecord;
+
+/**
+ * Joins the shards of a sharded batch once every one is complete: the
+ * licenses of each shard in turn go to a single LicenseSink, and the
+ * shard reports are concatenated into one.  Licenses come out grouped by
+ * shard, not in manifest order.  A license the sink refuses as a
+ * duplicate of one already merged is left out and reported as a rejected
+ * row of its shard.
+ *
+ * The shard count is taken from the checkpoints in the shard directory,
+ * which must all belong to the same manifest and key.
+ */
+public final class ShardMerger {
+
+    /**
+     * Name of the concatenated report, written to the shard directory.
+     */
+    static final String MERGED_REPORT = "merged" + ShardWriter.REPORT;
+
+    private static final Pattern CHECKPOINT = Pattern.compile(
+            "shard-(\\d+)-of-(\\d+)" + Pattern.quote(ShardWriter.CHECKPOINT));
+
+    private final File directory;
+    private final ShardCheckpoint[] checkpoints;
+    private long merged = 0;
+    private long rejected = 0;
+
+    /**
+     * Read the checkpoints of every shard in the directory.
+     *
+     * @throws IOException if there are none, or they belong to different
+     * batches.
+     */
+    public ShardMerger(File directory) throws IOException {
+        this.directory = directory;
+
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Not a directory: " + directory);
+        }
+        ShardCheckpoint[] found = null;
+        ShardCheckpoint first = null;
+        for (File file : files) {
+            Matcher m = CHECKPOINT.matcher(file.getName());
+            if (!m.matches()) {
+                continue;
+            }
+            ShardCheckpoint checkpoint = ShardCheckpoint.read(file);
+            if (first == null) {
+                first = checkpoint;
+                found = new ShardCheckpoint[checkpoint.getShards()];
+            } else if (checkpoint.getShards() != first.getShards() ||
+                    !checkpoint.getManifest().equals(first.getManifest()) ||
+                    !checkpoint.getKey().equals(first.getKey())) {
+                throw new IOException("Shard directory " + directory + " holds shards of different batches");
+            }
+            if (checkpoint.getShard() < 0 || checkpoint.getShard() >= found.length ||
+                    !m.group(1).equals(Integer.toString(checkpoint.getShard()))) {
+                throw new IOException("Invalid checkpoint " + file);
+            }
+            found[checkpoint.getShard()] = checkpoint;
+        }
+        if (found == null) {
+            throw new IOException("No shard checkpoints in " + directory);
+        }
+        this.checkpoints = found;
+    }
+
+    public int getShards() {
+        return checkpoints.length;
+    }
+
+    /**
+     * @return The shards that have not run, or not run to the end.  Only
+     * these need running again before the merge.
+     */
+    public List<Integer> getIncomplete() {
+        List<Integer> incomplete = new ArrayList<Integer>();
+        for (int shard = 0; shard < checkpoints.length; shard++) {
+            if (checkpoints[shard] == null || !checkpoints[shard].isComplete()) {
+                incomplete.add(shard);
+            }
+        }
+        return incomplete;
+    }
+
+    /**
+     * Write every shard's licenses to the sink, and their reports to one
+     * report file along with any licenses the sink refused as duplicates.
+     *
+     * @throws IOException if a shard is incomplete.
+     */
+    public void merge(LicenseSink sink, File report) throws IOException {
+        List<Integer> incomplete = getIncomplete();
+        if (!incomplete.isEmpty()) {
+            throw new IOException("Shards " + incomplete + " of " + checkpoints.length + " are not complete");
+        }
+
+        OutputStream out = new FileOutputStream(report);
+        try {
+            for (int shard = 0; shard < checkpoints.length; shard++) {
+                mergeRecords(shard, sink, out);
+                copy(ShardWriter.file(directory, shard, checkpoints.length, ShardWriter.REPORT),
+                        checkpoints[shard].getReportLength(), out);
+                rejected += checkpoints[shard].getRejected();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private void mergeRecords(int shard, LicenseSink sink, OutputStream report) throws IOException {
+        File file = ShardWriter.file(directory, shard, checkpoints.length, ShardWriter.RECORDS);
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "US-ASCII"),
+                64 * 1024);
+        try {
+            long count = 0;
+            long duplicates = 0;
+            String line;
+            while (count < checkpoints[shard].getIssued() && (line = in.readLine()) != null) {
+                LicenseRecord record;
+                try {
+                    record = LicenseRecord.parse(line);
+                } catch (IllegalArgumentException ex) {
+                    throw new IOException(file + ": " + ex.getMessage());
+                }
+                try {
+                    sink.write(record.getId(), LicenseFormat.read(record.getLicense()));
+                } catch (DuplicateLicenseException ex) {
+                    report.write(("{\"shard\":" + shard + ",\"error\":" + JsonParser.quote(ex.getMessage()) +
+                            "}\n").getBytes("UTF-8"));
+                    duplicates++;
+                }
+                count++;
+            }
+            if (count != checkpoints[shard].getIssued()) {
+                throw new IOException(file + " holds " + count + " licenses, not " +
+                        checkpoints[shard].getIssued());
+            }
+            merged += count - duplicates;
+            rejected += duplicates;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void copy(File file, long length, OutputStream out) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            long remaining = length;
+            while (remaining > 0) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (n < 0) {
+                    throw new IOException(file + " is shorter than its checkpoint");
+                }
+                out.write(buffer, 0, n);
+                remaining -= n;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return Number of licenses merged.  Only meaningful once merge() returns.
+     */
+    public long getMerged() {
+        return merged;
+    }
+
+    /**
+     * @return Number of rows the shards rejected.
+     */
+    public long getRejected() {
+        return rejected;
+    }
+}
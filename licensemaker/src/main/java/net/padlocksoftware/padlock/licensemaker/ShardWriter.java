@@ -0,0 +1,232 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.licensemaker;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+import net.padlocksoftware.padlock.common.LicenseFormat;
+import net.padlocksoftware.padlock.common.LicenseRecord;
+import net.padlocksoftware.padlock.license.License;
+
+/**
+ * Output of one shard of a sharded batch.  Licenses are written as
+ * LicenseRecord lines, as LicenseMaker -O writes them, and rejected rows
+ * as JSON lines in a report, with progress checkpointed about once a
+ * second.  For shard 3 of 8 the shard directory holds:
+ *
+ * <pre>
+ *   shard-3-of-8.records      one LicenseRecord line per license
+ *   shard-3-of-8.report       one JSON line per rejected row, then a summary
+ *   shard-3-of-8.checkpoint   progress, see ShardCheckpoint
+ * </pre>
+ *
+ * Each shard owns its files, so shards run as separate processes, on one
+ * machine or several sharing a file system, without coordinating.  Run
+ * again after a failure, a shard drops whatever it wrote after its last
+ * checkpoint and carries on from there.  ShardMerger joins the shards.
+ *
+ * Not safe for use from multiple threads; BatchIssuer calls it from its
+ * writer thread alone.
+ */
+public final class ShardWriter implements LicenseSink, BatchIssuer.RowListener {
+
+    static final String RECORDS = ".records";
+    static final String REPORT = ".report";
+    static final String CHECKPOINT = ".checkpoint";
+
+    private static final long SAVE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private final int shard;
+    private final int shards;
+    private final LicenseFormat format;
+    private final ShardCheckpoint checkpoint;
+    private final FileOutputStream recordsStream;
+    private final OutputStream records;
+    private final FileOutputStream reportStream;
+    private final OutputStream report;
+    private long recordsLength;
+    private long reportLength;
+    private long lastSave = System.nanoTime();
+
+    /**
+     * Open a shard's files, resuming from its checkpoint if it has one.
+     *
+     * @param shard The shard, from 0 to shards - 1.
+     * @throws IOException if the shard directory holds a checkpoint of
+     * another manifest or key.
+     */
+    public ShardWriter(File directory, int shard, int shards, File manifest, String keyFingerprint,
+            LicenseFormat format) throws IOException {
+        //
+        // Shards started together race to create the directory
+        //
+        if (!directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Unable to create shard directory: " + directory);
+        }
+        this.shard = shard;
+        this.shards = shards;
+        this.format = format;
+        this.checkpoint = ShardCheckpoint.load(file(directory, shard, shards, CHECKPOINT), manifest,
+                keyFingerprint, shard, shards);
+
+        recordsLength = checkpoint.getRecordsLength();
+        reportLength = checkpoint.getReportLength();
+        recordsStream = open(file(directory, shard, shards, RECORDS), recordsLength);
+        try {
+            reportStream = open(file(directory, shard, shards, REPORT), reportLength);
+        } catch (IOException ex) {
+            recordsStream.close();
+            throw ex;
+        }
+        records = new BufferedOutputStream(recordsStream, 64 * 1024);
+        report = new BufferedOutputStream(reportStream, 8 * 1024);
+    }
+
+    static File file(File directory, int shard, int shards, String extension) {
+        return new File(directory, "shard-" + shard + "-of-" + shards + extension);
+    }
+
+    /**
+     * Open a file for appending after dropping anything written past the
+     * given length.
+     */
+    private static FileOutputStream open(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < length) {
+                throw new IOException(file + " is shorter than its checkpoint");
+            }
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+        return new FileOutputStream(file, true);
+    }
+
+    /**
+     * Skip the rows that earlier runs of this shard finished.  The
+     * manifest must already be limited to this shard.
+     *
+     * @return The number of rows skipped.
+     */
+    public long resume(ManifestReader manifest) throws IOException {
+        for (long x = 0; x < checkpoint.getRows(); x++) {
+            try {
+                if (manifest.next() == null) {
+                    throw new IOException("Manifest has fewer rows than the shard checkpoint");
+                }
+            } catch (ManifestException ex) {
+                // Rejected, and reported, by the earlier run
+            }
+        }
+        return checkpoint.getRows();
+    }
+
+    /**
+     * @return Whether an earlier run finished the shard.
+     */
+    public boolean isComplete() {
+        return checkpoint.isComplete();
+    }
+
+    public long getIssued() {
+        return checkpoint.getIssued();
+    }
+
+    public long getRejected() {
+        return checkpoint.getRejected();
+    }
+
+    public void write(String id, License license) throws IOException {
+        byte[] line = (new LicenseRecord(id, format.toBytes(license)).toLine() + "\n").getBytes("US-ASCII");
+        records.write(line);
+        recordsLength += line.length;
+    }
+
+    public void issued(String id) throws IOException {
+        checkpoint.advance(true);
+        saveIfDue();
+    }
+
+    public void rejected(String error) throws IOException {
+        writeReport("{\"shard\":" + shard + ",\"error\":" + JsonParser.quote(error) + "}");
+        checkpoint.advance(false);
+        saveIfDue();
+    }
+
+    private void writeReport(String line) throws IOException {
+        byte[] bytes = (line + "\n").getBytes("UTF-8");
+        report.write(bytes);
+        reportLength += bytes.length;
+    }
+
+    private void saveIfDue() throws IOException {
+        if (System.nanoTime() - lastSave >= SAVE_INTERVAL) {
+            save(false);
+        }
+    }
+
+    /**
+     * Sync both files, then record how far they go.
+     */
+    private void save(boolean complete) throws IOException {
+        records.flush();
+        recordsStream.getFD().sync();
+        report.flush();
+        reportStream.getFD().sync();
+        checkpoint.save(recordsLength, reportLength, complete);
+        lastSave = System.nanoTime();
+    }
+
+    /**
+     * Add the shard's summary to its report and mark it complete.  Call
+     * once BatchIssuer.issue() has returned without error.
+     */
+    public void finish() throws IOException {
+        writeReport("{\"shard\":" + shard + ",\"shards\":" + shards + ",\"rows\":" + checkpoint.getRows() +
+                ",\"issued\":" + checkpoint.getIssued() + ",\"rejected\":" + checkpoint.getRejected() + "}");
+        save(true);
+    }
+
+    /**
+     * Save progress, unless finished, and close the files.
+     */
+    public void close() throws IOException {
+        try {
+            if (!checkpoint.isComplete()) {
+                save(false);
+            }
+        } finally {
+            try {
+                records.close();
+            } finally {
+                report.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.licensemaker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import net.padlocksoftware.padlock.common.LicenseFormat;
+import net.padlocksoftware.padlock.common.LicenseKeySigner;
+import net.padlocksoftware.padlock.license.License;
+
+/**
+ * Signs license requests from many concurrent callers on a fixed set of
+ * signer threads.  Each signer takes whatever requests have queued up since
+ * its last pass, up to maxBatch, and signs them back to back, so a burst of
+ * callers costs one hand-off per batch rather than per request and the
+ * number of threads competing for CPU never grows with the load.
+ */
+public final class SigningBatcher {
+
+    private static final class Request {
+        final LicenseSpec spec;
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile boolean abandoned = false;
+        byte[] license;
+        RuntimeException error;
+
+        Request(LicenseSpec spec) {
+            this.spec = spec;
+        }
+    }
+
+    private final KeyPair keyPair;
+    private final boolean recordFingerprint;
+    private final LicenseFormat format;
+    private final int maxBatch;
+    private final BlockingQueue<Request> queue;
+    private final Thread[] signers;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private volatile boolean running = true;
+
+    public SigningBatcher(KeyPair keyPair, int threads, int maxBatch, int queueSize) {
+        this(keyPair, LicenseFormat.TEXT, threads, maxBatch, queueSize);
+    }
+
+    public SigningBatcher(KeyPair keyPair, LicenseFormat format, int threads, int maxBatch,
+            int queueSize) {
+        this(keyPair, format, threads, maxBatch, queueSize, false);
+    }
+
+    /**
+     * @param recordFingerprint Whether licenses record the fingerprint of
+     * keyPair, for validators holding more than one key.
+     */
+    public SigningBatcher(KeyPair keyPair, LicenseFormat format, int threads, int maxBatch,
+            int queueSize, boolean recordFingerprint) {
+        if (threads < 1 || maxBatch < 1 || queueSize < 1) {
+            throw new IllegalArgumentException("threads, maxBatch and queueSize must be positive");
+        }
+        this.keyPair = keyPair;
+        this.recordFingerprint = recordFingerprint;
+        this.format = format;
+        this.maxBatch = maxBatch;
+        this.queue = new ArrayBlockingQueue<Request>(queueSize);
+        this.signers = new Thread[threads];
+
+        for (int x = 0; x < threads; x++) {
+            signers[x] = new Thread(new Runnable() {
+                public void run() {
+                    signLoop();
+                }
+            }, "LicenseSigner-" + x);
+            signers[x].setDaemon(true);
+        }
+    }
+
+    public void start() {
+        for (Thread signer : signers) {
+            signer.start();
+        }
+    }
+
+    /**
+     * Stop the signers.  Batches already taken are finished; requests still
+     * queued fail with RejectedExecutionException, as do later calls to
+     * sign().
+     */
+    public void stop() {
+        running = false;
+        for (Thread signer : signers) {
+            signer.interrupt();
+        }
+        failQueued();
+    }
+
+    private void failQueued() {
+        List<Request> stopped = new ArrayList<Request>();
+        queue.drainTo(stopped);
+        for (Request request : stopped) {
+            request.error = new RejectedExecutionException("License signing has stopped");
+            request.done.countDown();
+        }
+    }
+
+    /**
+     * Sign a license and return it exported in the batcher's format.
+     *
+     * @throws RejectedExecutionException if the queue is full or the
+     * batcher has stopped.
+     * @throws TimeoutException if the license was not signed in time.  A
+     * signer may already have taken it, so it may still be signed, but the
+     * result is discarded.
+     */
+    public byte[] sign(LicenseSpec spec, long timeoutMillis)
+            throws InterruptedException, TimeoutException {
+        Request request = new Request(spec);
+        if (!running) {
+            throw new RejectedExecutionException("License signing has stopped");
+        }
+        if (!queue.offer(request)) {
+            throw new RejectedExecutionException("Signing queue is full");
+        }
+        if (!running) {
+            //
+            // stop() may have drained the queue before this request joined it
+            //
+            failQueued();
+        }
+
+        if (!request.done.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            request.abandoned = true;
+            throw new TimeoutException("License was not signed within " + timeoutMillis + " ms");
+        }
+
+        if (request.error != null) {
+            throw request.error;
+        }
+        return request.license;
+    }
+
+    /**
+     * @return Number of requests signed or failed so far.
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return Number of batches the requests were signed in.
+     */
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public int getQueued() {
+        return queue.size();
+    }
+
+    private void signLoop() {
+        LicenseKeySigner signer = new LicenseKeySigner(keyPair, recordFingerprint);
+        List<Request> batch = new ArrayList<Request>(maxBatch);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+
+        while (running) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException ex) {
+                continue;
+            }
+            queue.drainTo(batch, maxBatch - 1);
+            batches.incrementAndGet();
+
+            for (Request request : batch) {
+                try {
+                    if (!request.abandoned) {
+                        License license = request.spec.createLicense();
+                        license = signer.sign(license);
+                        bytes.reset();
+                        format.write(license, bytes);
+                        request.license = bytes.toByteArray();
+                    }
+                } catch (IOException ex) {
+                    request.error = new IllegalStateException(ex.getMessage());
+                } catch (RuntimeException ex) {
+                    request.error = ex;
+                } finally {
+                    requests.incrementAndGet();
+                    request.done.countDown();
+                }
+            }
+            batch.clear();
+        }
+    }
+}
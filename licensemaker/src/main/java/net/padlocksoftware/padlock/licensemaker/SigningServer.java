@@ -0,0 +1,199 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.licensemaker;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.security.KeyPair;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import net.padlocksoftware.padlock.common.HttpSupport;
+import net.padlocksoftware.padlock.common.LicenseFormat;
+import net.padlocksoftware.padlock.common.Metrics;
+
+/**
+ * A resident HTTP front end for signing licenses on demand.
+ *
+ * <pre>
+ *   POST /sign    body: a JSON license spec    response: the exported license
+ *   GET  /stats   response: JSON request and batch counters
+ *   GET  /metrics response: timings and counters, Prometheus text format,
+ *                 or JSON with ?format=json
+ *   GET  /health  response: "ok"
+ * </pre>
+ *
+ * The spec uses the same fields as a batch manifest row, see
+ * {@link LicenseSpec#fromFields}.
+ */
+public final class SigningServer {
+
+    static final int MAX_SPEC_SIZE = 64 * 1024;
+    static final int MAX_BATCH = 32;
+    static final int QUEUE_SIZE = 4096;
+    static final long TIMEOUT_MILLIS = 10000;
+
+    private final SigningBatcher batcher;
+    private final String contentType;
+    private final String dateFormat;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    public SigningServer(KeyPair keyPair, InetSocketAddress address, int threads,
+            String dateFormat) throws IOException {
+        this(keyPair, address, threads, dateFormat, LicenseFormat.TEXT);
+    }
+
+    public SigningServer(KeyPair keyPair, InetSocketAddress address, int threads,
+            String dateFormat, LicenseFormat format) throws IOException {
+        this(keyPair, address, threads, dateFormat, format, false);
+    }
+
+    /**
+     * @param recordFingerprint Whether licenses record the fingerprint of
+     * keyPair, for validators holding more than one key.
+     */
+    public SigningServer(KeyPair keyPair, InetSocketAddress address, int threads,
+            String dateFormat, LicenseFormat format, boolean recordFingerprint) throws IOException {
+        this.batcher = new SigningBatcher(keyPair, format, threads, MAX_BATCH, QUEUE_SIZE,
+                recordFingerprint);
+        this.contentType = format == LicenseFormat.BINARY ?
+                "application/octet-stream" : "text/plain; charset=ISO-8859-1";
+        this.dateFormat = dateFormat;
+        registerGauges();
+
+        //
+        // Request threads mostly wait on the signers, so size the fallback
+        // pool well above the signer count
+        //
+        this.executor = HttpSupport.createExecutor(threads * 16);
+        this.server = HttpServer.create(address, 256);
+        server.setExecutor(executor);
+        server.createContext("/sign", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                handleSign(exchange);
+            }
+        });
+        server.createContext("/stats", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                HttpSupport.respond(exchange, 200, "application/json",
+                        "{\"requests\":" + batcher.getRequests() +
+                        ",\"batches\":" + batcher.getBatches() +
+                        ",\"queued\":" + batcher.getQueued() + "}");
+            }
+        });
+        server.createContext("/metrics", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                HttpSupport.respondMetrics(exchange, Metrics.getDefault());
+            }
+        });
+        server.createContext("/health", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                HttpSupport.respond(exchange, 200, "text/plain", "ok");
+            }
+        });
+    }
+
+    private void registerGauges() {
+        Metrics metrics = Metrics.getDefault();
+        metrics.gauge("sign_requests", "Signing requests signed or failed", new Metrics.Gauge() {
+            public long get() {
+                return batcher.getRequests();
+            }
+        });
+        metrics.gauge("sign_batches", "Batches of requests taken by the signers", new Metrics.Gauge() {
+            public long get() {
+                return batcher.getBatches();
+            }
+        });
+        metrics.gauge("sign_queued", "Signing requests waiting for a signer", new Metrics.Gauge() {
+            public long get() {
+                return batcher.getQueued();
+            }
+        });
+    }
+
+    public void start() {
+        batcher.start();
+        server.start();
+    }
+
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    public void stop() {
+        server.stop(1);
+        batcher.stop();
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void handleSign(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().add("Allow", "POST");
+                HttpSupport.respond(exchange, 405, "text/plain", "POST a license spec to sign");
+                return;
+            }
+
+            byte[] body = HttpSupport.readBody(exchange, MAX_SPEC_SIZE);
+            if (body == null) {
+                HttpSupport.respond(exchange, 413, "text/plain", "License spec too large");
+                return;
+            }
+
+            LicenseSpec spec;
+            try {
+                spec = LicenseSpec.fromFields(JsonParser.parseObject(new String(body, "UTF-8")),
+                        dateFormat);
+            } catch (IllegalArgumentException ex) {
+                HttpSupport.respond(exchange, 400, "text/plain", ex.getMessage());
+                return;
+            }
+
+            try {
+                byte[] license = batcher.sign(spec, TIMEOUT_MILLIS);
+                HttpSupport.respond(exchange, 200, contentType, license);
+            } catch (RejectedExecutionException ex) {
+                HttpSupport.respond(exchange, 503, "text/plain", ex.getMessage());
+            } catch (TimeoutException ex) {
+                HttpSupport.respond(exchange, 503, "text/plain", ex.getMessage());
+            } catch (InterruptedException ex) {
+                HttpSupport.respond(exchange, 503, "text/plain", "Interrupted");
+            } catch (RuntimeException ex) {
+                HttpSupport.respond(exchange, 500, "text/plain", "Unable to sign license: " + ex);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.licensemaker;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import net.padlocksoftware.padlock.common.LicenseFormat;
+import net.padlocksoftware.padlock.common.LicenseRecord;
+import net.padlocksoftware.padlock.license.License;
+
+/**
+ * Writes each license to a stream as one LicenseRecord line, as soon as it
+ * is signed, so batch output can be piped straight into LicenseValidator
+ * or any line based tool.
+ */
+public final class StreamLicenseSink implements LicenseSink {
+
+    private final Writer out;
+    private final LicenseFormat format;
+
+    public StreamLicenseSink(OutputStream out, LicenseFormat format) throws IOException {
+        this.out = new BufferedWriter(new OutputStreamWriter(out, "US-ASCII"), 64 * 1024);
+        this.format = format;
+    }
+
+    public void write(String id, License license) throws IOException {
+        out.write(new LicenseRecord(id, format.toBytes(license)).toLine());
+        out.write('\n');
+    }
+
+    /**
+     * Flush the remaining records.  The underlying stream is left open.
+     */
+    public void close() throws IOException {
+        out.flush();
+    }
+}
@@ -0,0 +1,170 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.licensevalidator;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.padlocksoftware.padlock.common.LicenseRecord;
+
+/**
+ * Validates many license files or records on a thread pool, writing one
+ * JSON result line per license as each one completes.  The number of
+ * licenses in flight is bounded so memory use does not depend on the size
+ * of the store.
+ */
+public final class BulkValidator {
+
+  private final LicenseChecker checker;
+  private final int threads;
+  private final VerificationCache cache;
+  private final AtomicInteger valid = new AtomicInteger();
+  private final AtomicInteger invalid = new AtomicInteger();
+  private final AtomicInteger unreadable = new AtomicInteger();
+
+  public BulkValidator(LicenseChecker checker, int threads) {
+    this(checker, threads, null);
+  }
+
+  /**
+   * @param cache Cache of earlier verifications, may be null.
+   */
+  public BulkValidator(LicenseChecker checker, int threads, VerificationCache cache) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads must be positive");
+    }
+    this.checker = checker;
+    this.threads = threads;
+    this.cache = cache;
+  }
+
+  /**
+   * Validate every file, all against the same current date.
+   */
+  public void validate(Iterator<File> files, PrintStream out) throws InterruptedException {
+    run(files, out, new Check<File>() {
+      public String name(File file) {
+        return file.getPath();
+      }
+
+      public ValidationResult check(File file, Date currentDate) {
+        return checker.check(file, currentDate, cache);
+      }
+    });
+  }
+
+  /**
+   * Validate every record as of when it is read.  Unlike files, records
+   * are usually still being signed upstream while the run is going, so a
+   * date fixed at the start would fail every one of them as not yet
+   * started.  Records without license data are reported as unreadable.
+   */
+  public void validateRecords(Iterator<LicenseRecord> records, PrintStream out)
+          throws InterruptedException {
+    run(records, out, new Check<LicenseRecord>() {
+      public String name(LicenseRecord record) {
+        return record.getId();
+      }
+
+      public ValidationResult check(LicenseRecord record, Date startDate) {
+        if (record.getLicense() == null) {
+          return ValidationResult.fromError(record.getId(), "Not a license record");
+        }
+        return checker.check(record.getId(), record.getLicense(), new Date(), cache);
+      }
+    });
+  }
+
+  private interface Check<T> {
+
+    String name(T item);
+
+    ValidationResult check(T item, Date currentDate);
+  }
+
+  private <T> void run(Iterator<T> items, final PrintStream out, final Check<T> check)
+          throws InterruptedException {
+    final Date currentDate = new Date();
+    final Semaphore inFlight = new Semaphore(threads * 64);
+    ExecutorService workers = Executors.newFixedThreadPool(threads);
+
+    try {
+      while (items.hasNext()) {
+        final T item = items.next();
+        inFlight.acquire();
+        workers.execute(new Runnable() {
+          public void run() {
+            try {
+              ValidationResult result;
+              try {
+                result = check.check(item, currentDate);
+              } catch (RuntimeException ex) {
+                result = ValidationResult.fromError(check.name(item), ex.toString());
+              }
+              if (result.getError() != null) {
+                unreadable.incrementAndGet();
+              } else if (result.isValid()) {
+                valid.incrementAndGet();
+              } else {
+                invalid.incrementAndGet();
+              }
+
+              String line = result.toJson();
+              synchronized (out) {
+                out.println(line);
+              }
+            } finally {
+              inFlight.release();
+            }
+          }
+        });
+      }
+    } finally {
+      workers.shutdown();
+      workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      out.flush();
+    }
+  }
+
+  public int getValid() {
+    return valid.get();
+  }
+
+  public int getInvalid() {
+    return invalid.get();
+  }
+
+  public int getUnreadable() {
+    return unreadable.get();
+  }
+
+  public int getTotal() {
+    return getValid() + getInvalid() + getUnreadable();
+  }
+}
@@ -0,0 +1,390 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.licensevalidator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.padlocksoftware.padlock.common.KeyFingerprint;
+import net.padlocksoftware.padlock.common.HostAddresses;
+import net.padlocksoftware.padlock.common.LicenseRecord;
+import net.padlocksoftware.padlock.license.LicenseTest;
+
+/**
+ * Audits a license store against the snapshot of the previous audit,
+ * writing one JSON line per license whose state changed and returning the
+ * snapshot for the next audit.
+ *
+ * A license is only re-validated when its bytes changed, when a start or
+ * expiration date fell between the two audits, or when the key or the
+ * host's hardware addresses differ from the previous audit's.  Files whose
+ * length and modification time are unchanged are not even read, so an
+ * audit costs a directory walk plus the work for what changed.
+ *
+ * Changes reported, each line also carrying the license's current state:
+ * <ul>
+ * <li>added - not in the previous snapshot</li>
+ * <li>removed - in the previous snapshot but not found</li>
+ * <li>expired - newly fails the expiration test</li>
+ * <li>invalid - was valid, now fails another test or cannot be read</li>
+ * <li>valid - was invalid, now valid</li>
+ * <li>changed - still invalid, but failing different tests</li>
+ * <li>expiring - valid and now expires within the warning period</li>
+ * <li>modified - new bytes with the same outcome</li>
+ * </ul>
+ */
+final class DeltaValidator {
+
+  private static final String EXPIRED = LicenseTest.EXPIRED.getId();
+  private static final String SIGNED = LicenseTest.SIGNED.getId();
+  private static final String SIGNATURE = LicenseTest.SIGNATURE.getId();
+
+  private final LicenseChecker checker;
+  private final int threads;
+  private final VerificationCache cache;
+  private final long warningPeriod;
+  private final AtomicInteger total = new AtomicInteger();
+  private final AtomicInteger revalidated = new AtomicInteger();
+  private final AtomicInteger changes = new AtomicInteger();
+
+  /**
+   * @param cache Cache of earlier verifications, may be null.
+   * @param warningPeriod ms before expiration at which a valid license is
+   * reported as expiring.
+   */
+  DeltaValidator(LicenseChecker checker, int threads, VerificationCache cache,
+          long warningPeriod) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads must be positive");
+    }
+    this.checker = checker;
+    this.threads = threads;
+    this.cache = cache;
+    this.warningPeriod = warningPeriod;
+  }
+
+  /**
+   * Audit license files, all against the same current date.
+   *
+   * @param previous The previous audit's snapshot, or null for a first
+   * audit, which reports every license as added.
+   */
+  ValidationSnapshot validate(Iterator<File> files, ValidationSnapshot previous, PrintStream out)
+          throws InterruptedException {
+    return run(files, previous, out, new Source<File>() {
+      public String name(File file) {
+        return file.getPath();
+      }
+
+      public ValidationSnapshot.Entry audit(File file, Audit audit) {
+        String name = file.getPath();
+        long length = file.length();
+        long modified = file.lastModified();
+
+        //
+        // As with make, a file modified during the previous audit may
+        // have changed again after it was read without its time changing.
+        //
+        ValidationSnapshot.Entry prior = audit.prior(name);
+        if (prior != null && prior.length == length && prior.modified == modified &&
+                modified < audit.previousTaken && !audit.isStale(prior)) {
+          return prior;
+        }
+
+        byte[] bytes;
+        try {
+          bytes = LicenseChecker.readFully(file);
+        } catch (IOException ex) {
+          return ValidationSnapshot.Entry.fromResult(ValidationResult.fromError(name,
+                  "Error reading license: " + ex.getMessage()), new byte[0], length, modified);
+        }
+        return audit.check(name, bytes, audit.currentDate, length, modified);
+      }
+    });
+  }
+
+  /**
+   * Audit license records as of when each is read.
+   */
+  ValidationSnapshot validateRecords(Iterator<LicenseRecord> records, ValidationSnapshot previous,
+          PrintStream out) throws InterruptedException {
+    return run(records, previous, out, new Source<LicenseRecord>() {
+      public String name(LicenseRecord record) {
+        return record.getId();
+      }
+
+      public ValidationSnapshot.Entry audit(LicenseRecord record, Audit audit) {
+        if (record.getLicense() == null) {
+          return ValidationSnapshot.Entry.fromResult(ValidationResult.fromError(record.getId(),
+                  "Not a license record"), new byte[0], 0, 0);
+        }
+        return audit.check(record.getId(), record.getLicense(), new Date(), 0, 0);
+      }
+    });
+  }
+
+  private interface Source<T> {
+
+    String name(T item);
+
+    /**
+     * @return The item's current state.
+     */
+    ValidationSnapshot.Entry audit(T item, Audit audit);
+  }
+
+  /**
+   * What an item's state is compared against: the previous snapshot, and
+   * whether anything outside the license itself changed since.
+   */
+  private final class Audit {
+    final ValidationSnapshot previous;
+    final long previousTaken;
+    final Date currentDate;
+    final boolean sameTrust;
+
+    Audit(ValidationSnapshot previous, Date currentDate, String hostAddresses) {
+      this.previous = previous;
+      this.previousTaken = previous != null ? previous.getTaken() : currentDate.getTime();
+      this.currentDate = currentDate;
+      this.sameTrust = previous != null &&
+              previous.getKeyFingerprint().equals(checker.getFingerprint()) &&
+              previous.getHostAddresses().equals(hostAddresses);
+    }
+
+    ValidationSnapshot.Entry prior(String name) {
+      return previous != null ? previous.get(name) : null;
+    }
+
+    /**
+     * @return Whether re-validating the same bytes might give a different
+     * outcome than the previous audit did.
+     */
+    boolean isStale(ValidationSnapshot.Entry prior) {
+      if (!sameTrust) {
+        return true;
+      }
+      if (prior.error != null || prior.failed(SIGNED) || prior.failed(SIGNATURE)) {
+        // The date tests are not reached
+        return false;
+      }
+      return isBetween(prior.startDate) || isBetween(prior.expirationDate);
+    }
+
+    private boolean isBetween(Date date) {
+      if (date == null) {
+        return false;
+      }
+      long time = date.getTime();
+      long now = currentDate.getTime();
+      return time >= Math.min(previousTaken, now) && time <= Math.max(previousTaken, now);
+    }
+
+    ValidationSnapshot.Entry check(String name, byte[] bytes, Date date, long length, long modified) {
+      byte[] digest = digest(bytes);
+      ValidationSnapshot.Entry prior = prior(name);
+      if (prior != null && Arrays.equals(prior.digest, digest) && !isStale(prior)) {
+        return prior.withFile(length, modified);
+      }
+
+      revalidated.incrementAndGet();
+      return ValidationSnapshot.Entry.fromResult(checker.check(name, bytes, date, cache), digest,
+              length, modified);
+    }
+  }
+
+  private <T> ValidationSnapshot run(Iterator<T> items, ValidationSnapshot previous,
+          final PrintStream out, final Source<T> source) throws InterruptedException {
+    String hostAddresses = hostAddresses();
+    final Audit audit = new Audit(previous, new Date(), hostAddresses);
+    final ValidationSnapshot next = new ValidationSnapshot(audit.currentDate.getTime(),
+            checker.getFingerprint(), hostAddresses);
+    final Semaphore inFlight = new Semaphore(threads * 64);
+    ExecutorService workers = Executors.newFixedThreadPool(threads);
+
+    try {
+      while (items.hasNext()) {
+        final T item = items.next();
+        inFlight.acquire();
+        workers.execute(new Runnable() {
+          public void run() {
+            try {
+              String name = source.name(item);
+              ValidationSnapshot.Entry entry;
+              try {
+                entry = source.audit(item, audit);
+              } catch (RuntimeException ex) {
+                entry = ValidationSnapshot.Entry.fromResult(ValidationResult.fromError(name,
+                        ex.toString()), new byte[0], 0, 0);
+              }
+              total.incrementAndGet();
+              next.put(name, entry);
+              report(out, name, change(audit.prior(name), entry, audit), entry, audit.currentDate);
+            } finally {
+              inFlight.release();
+            }
+          }
+        });
+      }
+    } finally {
+      workers.shutdown();
+      workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    if (previous != null) {
+      for (Map.Entry<String, ValidationSnapshot.Entry> named : previous.entries()) {
+        if (!next.contains(named.getKey())) {
+          report(out, named.getKey(), "removed", named.getValue(), audit.currentDate);
+        }
+      }
+    }
+    out.flush();
+    return next;
+  }
+
+  /**
+   * @return The change from the prior state to the current one, or null
+   * if there is nothing to report.
+   */
+  private String change(ValidationSnapshot.Entry prior, ValidationSnapshot.Entry current, Audit audit) {
+    if (prior == null) {
+      return "added";
+    }
+    if (current.failed(EXPIRED) && !prior.failed(EXPIRED)) {
+      return "expired";
+    }
+    if (prior.valid != current.valid) {
+      return current.valid ? "valid" : "invalid";
+    }
+    if (!current.valid && (!current.failedTests.equals(prior.failedTests) ||
+            !equal(current.error, prior.error))) {
+      return "changed";
+    }
+    if (current.valid && isExpiring(current, audit.currentDate.getTime()) &&
+            !isExpiring(current, audit.previousTaken)) {
+      return "expiring";
+    }
+    if (!Arrays.equals(prior.digest, current.digest)) {
+      return "modified";
+    }
+    return null;
+  }
+
+  private boolean isExpiring(ValidationSnapshot.Entry entry, long asOf) {
+    return entry.expirationDate != null && entry.expirationDate.getTime() - asOf <= warningPeriod;
+  }
+
+  private static boolean equal(String a, String b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
+  private void report(PrintStream out, String name, String change, ValidationSnapshot.Entry entry,
+          Date currentDate) {
+    if (change == null) {
+      return;
+    }
+    changes.incrementAndGet();
+
+    StringBuilder sb = new StringBuilder(128);
+    sb.append("{\"license\":").append(Json.quote(name));
+    sb.append(",\"change\":").append(Json.quote(change));
+    sb.append(",\"valid\":").append(entry.valid);
+    sb.append(",\"failed\":[");
+    for (int x = 0; x < entry.failedTests.size(); x++) {
+      if (x > 0) {
+        sb.append(',');
+      }
+      sb.append(Json.quote(entry.failedTests.get(x)));
+    }
+    sb.append(']');
+    if (entry.expirationDate != null) {
+      sb.append(",\"expiration\":").append(entry.expirationDate.getTime());
+      sb.append(",\"timeRemaining\":").append(entry.expirationDate.getTime() - currentDate.getTime());
+    }
+    if (entry.error != null) {
+      sb.append(",\"error\":").append(Json.quote(entry.error));
+    }
+    String line = sb.append('}').toString();
+    synchronized (out) {
+      out.println(line);
+    }
+  }
+
+  /**
+   * @return The host's hardware addresses, lower case and sorted, which
+   * is all the hardware test depends on besides the license.
+   */
+  private static String hostAddresses() {
+    List<String> addresses = new ArrayList<String>();
+    for (String address : HostAddresses.get()) {
+      addresses.add(address.toLowerCase());
+    }
+    Collections.sort(addresses);
+
+    StringBuilder sb = new StringBuilder();
+    for (String address : addresses) {
+      if (sb.length() > 0) {
+        sb.append(',');
+      }
+      sb.append(address);
+    }
+    return sb.toString();
+  }
+
+  private static byte[] digest(byte[] bytes) {
+    return KeyFingerprint.sha256(bytes);
+  }
+
+  /**
+   * @return The number of licenses audited.
+   */
+  int getTotal() {
+    return total.get();
+  }
+
+  /**
+   * @return The number of licenses that had to be validated again.
+   */
+  int getRevalidated() {
+    return revalidated.get();
+  }
+
+  /**
+   * @return The number of changes reported.
+   */
+  int getChanges() {
+    return changes.get();
+  }
+}
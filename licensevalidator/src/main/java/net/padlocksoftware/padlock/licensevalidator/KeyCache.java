@@ -0,0 +1,123 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.licensevalidator;
+
+import java.security.spec.InvalidKeySpecException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import net.padlocksoftware.padlock.common.KeyAlgorithm;
+import net.padlocksoftware.padlock.common.KeyFingerprint;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * A bounded, least recently used cache of LicenseCheckers keyed by public
+ * key fingerprint.  Looking a key up costs a digest of its encoding; the
+ * key itself is only parsed the first time it is seen, or again after it
+ * has been evicted.  Safe for use from multiple threads.
+ */
+public final class KeyCache {
+
+  private final Map<String, LicenseChecker> checkers;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final boolean fastFail;
+
+  public KeyCache(int maxSize) {
+    this(maxSize, false);
+  }
+
+  /**
+   * @param fastFail Whether checkers for newly parsed keys run fast-fail
+   * validation.
+   */
+  public KeyCache(int maxSize, boolean fastFail) {
+    this.fastFail = fastFail;
+    if (maxSize < 1) {
+      throw new IllegalArgumentException("maxSize must be positive");
+    }
+    this.checkers = new LruMap<String, LicenseChecker>(maxSize);
+  }
+
+  /**
+   * Make an already parsed key available under its fingerprint.
+   */
+  public synchronized void put(LicenseChecker checker) {
+    checkers.put(checker.getFingerprint(), checker);
+  }
+
+  /**
+   * @param publicKey A hex encoded X.509 public key, as printed by KeyMaker.
+   */
+  public LicenseChecker get(String publicKey) throws InvalidKeySpecException {
+    return get(decode(publicKey));
+  }
+
+  /**
+   * @param publicKey A hex encoded X.509 public key, as printed by KeyMaker.
+   * @return The encoded key.
+   */
+  public static byte[] decode(String publicKey) throws InvalidKeySpecException {
+    try {
+      return Hex.decodeHex(publicKey.trim().toCharArray());
+    } catch (DecoderException ex) {
+      throw new InvalidKeySpecException("Public key is not valid hex");
+    }
+  }
+
+  /**
+   * @param encodedKey An X.509 encoded public key of any KeyAlgorithm.
+   */
+  public LicenseChecker get(byte[] encodedKey) throws InvalidKeySpecException {
+    String fingerprint = KeyFingerprint.of(encodedKey);
+
+    synchronized (this) {
+      LicenseChecker checker = checkers.get(fingerprint);
+      if (checker != null) {
+        hits.incrementAndGet();
+        return checker;
+      }
+    }
+
+    //
+    // Parse outside the lock; two threads missing on the same key at once
+    // just parse it twice
+    //
+    misses.incrementAndGet();
+    LicenseChecker checker = new LicenseChecker(KeyAlgorithm.parsePublicKey(encodedKey), fastFail);
+    put(checker);
+    return checker;
+  }
+
+  public synchronized int size() {
+    return checkers.size();
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+}
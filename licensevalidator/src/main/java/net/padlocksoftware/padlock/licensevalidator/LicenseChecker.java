@@ -0,0 +1,472 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.licensevalidator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import net.padlocksoftware.padlock.common.HostAddresses;
+import net.padlocksoftware.padlock.common.KeyRing;
+import net.padlocksoftware.padlock.common.LicenseKeyVerifier;
+import net.padlocksoftware.padlock.common.Metrics;
+import net.padlocksoftware.padlock.common.LicenseFormat;
+import net.padlocksoftware.padlock.license.ImportException;
+import net.padlocksoftware.padlock.license.License;
+import net.padlocksoftware.padlock.license.LicenseState;
+import net.padlocksoftware.padlock.license.LicenseTest;
+import net.padlocksoftware.padlock.license.TestResult;
+
+/**
+ * Validates licenses against a single, already parsed public key, or
+ * against a KeyRing of them.  Instances are immutable and may be shared
+ * between threads.
+ *
+ * The tests and their order are those of Validator.validate(), but the key
+ * is parsed once here instead of once per license.  Checks made here never
+ * record a first run for floating licenses and skip the clock turnback
+ * scan, since neither means anything on a host auditing licenses issued to
+ * other machines.  No licenses are blacklisted.
+ *
+ * Any KeyAlgorithm is accepted; the signature algorithm follows from the
+ * key, as it does when the license is signed.
+ *
+ * With a ring, a license naming its key by fingerprint is checked against
+ * that key alone.  Licenses that name no key, or one not in the ring, are
+ * tried against each key, starting with the last key to match, since
+ * licenses signed together tend to be checked together.
+ *
+ * In fast-fail mode the tests run cheapest first instead: the signature's
+ * presence, the start and expiration dates, then the hardware addresses,
+ * and only then the signature itself.  The run stops at the first
+ * failure, so an expired, not yet started or wrongly locked license costs
+ * no signature verification, and its state holds only the tests that were
+ * run.  Valid licenses get the same state in either mode.
+ */
+public final class LicenseChecker {
+
+  private static final Metrics.Timer VALIDATE_TIMER = Metrics.getDefault().timer("license_validate",
+          "Time spent validating licenses");
+  private static final Metrics.Counter VALID = Metrics.getDefault().counter("licenses_valid",
+          "Licenses that passed validation");
+  private static final Metrics.Counter INVALID = Metrics.getDefault().counter("licenses_invalid",
+          "Licenses that failed validation");
+  private static final Metrics.Counter KEY_SEARCHES = Metrics.getDefault().counter("key_searches",
+          "Licenses checked against every key because they named none in the key ring");
+  private static final Metrics.Counter SIGNATURES_SKIPPED = Metrics.getDefault().counter(
+          "signatures_skipped", "Signed licenses failed by fast-fail validation before their signature was verified");
+
+  //
+  // LicenseState and TestResult are immutable, so every possible outcome
+  // is built once and shared: an unsigned license, a bad signature, and
+  // the eight combinations of the expired, prior and hardware tests, by
+  // bit 0 (not expired), 1 (started) and 2 (hardware matches)
+  //
+  private static final LicenseState UNSIGNED = state(false, false, false, false, false);
+  private static final LicenseState BAD_SIGNATURE = state(true, false, false, false, false);
+  private static final LicenseState[] STATES = new LicenseState[8];
+
+  static {
+    for (int x = 0; x < STATES.length; x++) {
+      STATES[x] = state(true, true, (x & 1) != 0, (x & 2) != 0, (x & 4) != 0);
+    }
+  }
+
+  //
+  // Fast-fail outcomes: the tests in the order they are run, up to and
+  // including the first to fail.  Unsigned licenses fail the first test
+  // in either mode.
+  //
+  private static final LicenseTest[] FAST_ORDER = {LicenseTest.SIGNED, LicenseTest.EXPIRED,
+    LicenseTest.PRIOR, LicenseTest.BLACKLIST, LicenseTest.HARDWARE, LicenseTest.SIGNATURE};
+  private static final LicenseState FAILED_EXPIRED = failedAt(LicenseTest.EXPIRED);
+  private static final LicenseState FAILED_PRIOR = failedAt(LicenseTest.PRIOR);
+  private static final LicenseState FAILED_HARDWARE = failedAt(LicenseTest.HARDWARE);
+  private static final LicenseState FAILED_SIGNATURE = failedAt(LicenseTest.SIGNATURE);
+
+  private final PublicKey publicKey;
+  private final String fingerprint;
+  private final Map<String, LicenseKeyVerifier> verifiers = new HashMap<String, LicenseKeyVerifier>();
+  private final LicenseKeyVerifier[] search;
+  private volatile int lastMatch = 0;
+  private final boolean fastFail;
+
+  public LicenseChecker(KeyPair pair) {
+    this(pair.getPublic());
+  }
+
+  public LicenseChecker(PublicKey publicKey) {
+    this(KeyRing.of(publicKey));
+  }
+
+  public LicenseChecker(PublicKey publicKey, boolean fastFail) {
+    this(KeyRing.of(publicKey), fastFail);
+  }
+
+  public LicenseChecker(KeyRing ring) {
+    this(ring, false);
+  }
+
+  /**
+   * @param fastFail Run the tests cheapest first and stop at the first
+   * failure, rather than running Validator's full report.
+   */
+  public LicenseChecker(KeyRing ring, boolean fastFail) {
+    this.fastFail = fastFail;
+    List<String> fingerprints = ring.getFingerprints();
+    this.search = new LicenseKeyVerifier[fingerprints.size()];
+    for (int x = 0; x < search.length; x++) {
+      search[x] = new LicenseKeyVerifier(ring.get(fingerprints.get(x)).getPublic());
+      verifiers.put(fingerprints.get(x), search[x]);
+    }
+    this.publicKey = search[0].getPublicKey();
+    this.fingerprint = ring.getFingerprint();
+  }
+
+  /**
+   * @return The key, or the first key of the ring.
+   */
+  public PublicKey getPublicKey() {
+    return publicKey;
+  }
+
+  /**
+   * @return The fingerprint of the key, or of the whole ring.
+   */
+  public String getFingerprint() {
+    return fingerprint;
+  }
+
+  public boolean isFastFail() {
+    return fastFail;
+  }
+
+  /**
+   * @return Whether the public key with this fingerprint is one of the
+   * checker's keys.
+   */
+  public boolean hasKey(String keyFingerprint) {
+    return verifiers.containsKey(keyFingerprint);
+  }
+
+  /**
+   * @return The key the license was signed with, or null if it is
+   * unsigned or was signed by none of the keys.
+   */
+  public PublicKey findKey(License license) {
+    LicenseKeyVerifier verifier = select(license);
+    return verifier == null ? null : verifier.getPublicKey();
+  }
+
+  /**
+   * Import and validate a license file.  Read and parse failures are
+   * returned as results rather than thrown.
+   */
+  public ValidationResult check(File file, Date currentDate) {
+    return check(file, currentDate, null);
+  }
+
+  /**
+   * Import and validate a license file, consulting a verification cache.
+   *
+   * @param cache May be null.
+   */
+  public ValidationResult check(File file, Date currentDate, VerificationCache cache) {
+    byte[] bytes;
+    try {
+      bytes = readFully(file);
+    } catch (IOException ex) {
+      return ValidationResult.fromError(file.getPath(), "Error reading license: " + ex.getMessage());
+    }
+    return check(file.getPath(), bytes, currentDate, cache);
+  }
+
+  /**
+   * Import and validate an exported license.  When a cache is given and
+   * already holds these exact bytes for this key, parsing and signature
+   * verification are skipped.  In fast-fail mode a license failing an
+   * earlier test is neither verified nor cached.
+   *
+   * @param cache May be null.
+   */
+  public ValidationResult check(String name, byte[] licenseBytes, Date currentDate,
+          VerificationCache cache) {
+    String key = null;
+    if (cache != null) {
+      key = VerificationCache.key(fingerprint, licenseBytes);
+      VerificationCache.Verification entry = cache.get(key);
+      if (entry != null) {
+        return ValidationResult.fromState(name, entry.license,
+                validate(entry.license, currentDate, entry.verified),
+                getTimeRemaining(entry.license, currentDate));
+      }
+    }
+
+    License license;
+    try {
+      license = LicenseFormat.read(licenseBytes);
+    } catch (IOException ex) {
+      return ValidationResult.fromError(name, "Error reading license: " + ex.getMessage());
+    } catch (ImportException ex) {
+      return ValidationResult.fromError(name, "Error parsing license data: " + ex.getMessage());
+    } catch (RuntimeException ex) {
+      return ValidationResult.fromError(name, "Error parsing license data: " + ex);
+    }
+
+    if (fastFail) {
+      return ValidationResult.fromState(name, license, validateFast(license, currentDate, cache, key),
+              getTimeRemaining(license, currentDate));
+    }
+    boolean verified = isVerified(license);
+    if (cache != null) {
+      cache.put(key, license, verified);
+    }
+    return ValidationResult.fromState(name, license, validate(license, currentDate, verified),
+            getTimeRemaining(license, currentDate));
+  }
+
+  static byte[] readFully(File file) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      return readFully(in, (int) Math.max(64, file.length()));
+    } finally {
+      in.close();
+    }
+  }
+
+  static byte[] readFully(InputStream in, int sizeHint) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(sizeHint);
+    byte[] buffer = new byte[4096];
+    int n;
+    while ((n = in.read(buffer)) != -1) {
+      bytes.write(buffer, 0, n);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Validate a license as of the given date.
+   */
+  public ValidationResult check(String name, License license, Date currentDate) {
+    return ValidationResult.fromState(name, license, validate(license, currentDate),
+            getTimeRemaining(license, currentDate));
+  }
+
+  /**
+   * Run the validation tests.  As with Validator, an unsigned license or a
+   * bad signature ends the run before the remaining tests; in fast-fail
+   * mode any failure does.
+   */
+  public LicenseState validate(License license, Date currentDate) {
+    if (fastFail) {
+      return validateFast(license, currentDate, null, null);
+    }
+    return validate(license, currentDate, isVerified(license));
+  }
+
+  /**
+   * Fast-fail validation of a license not yet verified, adding the
+   * verification to the cache if one is given and the signature is checked.
+   */
+  private LicenseState validateFast(License license, Date currentDate, VerificationCache cache,
+          String key) {
+    long start = System.nanoTime();
+    LicenseState state = runCheapTests(license, currentDate);
+    if (state == null) {
+      boolean verified = isVerified(license);
+      if (cache != null) {
+        cache.put(key, license, verified);
+      }
+      state = verified ? STATES[7] : FAILED_SIGNATURE;
+    } else if (state != UNSIGNED) {
+      SIGNATURES_SKIPPED.increment();
+    }
+    recordValidation(start, state);
+    return state;
+  }
+
+  /**
+   * @param verified Whether the license is signed and its signature matches.
+   */
+  private LicenseState validate(License license, Date currentDate, boolean verified) {
+    long start = System.nanoTime();
+    LicenseState state = runTests(license, currentDate, verified);
+    recordValidation(start, state);
+    return state;
+  }
+
+  /**
+   * Add a validation that began at the given System.nanoTime() to the
+   * validation metrics.
+   */
+  static void recordValidation(long startNanos, LicenseState state) {
+    VALIDATE_TIMER.record(startNanos);
+    (state.isValid() ? VALID : INVALID).increment();
+  }
+
+  private LicenseState runTests(License license, Date currentDate, boolean verified) {
+    if (fastFail) {
+      LicenseState state = runCheapTests(license, currentDate);
+      return state != null ? state : verified ? STATES[7] : FAILED_SIGNATURE;
+    }
+    if (license.getLicenseSignatureString() == null) {
+      return UNSIGNED;
+    }
+    if (!verified) {
+      return BAD_SIGNATURE;
+    }
+    return STATES[(isExpired(license, currentDate) ? 0 : 1) | (isPrior(license, currentDate) ? 0 : 2) |
+            (matchesHardware(license) ? 4 : 0)];
+  }
+
+  /**
+   * @return The first fast-fail test failed before the signature check,
+   * or null if the license passes them all.
+   */
+  private static LicenseState runCheapTests(License license, Date currentDate) {
+    if (license.getLicenseSignatureString() == null) {
+      return UNSIGNED;
+    }
+    if (isExpired(license, currentDate)) {
+      return FAILED_EXPIRED;
+    }
+    if (isPrior(license, currentDate)) {
+      return FAILED_PRIOR;
+    }
+    if (!matchesHardware(license)) {
+      return FAILED_HARDWARE;
+    }
+    return null;
+  }
+
+  /**
+   * The tests and order of Validator.validate(); an unsigned license or a
+   * bad signature ends the run before the remaining tests.
+   */
+  private static LicenseState state(boolean signed, boolean verified, boolean notExpired,
+          boolean started, boolean hardware) {
+    List<TestResult> results = new ArrayList<TestResult>(6);
+    results.add(new TestResult(LicenseTest.SIGNED, signed));
+    if (signed) {
+      results.add(new TestResult(LicenseTest.SIGNATURE, verified));
+    }
+    if (signed && verified) {
+      results.add(new TestResult(LicenseTest.EXPIRED, notExpired));
+      results.add(new TestResult(LicenseTest.PRIOR, started));
+      results.add(new TestResult(LicenseTest.BLACKLIST, true));
+      results.add(new TestResult(LicenseTest.HARDWARE, hardware));
+    }
+    return new LicenseState(results);
+  }
+
+  /**
+   * A fast-fail run that passed every test before the given one.
+   */
+  private static LicenseState failedAt(LicenseTest failed) {
+    List<TestResult> results = new ArrayList<TestResult>(FAST_ORDER.length);
+    for (LicenseTest test : FAST_ORDER) {
+      results.add(new TestResult(test, test != failed));
+      if (test == failed) {
+        break;
+      }
+    }
+    return new LicenseState(results);
+  }
+
+  private boolean isVerified(License license) {
+    return select(license) != null;
+  }
+
+  private LicenseKeyVerifier select(License license) {
+    if (license.getLicenseSignatureString() == null) {
+      return null;
+    }
+    if (search.length == 1) {
+      return search[0].verify(license) ? search[0] : null;
+    }
+
+    String named = KeyRing.fingerprintOf(license);
+    LicenseKeyVerifier verifier = named == null ? null : verifiers.get(named);
+    if (verifier != null) {
+      return verifier.verify(license) ? verifier : null;
+    }
+
+    KEY_SEARCHES.increment();
+    int first = lastMatch;
+    for (int x = 0; x < search.length; x++) {
+      int index = (first + x) % search.length;
+      if (search[index].verify(license)) {
+        lastMatch = index;
+        return search[index];
+      }
+    }
+    return null;
+  }
+
+  static boolean isExpired(License license, Date currentDate) {
+    Date expiration = license.getExpirationDate();
+    return expiration != null && currentDate.after(expiration);
+  }
+
+  static boolean isPrior(License license, Date currentDate) {
+    Date start = license.getStartDate();
+    return start != null && currentDate.before(start);
+  }
+
+  static boolean matchesHardware(License license) {
+    Set<String> licensed = license.getHardwareAddresses();
+    if (licensed.isEmpty()) {
+      return true;
+    }
+    for (String host : HostAddresses.get()) {
+      for (String address : licensed) {
+        if (address.equalsIgnoreCase(host)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return ms until the license's fixed expiration date, or null if it has
+   * none.  Floating periods start on a client's first run and so are not
+   * counted here.
+   */
+  static Long getTimeRemaining(License license, Date currentDate) {
+    Date expiration = license.getExpirationDate();
+    if (expiration == null) {
+      return null;
+    }
+    return expiration.getTime() - currentDate.getTime();
+  }
+}
@@ -0,0 +1,180 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.licensevalidator;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import net.padlocksoftware.padlock.common.LicenseRecord;
+
+/**
+ * Lazily enumerates the license files or records of a bulk run, so huge
+ * stores are never listed into memory all at once.
+ */
+final class LicenseFiles {
+
+  private LicenseFiles() {
+  }
+
+  /**
+   * Every regular file below a directory, recursively.  Hidden files are
+   * skipped.
+   */
+  static Iterator<File> fromDirectory(File directory) {
+    final LinkedList<File> directories = new LinkedList<File>();
+    directories.add(directory);
+
+    return new LazyIterator<File>() {
+      private final LinkedList<File> files = new LinkedList<File>();
+
+      File advance() {
+        while (files.isEmpty()) {
+          if (directories.isEmpty()) {
+            return null;
+          }
+          File[] children = directories.removeFirst().listFiles();
+          if (children == null) {
+            continue;
+          }
+          Arrays.sort(children);
+          for (File child : children) {
+            if (child.isHidden()) {
+              continue;
+            }
+            if (child.isDirectory()) {
+              directories.add(child);
+            } else {
+              files.add(child);
+            }
+          }
+        }
+        return files.removeFirst();
+      }
+    };
+  }
+
+  /**
+   * The files named in a list file, one path per line.  A list named "-"
+   * is read from standard in.
+   */
+  static Iterator<File> fromList(File list) throws IOException {
+    final BufferedReader reader = open(list, "UTF-8");
+
+    return new LazyIterator<File>() {
+      File advance() {
+        try {
+          String line;
+          while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.length() > 0) {
+              return new File(line);
+            }
+          }
+          reader.close();
+          return null;
+        } catch (IOException ex) {
+          throw new IllegalStateException("Error reading license list: " + ex.getMessage());
+        }
+      }
+    };
+  }
+
+  /**
+   * The LicenseRecord lines of a file, as written by LicenseMaker -O.  A
+   * file named "-" is read from standard in.  Lines that are not records
+   * are returned named after their line number and without license data,
+   * so they are reported rather than silently dropped.
+   */
+  static Iterator<LicenseRecord> fromRecords(File records) throws IOException {
+    final BufferedReader reader = open(records, "US-ASCII");
+
+    return new LazyIterator<LicenseRecord>() {
+      private int line = 0;
+
+      LicenseRecord advance() {
+        try {
+          String text;
+          while ((text = reader.readLine()) != null) {
+            line++;
+            if (text.trim().length() == 0) {
+              continue;
+            }
+            try {
+              return LicenseRecord.parse(text);
+            } catch (IllegalArgumentException ex) {
+              return new LicenseRecord("line " + line, null);
+            }
+          }
+          reader.close();
+          return null;
+        } catch (IOException ex) {
+          throw new IllegalStateException("Error reading license records: " + ex.getMessage());
+        }
+      }
+    };
+  }
+
+  private static BufferedReader open(File file, String encoding) throws IOException {
+    InputStream in = file.getPath().equals("-") ? System.in : new FileInputStream(file);
+    return new BufferedReader(new InputStreamReader(in, encoding), 64 * 1024);
+  }
+
+  abstract static class LazyIterator<T> implements Iterator<T> {
+
+    private T next;
+    private boolean done;
+
+    /**
+     * @return The next item, or null when there are no more.
+     */
+    abstract T advance();
+
+    public boolean hasNext() {
+      if (next == null && !done) {
+        next = advance();
+        done = next == null;
+      }
+      return next != null;
+    }
+
+    public T next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      T t = next;
+      next = null;
+      return t;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
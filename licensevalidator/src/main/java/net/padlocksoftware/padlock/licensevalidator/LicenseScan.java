@@ -0,0 +1,141 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.licensevalidator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import net.padlocksoftware.padlock.common.LicenseArchive;
+import net.padlocksoftware.padlock.common.LicenseFormat;
+import net.padlocksoftware.padlock.common.LicenseRecord;
+import net.padlocksoftware.padlock.license.ImportException;
+import net.padlocksoftware.padlock.license.License;
+
+/**
+ * Reads every license in a store, for building the expiration and
+ * hardware indexes.  Licenses are parsed but not verified.
+ *
+ * Licenses are indexed by id: an archive's ids, or for a directory the
+ * path below it without the .lic extension, which is the id LicenseMaker
+ * -d wrote the file under.  Licenses that cannot be read are reported on
+ * standard error and left out.
+ */
+final class LicenseScan {
+
+  /**
+   * What is kept of each license.
+   */
+  interface Mapper<T> {
+
+    /**
+     * @return The value for a license, never null.
+     */
+    T map(String id, License license);
+  }
+
+  private static final String EXTENSION = ".lic";
+
+  private int scanned = 0;
+  private int unreadable = 0;
+
+  <T> Iterator<T> fromDirectory(File directory, final Mapper<T> mapper) {
+    final String prefix = directory.getPath() + File.separator;
+    final Iterator<File> files = LicenseFiles.fromDirectory(directory);
+
+    return new LicenseFiles.LazyIterator<T>() {
+      T advance() {
+        while (files.hasNext()) {
+          File file = files.next();
+          String id = file.getPath();
+          if (id.startsWith(prefix)) {
+            id = id.substring(prefix.length());
+          }
+          id = id.replace(File.separatorChar, '/');
+          if (id.endsWith(EXTENSION)) {
+            id = id.substring(0, id.length() - EXTENSION.length());
+          }
+
+          T entry;
+          try {
+            entry = read(id, LicenseChecker.readFully(file), mapper);
+          } catch (IOException ex) {
+            skip(file.getPath(), ex.getMessage());
+            continue;
+          }
+          if (entry != null) {
+            return entry;
+          }
+        }
+        return null;
+      }
+    };
+  }
+
+  <T> Iterator<T> fromArchive(LicenseArchive archive, final Mapper<T> mapper) {
+    final Iterator<LicenseRecord> records = archive.records();
+
+    return new LicenseFiles.LazyIterator<T>() {
+      T advance() {
+        while (records.hasNext()) {
+          LicenseRecord record = records.next();
+          T entry = read(record.getId(), record.getLicense(), mapper);
+          if (entry != null) {
+            return entry;
+          }
+        }
+        return null;
+      }
+    };
+  }
+
+  /**
+   * @return The license's value, or null if it cannot be parsed.
+   */
+  private <T> T read(String id, byte[] bytes, Mapper<T> mapper) {
+    try {
+      T entry = mapper.map(id, LicenseFormat.read(bytes));
+      scanned++;
+      return entry;
+    } catch (IOException ex) {
+      skip(id, ex.getMessage());
+    } catch (ImportException ex) {
+      skip(id, ex.getMessage());
+    } catch (RuntimeException ex) {
+      skip(id, ex.toString());
+    }
+    return null;
+  }
+
+  private void skip(String name, String error) {
+    unreadable++;
+    System.err.println("Skipping " + name + ": " + error);
+  }
+
+  int getScanned() {
+    return scanned;
+  }
+
+  int getUnreadable() {
+    return unreadable;
+  }
+}
@@ -22,16 +22,33 @@
 
 package net.padlocksoftware.padlock.licensevalidator;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.security.KeyPair;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.security.PublicKey;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
-import net.padlocksoftware.padlock.KeyManager;
+import net.padlocksoftware.padlock.common.CachingMacAddressProvider;
+import net.padlocksoftware.padlock.common.ExpirationIndex;
+import net.padlocksoftware.padlock.common.ExpirationIndexWriter;
+import net.padlocksoftware.padlock.common.HardwareIndex;
+import net.padlocksoftware.padlock.common.HardwareIndexWriter;
+import net.padlocksoftware.padlock.common.HostAddresses;
+import net.padlocksoftware.padlock.common.KeyAlgorithm;
+import net.padlocksoftware.padlock.common.KeyRing;
+import net.padlocksoftware.padlock.common.LicenseArchive;
+import net.padlocksoftware.padlock.common.LicenseFormat;
+import net.padlocksoftware.padlock.common.Metrics;
+import net.padlocksoftware.padlock.common.Pkcs12KeyStorage;
 import net.padlocksoftware.padlock.license.ImportException;
 import net.padlocksoftware.padlock.license.License;
-import net.padlocksoftware.padlock.license.LicenseIO;
 import net.padlocksoftware.padlock.license.LicenseState;
 import net.padlocksoftware.padlock.license.TestResult;
 import net.padlocksoftware.padlock.validator.Validator;
@@ -45,16 +62,104 @@ import org.apache.commons.codec.binary.Hex;
 public class Main {
 
   static License license = null;
-  static KeyPair pair = null;
+  static KeyRing keyRing = null;
+  static File licenseDirectory = null;
+  static File licenseList = null;
+  static File recordFile = null;
+  static File resultsFile = null;
+  static File archiveFile = null;
+  static String licenseId = null;
+  static int threads = Runtime.getRuntime().availableProcessors();
+  static InetSocketAddress serverAddress = null;
+  static int cacheSize = 0;
+  static long cacheTtl = 60 * 60 * 1000L;
+  static File metricsFile = null;
+  static File snapshotFile = null;
+  static long warningPeriod = 30 * 24 * 60 * 60 * 1000L;
+  static File expirationIndexFile = null;
+  static long queryPeriod = -1;
+  static File hardwareIndexFile = null;
+  static String hardwareAddress = null;
+  static int minSharing = 0;
+  static boolean fastFail = false;
+  static long addressRefresh = CachingMacAddressProvider.DEFAULT_REFRESH_MILLIS;
 
   private static void showUsageAndExit() {
     System.err.println("Usage: LicenseVerifier -l <License File> -k <KeyPair>");
+    System.err.println("       LicenseVerifier -A <License Archive> -i <License Id> -k <KeyPair>\n");
+    System.err.println("-A checks a single license in an indexed archive written by");
+    System.err.println("LicenseMaker -A, found by id without reading the rest of the archive.\n");
+    System.err.println("       LicenseVerifier (-d <License Directory> | -f <License List>) -k <KeyPair>");
+    System.err.println("                       [-t <Threads>] [-o <Results File>]");
+    System.err.println("                       [-c <Cache Entries>] [-T <Cache TTL Seconds>]");
+    System.err.println("                       [-S <Snapshot File> [-w <Warning Days>]]\n");
+    System.err.println("       LicenseVerifier -R <License Records> -k <KeyPair> [-t <Threads>]");
+    System.err.println("                       [-o <Results File>] [-c <Cache Entries>] [-T <Cache TTL Seconds>]");
+    System.err.println("                       [-S <Snapshot File> [-w <Warning Days>]]\n");
+    System.err.println("Bulk and server modes also take [-V fast|report] [-r <Address Refresh Seconds>].\n");
+    System.err.println("Bulk mode validates every file below a directory, every path listed");
+    System.err.println("one per line in a file, or every license record written by");
+    System.err.println("LicenseMaker -b ... -O, and writes one JSON result per license to the");
+    System.err.println("results file or standard out as each completes.  A license file, list");
+    System.err.println("or record file of \"-\" is read from standard in, so the tools can be");
+    System.err.println("chained in a pipeline:\n");
+    System.err.println("  LicenseMaker -k key -b - -O < rows.csv | LicenseVerifier -R - -k key\n");
+    System.err.println("-S <Snapshot File> turns a bulk run into an audit against the previous");
+    System.err.println("run with the same snapshot file: only changes are written, and only");
+    System.err.println("licenses whose bytes changed or whose start or expiration date has");
+    System.err.println("passed since are validated again.  Changes are added, removed, expired,");
+    System.err.println("invalid, valid, changed (different failures), expiring and modified.");
+    System.err.println("-w <Warning Days> sets how close to expiration a valid license is");
+    System.err.println("reported as expiring, 30 days by default.\n");
+    System.err.println("       LicenseVerifier -p [host:]<Port> -k <KeyPair> [-t <Threads>]");
+    System.err.println("                       [-c <Cache Entries>] [-T <Cache TTL Seconds>]\n");
+    System.err.println("Server mode keeps the keys loaded and validates licenses POSTed to");
+    System.err.println("http://host:port/validate, answering with a JSON result.  The host");
+    System.err.println("defaults to 127.0.0.1.\n");
+    System.err.println("-c remembers the signature check of up to that many licenses, keyed by");
+    System.err.println("their exact bytes, so unchanged licenses skip signature verification.");
+    System.err.println("Date and hardware tests are always re-run.  Entries live for -T seconds,");
+    System.err.println("an hour by default.\n");
+    System.err.println("-V fast runs the tests cheapest first, dates and hardware addresses before");
+    System.err.println("the signature, and stops at the first failure, so rejected licenses cost");
+    System.err.println("no signature check.  Results list only the tests run.  -V report, the");
+    System.err.println("default, runs every test; audits with -S always do.\n");
+    System.err.println("-r sets how long the host's hardware addresses, gathered once for every");
+    System.err.println("hardware locked license, are used before they are gathered again, 60");
+    System.err.println("seconds by default.  0 gathers them for each license.\n");
+    System.err.println("-M writes timings and counts for key import, license import, signature");
+    System.err.println("checks and validation as JSON to a file, or standard out for \"-\", when");
+    System.err.println("the run ends.  Servers publish them at /metrics in the Prometheus format.\n");
+    System.err.println("       LicenseVerifier -I <Expiration Index> (-d <License Directory> | -A <License Archive>)");
+    System.err.println("       LicenseVerifier -I <Expiration Index> -q <Days>\n");
+    System.err.println("-I with a directory or archive reads the expiration date and floating");
+    System.err.println("period of every license, without verifying it, into a sorted index.");
+    System.err.println("LicenseMaker -I adds the licenses it issues to the same index.  -I with");
+    System.err.println("-q lists, as JSON lines, the licenses expiring within that many days,");
+    System.err.println("then the floating licenses that run for at most that long, reading only");
+    System.err.println("the index.  Licenses are identified by archive id, or by path below the");
+    System.err.println("directory without the .lic extension.\n");
+    System.err.println("       LicenseVerifier -H <Hardware Index> (-d <License Directory> | -A <License Archive>)");
+    System.err.println("       LicenseVerifier -H <Hardware Index> (-m <Address> | -s <Min Licenses>)\n");
+    System.err.println("-H with a directory or archive indexes the MAC addresses every license is");
+    System.err.println("locked to, without verifying it.  -H with -m lists the licenses locked to");
+    System.err.println("an address; with -s it lists every address on at least that many");
+    System.err.println("licenses, most shared first.  Both read only the index.\n");
+    System.err.println("<KeyPair> is a key pair file, a directory of key pair files or a PKCS#12");
+    System.err.println("keystore ending in .p12 or .pfx, whose password is read from");
+    System.err.println(Pkcs12KeyStorage.PASSWORD_VARIABLE + ".  Each license is checked against the key whose");
+    System.err.println("fingerprint it records, or against each key in turn if it records none.\n");
+    System.err.println("Licenses may be in the text or binary format; the format is detected.");
     System.exit(1);
   }
 
   private static void parseLicenseFile(String fileName) {
     try {
-      license = LicenseIO.importLicense(new File(fileName));
+      if (fileName.equals("-")) {
+        license = LicenseFormat.read(LicenseChecker.readFully(System.in, 4096));
+      } else {
+        license = LicenseFormat.read(new File(fileName));
+      }
     } catch (IOException ex) {
       System.err.println("Error reading license: " + ex.getMessage());
       System.exit(1);
@@ -64,15 +169,168 @@ public class Main {
     }
   }
 
+  private static void parseArchiveLicense() {
+    LicenseArchive archive = null;
+    try {
+      archive = LicenseArchive.open(archiveFile);
+      byte[] bytes = archive.get(licenseId);
+      if (bytes == null) {
+        System.err.println("No license " + licenseId + " in " + archiveFile);
+        System.exit(1);
+      }
+      license = LicenseFormat.read(bytes);
+    } catch (IOException ex) {
+      System.err.println("Error reading license archive: " + ex.getMessage());
+      System.exit(1);
+    } catch (ImportException ex) {
+      System.err.println("Error parsing license data: " + ex.getMessage());
+      System.exit(1);
+    } finally {
+      if (archive != null) {
+        try {
+          archive.close();
+        } catch (IOException ex) {
+          ex.printStackTrace();
+        }
+      }
+    }
+  }
+
   private static void parseKeyPairFile(String fileName) {
     try {
-      pair = KeyManager.importKeyPair(new File(fileName));
+      keyRing = KeyRing.load(new File(fileName));
     } catch (IOException ex) {
       System.err.println("Error reading key file: " + ex.getMessage());
       System.exit(1);
     }
   }
 
+  private static void parseThreads(String arg) {
+    try {
+      threads = Integer.parseInt(arg);
+    } catch (NumberFormatException e) {
+      threads = 0;
+    }
+
+    if (threads < 1) {
+      System.err.println("Invalid thread count: " + arg);
+      System.exit(1);
+    }
+  }
+
+  private static void parseCacheSize(String arg) {
+    try {
+      cacheSize = Integer.parseInt(arg);
+    } catch (NumberFormatException e) {
+      cacheSize = -1;
+    }
+
+    if (cacheSize < 0) {
+      System.err.println("Invalid cache size: " + arg);
+      System.exit(1);
+    }
+  }
+
+  private static void parseCacheTtl(String arg) {
+    try {
+      cacheTtl = Long.parseLong(arg) * 1000L;
+    } catch (NumberFormatException e) {
+      cacheTtl = 0;
+    }
+
+    if (cacheTtl < 1) {
+      System.err.println("Invalid cache TTL: " + arg);
+      System.exit(1);
+    }
+  }
+
+  /**
+   * @return The verification cache requested with -c, or null.
+   */
+  private static VerificationCache createCache() {
+    return cacheSize > 0 ? new VerificationCache(cacheSize, cacheTtl) : null;
+  }
+
+  private static void parseWarningPeriod(String arg) {
+    try {
+      warningPeriod = Long.parseLong(arg) * 24 * 60 * 60 * 1000L;
+    } catch (NumberFormatException e) {
+      warningPeriod = -1;
+    }
+
+    if (warningPeriod < 0) {
+      System.err.println("Invalid warning period: " + arg);
+      System.exit(1);
+    }
+  }
+
+  private static void parseQueryPeriod(String arg) {
+    try {
+      queryPeriod = Long.parseLong(arg) * 24 * 60 * 60 * 1000L;
+    } catch (NumberFormatException e) {
+      queryPeriod = -1;
+    }
+
+    if (queryPeriod < 0) {
+      System.err.println("Invalid number of days: " + arg);
+      System.exit(1);
+    }
+  }
+
+  private static void parseMinSharing(String arg) {
+    try {
+      minSharing = Integer.parseInt(arg);
+    } catch (NumberFormatException e) {
+      minSharing = 0;
+    }
+
+    if (minSharing < 1) {
+      System.err.println("Invalid number of licenses: " + arg);
+      System.exit(1);
+    }
+  }
+
+  private static void parseAddressRefresh(String arg) {
+    try {
+      addressRefresh = Long.parseLong(arg) * 1000L;
+    } catch (NumberFormatException e) {
+      addressRefresh = -1;
+    }
+
+    if (addressRefresh < 0) {
+      System.err.println("Invalid address refresh: " + arg);
+      System.exit(1);
+    }
+  }
+
+  private static void parseMode(String arg) {
+    if (arg.equals("fast")) {
+      fastFail = true;
+    } else if (arg.equals("report")) {
+      fastFail = false;
+    } else {
+      System.err.println("Invalid validation mode: " + arg);
+      System.exit(1);
+    }
+  }
+
+  private static void parseServerAddress(String arg) {
+    String host = "127.0.0.1";
+    String port = arg;
+    int colon = arg.lastIndexOf(':');
+    if (colon >= 0) {
+      host = arg.substring(0, colon);
+      port = arg.substring(colon + 1);
+    }
+
+    try {
+      serverAddress = new InetSocketAddress(host, Integer.parseInt(port));
+    } catch (IllegalArgumentException e) {
+      System.err.println("Invalid server address: " + arg);
+      System.exit(1);
+    }
+  }
+
   private static void parse(String[] args) {
 
     if (args.length < 4) {
@@ -92,11 +350,366 @@ public class Main {
       } else if (arg.equals("-k")) {
         x++;
         parseKeyPairFile(args[x]);
+      } else if (arg.equals("-d")) {
+        x++;
+        licenseDirectory = new File(args[x]);
+      } else if (arg.equals("-f")) {
+        x++;
+        licenseList = new File(args[x]);
+      } else if (arg.equals("-R")) {
+        x++;
+        recordFile = new File(args[x]);
+      } else if (arg.equals("-t")) {
+        x++;
+        parseThreads(args[x]);
+      } else if (arg.equals("-o")) {
+        x++;
+        resultsFile = new File(args[x]);
+      } else if (arg.equals("-p")) {
+        x++;
+        parseServerAddress(args[x]);
+      } else if (arg.equals("-c")) {
+        x++;
+        parseCacheSize(args[x]);
+      } else if (arg.equals("-T")) {
+        x++;
+        parseCacheTtl(args[x]);
+      } else if (arg.equals("-M")) {
+        x++;
+        metricsFile = new File(args[x]);
+      } else if (arg.equals("-A")) {
+        x++;
+        archiveFile = new File(args[x]);
+      } else if (arg.equals("-i")) {
+        x++;
+        licenseId = args[x];
+      } else if (arg.equals("-S")) {
+        x++;
+        snapshotFile = new File(args[x]);
+      } else if (arg.equals("-w")) {
+        x++;
+        parseWarningPeriod(args[x]);
+      } else if (arg.equals("-I")) {
+        x++;
+        expirationIndexFile = new File(args[x]);
+      } else if (arg.equals("-q")) {
+        x++;
+        parseQueryPeriod(args[x]);
+      } else if (arg.equals("-H")) {
+        x++;
+        hardwareIndexFile = new File(args[x]);
+      } else if (arg.equals("-m")) {
+        x++;
+        hardwareAddress = args[x];
+      } else if (arg.equals("-s")) {
+        x++;
+        parseMinSharing(args[x]);
+      } else if (arg.equals("-V")) {
+        x++;
+        parseMode(args[x]);
+      } else if (arg.equals("-r")) {
+        x++;
+        parseAddressRefresh(args[x]);
       } else {
         showUsageAndExit();
       }
 
     }
+
+    if (expirationIndexFile != null || hardwareIndexFile != null) {
+      //
+      // Indexing reads no keys: either a source to build from, or a query
+      //
+      int indexSources = (licenseDirectory != null ? 1 : 0) + (archiveFile != null ? 1 : 0) +
+              (queryPeriod >= 0 ? 1 : 0) + (hardwareAddress != null ? 1 : 0) + (minSharing > 0 ? 1 : 0);
+      boolean query = queryPeriod >= 0 || hardwareAddress != null || minSharing > 0;
+      boolean expirationQuery = queryPeriod >= 0;
+      if (indexSources != 1 || (expirationIndexFile != null && hardwareIndexFile != null) ||
+              (query && expirationQuery != (expirationIndexFile != null)) ||
+              license != null || licenseId != null || licenseList != null ||
+              recordFile != null || serverAddress != null || snapshotFile != null || fastFail) {
+        showUsageAndExit();
+      }
+      return;
+    }
+
+    if ((archiveFile == null) != (licenseId == null)) {
+      showUsageAndExit();
+    } else if (archiveFile != null) {
+      if (license != null) {
+        showUsageAndExit();
+      }
+      parseArchiveLicense();
+    }
+
+    int sources = (license != null ? 1 : 0) + (licenseDirectory != null ? 1 : 0) +
+            (licenseList != null ? 1 : 0) + (recordFile != null ? 1 : 0) +
+            (serverAddress != null ? 1 : 0);
+    if (keyRing == null || sources != 1) {
+      showUsageAndExit();
+    }
+    if (snapshotFile != null && (license != null || serverAddress != null)) {
+      showUsageAndExit();
+    }
+    if (fastFail && (license != null || snapshotFile != null)) {
+      showUsageAndExit();
+    }
+  }
+
+  private static void runServer() {
+    try {
+      final ValidationServer server = new ValidationServer(new LicenseChecker(keyRing, fastFail),
+              serverAddress, threads, createCache());
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+        @Override
+        public void run() {
+          server.stop();
+        }
+      });
+      server.start();
+      System.err.println("Listening on " + server.getAddress());
+    } catch (IOException ex) {
+      System.err.println("Error starting server: " + ex.getMessage());
+      System.exit(1);
+    }
+  }
+
+  private static void runBulk() {
+    long start = System.currentTimeMillis();
+    PrintStream out = null;
+
+    try {
+      if (resultsFile != null) {
+        out = new PrintStream(new BufferedOutputStream(new FileOutputStream(resultsFile)), false, "UTF-8");
+      } else {
+        out = new PrintStream(new BufferedOutputStream(System.out, 64 * 1024), false, "UTF-8");
+      }
+
+      if (snapshotFile != null) {
+        runAudit(out);
+        return;
+      }
+
+      VerificationCache cache = createCache();
+      BulkValidator bulk = new BulkValidator(new LicenseChecker(keyRing, fastFail), threads, cache);
+      if (recordFile != null) {
+        bulk.validateRecords(LicenseFiles.fromRecords(recordFile), out);
+      } else {
+        Iterator<File> files = licenseDirectory != null ?
+                LicenseFiles.fromDirectory(licenseDirectory) : LicenseFiles.fromList(licenseList);
+        bulk.validate(files, out);
+      }
+
+      long elapsed = Math.max(1, System.currentTimeMillis() - start);
+      System.err.println("Validated " + bulk.getTotal() + " licenses (" + bulk.getValid() +
+              " valid, " + bulk.getInvalid() + " invalid, " + bulk.getUnreadable() +
+              " unreadable) in " + elapsed + " ms, " +
+              (bulk.getTotal() * 1000L / elapsed) + " licenses/sec");
+      if (cache != null) {
+        System.err.println("Verification cache: " + cache.getHits() + " hits, " +
+                cache.getMisses() + " misses");
+      }
+    } catch (IOException ex) {
+      System.err.println("Error: " + ex.getMessage());
+      System.exit(1);
+    } catch (InterruptedException ex) {
+      System.err.println("Interrupted");
+      System.exit(1);
+    } finally {
+      if (resultsFile != null && out != null) {
+        out.close();
+      } else if (out != null) {
+        out.flush();
+      }
+    }
+  }
+
+  private static void runAudit(PrintStream out) throws IOException, InterruptedException {
+    long start = System.currentTimeMillis();
+    ValidationSnapshot previous = ValidationSnapshot.load(snapshotFile);
+
+    DeltaValidator delta = new DeltaValidator(new LicenseChecker(keyRing), threads, createCache(),
+            warningPeriod);
+    ValidationSnapshot next;
+    if (recordFile != null) {
+      next = delta.validateRecords(LicenseFiles.fromRecords(recordFile), previous, out);
+    } else {
+      Iterator<File> files = licenseDirectory != null ?
+              LicenseFiles.fromDirectory(licenseDirectory) : LicenseFiles.fromList(licenseList);
+      next = delta.validate(files, previous, out);
+    }
+    next.save(snapshotFile);
+
+    long elapsed = Math.max(1, System.currentTimeMillis() - start);
+    System.err.println("Audited " + delta.getTotal() + " licenses (" + delta.getRevalidated() +
+            " validated, " + delta.getChanges() + " changes) in " + elapsed + " ms" +
+            (previous == null ? ", no previous snapshot" : ""));
+  }
+
+  private static void runIndexBuild() {
+    long start = System.currentTimeMillis();
+    LicenseScan scan = new LicenseScan();
+    LicenseScan.Mapper<ExpirationIndex.Entry> entries = new LicenseScan.Mapper<ExpirationIndex.Entry>() {
+      public ExpirationIndex.Entry map(String id, License license) {
+        return ExpirationIndex.Entry.fromLicense(id, license);
+      }
+    };
+    LicenseArchive archive = null;
+    try {
+      int indexed;
+      if (archiveFile != null) {
+        archive = LicenseArchive.open(archiveFile);
+        indexed = ExpirationIndexWriter.build(expirationIndexFile, scan.fromArchive(archive, entries));
+      } else {
+        indexed = ExpirationIndexWriter.build(expirationIndexFile,
+                scan.fromDirectory(licenseDirectory, entries));
+      }
+      System.err.println("Indexed " + indexed + " expiring licenses of " + scan.getScanned() +
+              " read (" + scan.getUnreadable() + " unreadable) in " +
+              (System.currentTimeMillis() - start) + " ms");
+    } catch (IOException ex) {
+      System.err.println("Error building expiration index: " + ex.getMessage());
+      System.exit(1);
+    } catch (IllegalStateException ex) {
+      System.err.println("Error building expiration index: " + ex.getMessage());
+      System.exit(1);
+    } finally {
+      if (archive != null) {
+        try {
+          archive.close();
+        } catch (IOException ex) {
+          ex.printStackTrace();
+        }
+      }
+    }
+  }
+
+  private static void runIndexQuery() {
+    Date now = new Date();
+    List<ExpirationIndex.Entry> expiring;
+    List<ExpirationIndex.Entry> floating;
+    try {
+      ExpirationIndex index = ExpirationIndex.open(expirationIndexFile);
+      expiring = index.expiringBetween(now, new Date(now.getTime() + queryPeriod));
+      floating = index.floatingAtMost(queryPeriod);
+    } catch (IOException ex) {
+      System.err.println("Error reading expiration index: " + ex.getMessage());
+      System.exit(1);
+      return;
+    }
+
+    PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 64 * 1024));
+    for (ExpirationIndex.Entry entry : expiring) {
+      long expiration = entry.getExpirationDate().getTime();
+      out.println("{\"license\":" + Json.quote(entry.getId()) + ",\"expiration\":" + expiration +
+              ",\"timeRemaining\":" + (expiration - now.getTime()) + "}");
+    }
+    for (ExpirationIndex.Entry entry : floating) {
+      out.println("{\"license\":" + Json.quote(entry.getId()) + ",\"float\":" +
+              entry.getFloatingExpirationPeriod() + "}");
+    }
+    out.flush();
+    System.err.println(expiring.size() + " licenses expire and " + floating.size() +
+            " float for at most " + (queryPeriod / (24 * 60 * 60 * 1000L)) + " days");
+  }
+
+  private static void runHardwareIndexBuild() {
+    long start = System.currentTimeMillis();
+    LicenseScan scan = new LicenseScan();
+    LicenseArchive archive = null;
+    try {
+      final HardwareIndexWriter writer = new HardwareIndexWriter(hardwareIndexFile);
+      LicenseScan.Mapper<String> ids = new LicenseScan.Mapper<String>() {
+        public String map(String id, License license) {
+          try {
+            writer.add(id, license.getHardwareAddresses());
+          } catch (IOException ex) {
+            throw new IllegalStateException("Error writing hardware index: " + ex.getMessage());
+          }
+          return id;
+        }
+      };
+
+      Iterator<String> licenses;
+      if (archiveFile != null) {
+        archive = LicenseArchive.open(archiveFile);
+        licenses = scan.fromArchive(archive, ids);
+      } else {
+        licenses = scan.fromDirectory(licenseDirectory, ids);
+      }
+      while (licenses.hasNext()) {
+        licenses.next();
+      }
+      writer.close();
+
+      System.err.println("Indexed " + writer.getAddressCount() + " addresses on " +
+              writer.getLicenseCount() + " licenses (" + scan.getUnreadable() + " unreadable, " +
+              writer.getSkipped() + " addresses not MAC addresses) in " +
+              (System.currentTimeMillis() - start) + " ms");
+    } catch (IOException ex) {
+      System.err.println("Error building hardware index: " + ex.getMessage());
+      System.exit(1);
+    } catch (IllegalStateException ex) {
+      System.err.println("Error building hardware index: " + ex.getMessage());
+      System.exit(1);
+    } finally {
+      if (archive != null) {
+        try {
+          archive.close();
+        } catch (IOException ex) {
+          ex.printStackTrace();
+        }
+      }
+    }
+  }
+
+  private static void runHardwareIndexQuery() {
+    long start = System.nanoTime();
+    PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 64 * 1024));
+    try {
+      HardwareIndex index = HardwareIndex.open(hardwareIndexFile);
+      List<HardwareIndex.Address> found;
+      if (hardwareAddress != null) {
+        found = new ArrayList<HardwareIndex.Address>();
+        HardwareIndex.Address address = index.lookup(hardwareAddress);
+        if (address != null) {
+          found.add(address);
+        }
+      } else {
+        found = index.shared(minSharing, Integer.MAX_VALUE);
+      }
+
+      for (HardwareIndex.Address address : found) {
+        StringBuilder sb = new StringBuilder(128);
+        sb.append("{\"address\":").append(Json.quote(address.getAddress()));
+        sb.append(",\"count\":").append(address.getLicenses().size());
+        sb.append(",\"licenses\":[");
+        for (int x = 0; x < address.getLicenses().size(); x++) {
+          if (x > 0) {
+            sb.append(',');
+          }
+          sb.append(Json.quote(address.getLicenses().get(x)));
+        }
+        out.println(sb.append("]}"));
+      }
+      out.flush();
+      System.err.println(found.size() + " addresses found in " +
+              (System.nanoTime() - start) / 1000000L + " ms");
+    } catch (IOException ex) {
+      System.err.println("Error reading hardware index: " + ex.getMessage());
+      System.exit(1);
+    }
+  }
+
+  private static void writeMetrics() {
+    if (metricsFile == null) {
+      return;
+    }
+    try {
+      Metrics.getDefault().writeJson(metricsFile);
+    } catch (IOException ex) {
+      System.err.println("Error writing metrics: " + ex.getMessage());
+    }
   }
 
   /**
@@ -104,18 +717,78 @@ public class Main {
    */
   public static void main(String[] args) {
     parse(args);
+    if (hardwareIndexFile != null) {
+      if (hardwareAddress != null || minSharing > 0) {
+        runHardwareIndexQuery();
+      } else {
+        runHardwareIndexBuild();
+      }
+      writeMetrics();
+      return;
+    }
+
+    if (expirationIndexFile != null) {
+      if (queryPeriod >= 0) {
+        runIndexQuery();
+      } else {
+        runIndexBuild();
+      }
+      writeMetrics();
+      return;
+    }
+
+    //
+    // Every license locked to hardware is checked against the same host
+    // addresses, so gather them once rather than once per license
+    //
+    if (license == null) {
+      HostAddresses.setRefreshInterval(addressRefresh);
+    }
+
+    if (serverAddress != null) {
+      runServer();
+      return;
+    }
+
+    if (license == null) {
+      runBulk();
+      writeMetrics();
+      return;
+    }
+
     Date currentDate = new Date();
 
-    Validator v = new Validator(license,
-            new String(Hex.encodeHex(pair.getPublic().getEncoded())));
-    v.setIgnoreFloatTime(true);
+    //
+    // Check against the key that signed the license, or the first key if
+    // none did so the failure is reported as the library would
+    //
+    LicenseChecker checker = new LicenseChecker(keyRing);
+    PublicKey publicKey = checker.findKey(license);
+    if (publicKey == null) {
+      publicKey = checker.getPublicKey();
+    }
 
-    boolean ex = false;
     LicenseState state;
-    try {
-      state = v.validate();
-    } catch (ValidatorException e) {
-      state = e.getLicenseState();
+    Long timeRemaining;
+    if (KeyAlgorithm.isLibraryCompatible(publicKey)) {
+      Validator v = new Validator(license,
+              new String(Hex.encodeHex(publicKey.getEncoded())));
+      v.setIgnoreFloatTime(true);
+
+      long start = System.nanoTime();
+      try {
+        state = v.validate();
+      } catch (ValidatorException e) {
+        state = e.getLicenseState();
+      }
+      LicenseChecker.recordValidation(start, state);
+      timeRemaining = v.getTimeRemaining(currentDate);
+    } else {
+      //
+      // The library Validator only knows 1024 bit DSA keys
+      //
+      state = checker.validate(license, currentDate);
+      timeRemaining = LicenseChecker.getTimeRemaining(license, currentDate);
     }
 
     // Show test status
@@ -146,8 +819,8 @@ public class Main {
 
     }
 
-    if (floatPeroid != null || license.getExpirationDate() != null) {
-      long remaining = v.getTimeRemaining(currentDate) / 1000L;
+    if ((floatPeroid != null || license.getExpirationDate() != null) && timeRemaining != null) {
+      long remaining = timeRemaining / 1000L;
       System.out.println("\nTime remaining: " + remaining + " seconds");
 
     }
@@ -173,5 +846,6 @@ public class Main {
       System.out.println("\nHardware lock: " + address);
     }
     System.out.println("\n");
+    writeMetrics();
   }
 }
@@ -0,0 +1,171 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.licensevalidator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import net.padlocksoftware.padlock.license.License;
+import net.padlocksoftware.padlock.license.LicenseState;
+import net.padlocksoftware.padlock.license.TestResult;
+
+/**
+ * The outcome of validating a single license, in a form that can be
+ * written as one line of JSON.
+ */
+public final class ValidationResult {
+
+  private final String name;
+  private final boolean valid;
+  private final List<TestResult> tests;
+  private final List<String> failedTests;
+  private final Date startDate;
+  private final Date expirationDate;
+  private final Long timeRemaining;
+  private final String error;
+
+  private ValidationResult(String name, boolean valid, List<TestResult> tests,
+          List<String> failedTests, Date startDate, Date expirationDate, Long timeRemaining,
+          String error) {
+    this.name = name;
+    this.valid = valid;
+    this.tests = tests;
+    this.failedTests = failedTests;
+    this.startDate = startDate;
+    this.expirationDate = expirationDate;
+    this.timeRemaining = timeRemaining;
+    this.error = error;
+  }
+
+  /**
+   * Create a result from a completed validation.
+   */
+  public static ValidationResult fromState(String name, License license, LicenseState state,
+          Long timeRemaining) {
+    List<String> failed = new ArrayList<String>();
+    for (TestResult result : state.getFailedTests()) {
+      failed.add(result.getTest().getId());
+    }
+    return new ValidationResult(name, state.isValid(), state.getTests(),
+            Collections.unmodifiableList(failed), license.getStartDate(), license.getExpirationDate(),
+            timeRemaining, null);
+  }
+
+  /**
+   * Create a result for a license that could not be read or parsed.
+   */
+  public static ValidationResult fromError(String name, String error) {
+    return new ValidationResult(name, false, Collections.<TestResult>emptyList(),
+            Collections.<String>emptyList(), null, null, null, error);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public boolean isValid() {
+    return valid;
+  }
+
+  /**
+   * @return Every test that was run, in order.
+   */
+  public List<TestResult> getTests() {
+    return tests;
+  }
+
+  /**
+   * @return The ids of the LicenseTests that failed.
+   */
+  public List<String> getFailedTests() {
+    return failedTests;
+  }
+
+  public Date getStartDate() {
+    return startDate;
+  }
+
+  public Date getExpirationDate() {
+    return expirationDate;
+  }
+
+  /**
+   * @return ms until the license expires, or null for perpetual licenses.
+   */
+  public Long getTimeRemaining() {
+    return timeRemaining;
+  }
+
+  /**
+   * @return Why the license could not be validated, or null.
+   */
+  public String getError() {
+    return error;
+  }
+
+  public String toJson() {
+    return toJson(false);
+  }
+
+  /**
+   * @param includeTests Whether to list every test that was run, not just
+   * the failed ones.
+   */
+  public String toJson(boolean includeTests) {
+    StringBuilder sb = new StringBuilder(128);
+    sb.append("{\"license\":").append(Json.quote(name));
+    sb.append(",\"valid\":").append(valid);
+    sb.append(",\"failed\":[");
+    for (int x = 0; x < failedTests.size(); x++) {
+      if (x > 0) {
+        sb.append(',');
+      }
+      sb.append(Json.quote(failedTests.get(x)));
+    }
+    sb.append(']');
+    if (includeTests) {
+      sb.append(",\"tests\":[");
+      for (int x = 0; x < tests.size(); x++) {
+        TestResult result = tests.get(x);
+        if (x > 0) {
+          sb.append(',');
+        }
+        sb.append("{\"id\":").append(Json.quote(result.getTest().getId()));
+        sb.append(",\"name\":").append(Json.quote(result.getTest().getName()));
+        sb.append(",\"passed\":").append(result.passed()).append('}');
+      }
+      sb.append(']');
+    }
+    if (expirationDate != null) {
+      sb.append(",\"expiration\":").append(expirationDate.getTime());
+    }
+    if (timeRemaining != null) {
+      sb.append(",\"timeRemaining\":").append(timeRemaining);
+    }
+    if (error != null) {
+      sb.append(",\"error\":").append(Json.quote(error));
+    }
+    return sb.append('}').toString();
+  }
+}
@@ -0,0 +1,237 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.licensevalidator;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.padlocksoftware.padlock.common.HttpSupport;
+import net.padlocksoftware.padlock.common.KeyFingerprint;
+import net.padlocksoftware.padlock.common.Metrics;
+
+/**
+ * A resident HTTP front end for LicenseChecker, so callers pay for the
+ * signature verification rather than a JVM launch on every check.
+ *
+ * <pre>
+ *   POST /validate   body: an exported license   response: JSON result
+ *   GET  /stats      response: JSON cache counters
+ *   GET  /metrics    response: timings and counters, Prometheus text format,
+ *                    or JSON with ?format=json
+ *   GET  /health     response: "ok"
+ * </pre>
+ *
+ * Licenses are validated against all of the server's keys unless the
+ * request names one of them, hex encoded, in an X-Padlock-Public-Key
+ * header.  Keys the server was not started with are refused, so callers
+ * cannot have a license checked against a key of their own making.
+ * Parsed keys are kept in a KeyCache, so each is only ever parsed once.
+ * When given a VerificationCache, a license that is re-checked with the
+ * same bytes and key skips signature verification.  Keys named in
+ * requests are checked in the same mode, full report or fast-fail, as
+ * the server's own.
+ */
+public final class ValidationServer {
+
+  /**
+   * Largest license body accepted, in bytes.
+   */
+  static final int MAX_LICENSE_SIZE = 64 * 1024;
+
+  /**
+   * Number of distinct public keys kept parsed.
+   */
+  static final int KEY_CACHE_SIZE = 64;
+
+  static final String PUBLIC_KEY_HEADER = "X-Padlock-Public-Key";
+
+  private final Logger logger = Logger.getLogger(getClass().getName());
+  private final LicenseChecker checker;
+  private final KeyCache keys;
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final VerificationCache verifications;
+
+  public ValidationServer(LicenseChecker checker, InetSocketAddress address, int threads)
+          throws IOException {
+    this(checker, address, threads, null);
+  }
+
+  /**
+   * @param verifications Cache of earlier verifications, may be null.
+   */
+  public ValidationServer(LicenseChecker checker, InetSocketAddress address, int threads,
+          VerificationCache verifications) throws IOException {
+    this.checker = checker;
+    this.verifications = verifications;
+    this.keys = new KeyCache(KEY_CACHE_SIZE, checker.isFastFail());
+    keys.put(checker);
+    registerGauges();
+    this.executor = HttpSupport.createExecutor(threads);
+    this.server = HttpServer.create(address, 256);
+    server.setExecutor(executor);
+    server.createContext("/validate", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        handleValidate(exchange);
+      }
+    });
+    server.createContext("/stats", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        HttpSupport.respond(exchange, 200, "application/json", stats());
+      }
+    });
+    server.createContext("/metrics", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        HttpSupport.respondMetrics(exchange, Metrics.getDefault());
+      }
+    });
+    server.createContext("/health", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        HttpSupport.respond(exchange, 200, "text/plain", "ok");
+      }
+    });
+  }
+
+  public void start() {
+    server.start();
+  }
+
+  public InetSocketAddress getAddress() {
+    return server.getAddress();
+  }
+
+  public void stop() {
+    server.stop(1);
+    executor.shutdown();
+    try {
+      executor.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void handleValidate(HttpExchange exchange) throws IOException {
+    try {
+      if (!"POST".equals(exchange.getRequestMethod())) {
+        exchange.getResponseHeaders().add("Allow", "POST");
+        HttpSupport.respond(exchange, 405, "text/plain", "POST a license to validate");
+        return;
+      }
+
+      byte[] body = HttpSupport.readBody(exchange, MAX_LICENSE_SIZE);
+      if (body == null) {
+        HttpSupport.respond(exchange, 413, "text/plain", "License too large");
+        return;
+      }
+
+      LicenseChecker keyChecker = checker;
+      String publicKey = exchange.getRequestHeaders().getFirst(PUBLIC_KEY_HEADER);
+      if (publicKey != null) {
+        try {
+          byte[] encodedKey = KeyCache.decode(publicKey);
+          if (!checker.hasKey(KeyFingerprint.of(encodedKey))) {
+            HttpSupport.respond(exchange, 403, "text/plain", "Public key is not one of the server's keys");
+            return;
+          }
+          keyChecker = keys.get(encodedKey);
+        } catch (InvalidKeySpecException ex) {
+          HttpSupport.respond(exchange, 400, "text/plain", "Invalid public key: " + ex.getMessage());
+          return;
+        }
+      }
+
+      ValidationResult result = keyChecker.check("request", body, new Date(), verifications);
+      if (result.getError() != null) {
+        HttpSupport.respond(exchange, 400, "application/json", result.toJson());
+        return;
+      }
+
+      HttpSupport.respond(exchange, 200, "application/json", result.toJson(true));
+    } catch (IOException ex) {
+      logger.log(Level.FINE, "Request failed", ex);
+      throw ex;
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void registerGauges() {
+    Metrics metrics = Metrics.getDefault();
+    metrics.gauge("key_cache_size", "Public keys kept parsed", new Metrics.Gauge() {
+      public long get() {
+        return keys.size();
+      }
+    });
+    metrics.gauge("key_cache_hits", "Requests whose public key was already parsed", new Metrics.Gauge() {
+      public long get() {
+        return keys.getHits();
+      }
+    });
+    metrics.gauge("key_cache_misses", "Requests whose public key had to be parsed", new Metrics.Gauge() {
+      public long get() {
+        return keys.getMisses();
+      }
+    });
+    if (verifications == null) {
+      return;
+    }
+    metrics.gauge("verification_cache_size", "Signature checks remembered", new Metrics.Gauge() {
+      public long get() {
+        return verifications.size();
+      }
+    });
+    metrics.gauge("verification_cache_hits", "Licenses whose signature check was remembered",
+            new Metrics.Gauge() {
+      public long get() {
+        return verifications.getHits();
+      }
+    });
+    metrics.gauge("verification_cache_misses", "Licenses whose signature had to be checked",
+            new Metrics.Gauge() {
+      public long get() {
+        return verifications.getMisses();
+      }
+    });
+  }
+
+  private String stats() {
+    StringBuilder sb = new StringBuilder("{");
+    sb.append("\"keyCacheSize\":").append(keys.size());
+    sb.append(",\"keyCacheHits\":").append(keys.getHits());
+    sb.append(",\"keyCacheMisses\":").append(keys.getMisses());
+    if (verifications != null) {
+      sb.append(",\"verificationCacheSize\":").append(verifications.size());
+      sb.append(",\"verificationCacheHits\":").append(verifications.getHits());
+      sb.append(",\"verificationCacheMisses\":").append(verifications.getMisses());
+    }
+    return sb.append('}').toString();
+  }
+}
@@ -0,0 +1,258 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.licensevalidator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The validation state of every license in a store as of one audit, kept
+ * between audits so the next one only has to re-validate what may have
+ * changed.
+ *
+ * <pre>
+ *   magic "PLVS", version, time taken, key fingerprint, host addresses,
+ *   entry count, then per license:
+ *     name, SHA-256 of the license bytes, file length and modification
+ *     time, valid flag, failed test ids, start and expiration dates,
+ *     read or parse error
+ * </pre>
+ *
+ * The file is replaced atomically, so it is always either the old or the
+ * new snapshot.
+ */
+final class ValidationSnapshot {
+
+  private static final int MAGIC = 0x504c5653;
+  private static final int VERSION = 1;
+  private static final long NO_DATE = Long.MIN_VALUE;
+
+  /**
+   * One license's state.  Immutable.
+   */
+  static final class Entry {
+    final byte[] digest;
+    final long length;
+    final long modified;
+    final boolean valid;
+    final List<String> failedTests;
+    final Date startDate;
+    final Date expirationDate;
+    final String error;
+
+    Entry(byte[] digest, long length, long modified, boolean valid, List<String> failedTests,
+            Date startDate, Date expirationDate, String error) {
+      this.digest = digest;
+      this.length = length;
+      this.modified = modified;
+      this.valid = valid;
+      this.failedTests = failedTests;
+      this.startDate = startDate;
+      this.expirationDate = expirationDate;
+      this.error = error;
+    }
+
+    static Entry fromResult(ValidationResult result, byte[] digest, long length, long modified) {
+      return new Entry(digest, length, modified, result.isValid(), result.getFailedTests(),
+              result.getStartDate(), result.getExpirationDate(), result.getError());
+    }
+
+    /**
+     * @return This state, for the same content found with a different
+     * file length or modification time.
+     */
+    Entry withFile(long length, long modified) {
+      return new Entry(digest, length, modified, valid, failedTests, startDate, expirationDate,
+              error);
+    }
+
+    boolean failed(String testId) {
+      return failedTests.contains(testId);
+    }
+  }
+
+  private final long taken;
+  private final String keyFingerprint;
+  private final String hostAddresses;
+  private final Map<String, Entry> entries;
+
+  ValidationSnapshot(long taken, String keyFingerprint, String hostAddresses) {
+    this(taken, keyFingerprint, hostAddresses, new ConcurrentHashMap<String, Entry>());
+  }
+
+  private ValidationSnapshot(long taken, String keyFingerprint, String hostAddresses,
+          Map<String, Entry> entries) {
+    this.taken = taken;
+    this.keyFingerprint = keyFingerprint;
+    this.hostAddresses = hostAddresses;
+    this.entries = entries;
+  }
+
+  /**
+   * @return The snapshot saved in a file, or null if the file does not
+   * exist.
+   */
+  static ValidationSnapshot load(File file) throws IOException {
+    if (!file.exists()) {
+      return null;
+    }
+
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Not a validation snapshot: " + file);
+      }
+      long taken = in.readLong();
+      String keyFingerprint = in.readUTF();
+      String hostAddresses = in.readUTF();
+      int count = in.readInt();
+
+      Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>(Math.max(16, count * 4 / 3 + 1));
+      for (int x = 0; x < count; x++) {
+        String name = in.readUTF();
+        byte[] digest = new byte[in.readUnsignedByte()];
+        in.readFully(digest);
+        long length = in.readLong();
+        long modified = in.readLong();
+        boolean valid = in.readBoolean();
+
+        int failedCount = in.readUnsignedByte();
+        List<String> failed = new ArrayList<String>(failedCount);
+        for (int y = 0; y < failedCount; y++) {
+          failed.add(in.readUTF().intern());
+        }
+
+        Date startDate = readDate(in);
+        Date expirationDate = readDate(in);
+        String error = in.readBoolean() ? in.readUTF() : null;
+        entries.put(name, new Entry(digest, length, modified, valid,
+                Collections.unmodifiableList(failed), startDate, expirationDate, error));
+      }
+      return new ValidationSnapshot(taken, keyFingerprint, hostAddresses, entries);
+    } catch (EOFException ex) {
+      throw new IOException("Truncated validation snapshot: " + file);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static Date readDate(DataInputStream in) throws IOException {
+    long time = in.readLong();
+    return time == NO_DATE ? null : new Date(time);
+  }
+
+  /**
+   * @return When the audit that made this snapshot started, in ms since
+   * the epoch.
+   */
+  long getTaken() {
+    return taken;
+  }
+
+  String getKeyFingerprint() {
+    return keyFingerprint;
+  }
+
+  /**
+   * @return The host's hardware addresses when the snapshot was taken,
+   * which the hardware test was run against.
+   */
+  String getHostAddresses() {
+    return hostAddresses;
+  }
+
+  Entry get(String name) {
+    return entries.get(name);
+  }
+
+  void put(String name, Entry entry) {
+    entries.put(name, entry);
+  }
+
+  boolean contains(String name) {
+    return entries.containsKey(name);
+  }
+
+  Iterable<Map.Entry<String, Entry>> entries() {
+    return entries.entrySet();
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  void save(File file) throws IOException {
+    File temp = new File(file.getPath() + ".tmp");
+    FileOutputStream stream = new FileOutputStream(temp);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 64 * 1024));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(taken);
+      out.writeUTF(keyFingerprint);
+      out.writeUTF(hostAddresses);
+      out.writeInt(entries.size());
+
+      for (Map.Entry<String, Entry> named : entries.entrySet()) {
+        Entry entry = named.getValue();
+        out.writeUTF(named.getKey());
+        out.writeByte(entry.digest.length);
+        out.write(entry.digest);
+        out.writeLong(entry.length);
+        out.writeLong(entry.modified);
+        out.writeBoolean(entry.valid);
+        out.writeByte(entry.failedTests.size());
+        for (String test : entry.failedTests) {
+          out.writeUTF(test);
+        }
+        out.writeLong(entry.startDate != null ? entry.startDate.getTime() : NO_DATE);
+        out.writeLong(entry.expirationDate != null ? entry.expirationDate.getTime() : NO_DATE);
+        out.writeBoolean(entry.error != null);
+        if (entry.error != null) {
+          out.writeUTF(entry.error);
+        }
+      }
+      out.flush();
+      stream.getFD().sync();
+    } finally {
+      out.close();
+    }
+
+    if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+      throw new IOException("Unable to replace validation snapshot: " + file);
+    }
+  }
+}
@@ -0,0 +1,111 @@
+/*
+* Copyright (c) 2009-2012 Jason Nichols
+
+* Permission is hereby granted, free of charge, to any person obtaining a copy 
+* of this software and associated documentation files (the "Software"), to deal 
+* in the Software without restriction, including without limitation the rights to 
+* use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+* of the Software, and to permit persons to whom the Software is furnished to do 
+* so, subject to the following conditions:
+
+* The above copyright notice and this permission notice shall be included in all 
+* copies or substantial portions of the Software.
+
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE 
+* SOFTWARE.
+*/
+
+package net.padlocksoftware.padlock.licensevalidator;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import net.padlocksoftware.padlock.common.KeyFingerprint;
+import net.padlocksoftware.padlock.license.License;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Remembers parsed licenses and the outcome of their signature check,
+ * keyed by a digest of the exact license bytes and the fingerprint of the
+ * key they were checked against.  A hit skips parsing and signature
+ * verification; the date and hardware tests are still run on every check.
+ *
+ * Entries expire after a fixed time to live, and the least recently used
+ * entry is evicted once the cache is full.  Safe for use from multiple
+ * threads.
+ */
+public final class VerificationCache {
+
+  /**
+   * A parsed, signature checked license.
+   */
+  static final class Verification {
+    final License license;
+    final boolean verified;
+    final long expires;
+
+    Verification(License license, boolean verified, long expires) {
+      this.license = license;
+      this.verified = verified;
+      this.expires = expires;
+    }
+  }
+
+  private final Map<String, Verification> entries;
+  private final long ttlMillis;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  public VerificationCache(int maxSize, long ttlMillis) {
+    if (maxSize < 1 || ttlMillis < 1) {
+      throw new IllegalArgumentException("maxSize and ttlMillis must be positive");
+    }
+    this.ttlMillis = ttlMillis;
+    this.entries = new LruMap<String, Verification>(maxSize);
+  }
+
+  /**
+   * @return The cache key for license bytes checked against a key.
+   */
+  static String key(String keyFingerprint, byte[] licenseBytes) {
+    return keyFingerprint + ':' + new String(Hex.encodeHex(KeyFingerprint.sha256(licenseBytes)));
+  }
+
+  /**
+   * @return The live entry for the key, or null.
+   */
+  synchronized Verification get(String key) {
+    Verification entry = entries.get(key);
+    if (entry != null && entry.expires <= System.currentTimeMillis()) {
+      entries.remove(key);
+      entry = null;
+    }
+
+    if (entry == null) {
+      misses.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+    return entry;
+  }
+
+  synchronized void put(String key, License license, boolean verified) {
+    entries.put(key, new Verification(license, verified, System.currentTimeMillis() + ttlMillis));
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+}